@@ -0,0 +1,116 @@
+package org.mitre.hapifhir.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Encounter.EncounterStatus;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Observation.ObservationStatus;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.hl7.fhir.r4.model.Subscription;
+import org.hl7.fhir.r4.model.Subscription.SubscriptionChannelType;
+import org.hl7.fhir.r4.model.Subscription.SubscriptionStatus;
+import org.hl7.fhir.r4.model.UriType;
+import org.mitre.hapifhir.model.ResourceTrigger;
+import org.mitre.hapifhir.model.ResourceTrigger.MethodCriteria;
+import org.mitre.hapifhir.model.SubscriptionTopic;
+
+/**
+ * Builds the topics, subscriptions and resources used by the benchmarks.
+ */
+public class BenchmarkData {
+    public static final String BASE_URL = "http://localhost:8080/fhir";
+
+    private static final String TOPIC_CANONICAL_EXT_URL =
+        "http://hl7.org/fhir/uv/subscriptions-backport/StructureDefinition/backport-topic-canonical";
+    private static final ResourceType[] TOPIC_RESOURCE_TYPES = {
+        ResourceType.Encounter, ResourceType.Observation, ResourceType.Condition, ResourceType.Procedure
+    };
+
+    /**
+     * Create topics spread over a few resource types. Every other topic has a
+     * currentCriteria on its trigger.
+     *
+     * @param topicCount - the number of topics
+     * @return the topics
+     */
+    public static List<SubscriptionTopic> topics(int topicCount) {
+        List<SubscriptionTopic> topics = new ArrayList<>(topicCount);
+        for (int i = 0; i < topicCount; i++) {
+            ResourceType resourceType = TOPIC_RESOURCE_TYPES[i % TOPIC_RESOURCE_TYPES.length];
+            String currentCriteria = i % 2 == 0 ? null : "status=finished,final";
+            ResourceTrigger trigger = new ResourceTrigger(resourceType,
+                Arrays.asList(MethodCriteria.CREATE, MethodCriteria.UPDATE), currentCriteria);
+            topics.add(new SubscriptionTopic("topic-" + i, "Topic " + i, topicUrl(i),
+                Collections.singletonList(trigger)));
+        }
+        return topics;
+    }
+
+    public static String topicUrl(int topic) {
+        return BASE_URL + "/SubscriptionTopic/topic-" + topic;
+    }
+
+    /**
+     * Create an active rest-hook subscription to a topic.
+     *
+     * @param id - the subscription id
+     * @param topic - the index of the topic
+     * @param criteria - the subscription criteria
+     * @return the subscription
+     */
+    public static Subscription subscription(String id, int topic, String criteria) {
+        Subscription subscription = new Subscription();
+        subscription.setId(id);
+        subscription.setStatus(SubscriptionStatus.ACTIVE);
+        subscription.setCriteria(criteria);
+        subscription.addExtension(new Extension(TOPIC_CANONICAL_EXT_URL, new UriType(topicUrl(topic))));
+        subscription.getChannel().setType(SubscriptionChannelType.RESTHOOK)
+            .setEndpoint("http://localhost:9090/notify/" + id);
+        return subscription;
+    }
+
+    /**
+     * Create the finished Encounter written in the benchmarks.
+     *
+     * @return the encounter
+     */
+    public static Encounter encounter() {
+        Encounter encounter = new Encounter();
+        encounter.setId("Encounter/enc-1/_history/2");
+        encounter.getMeta().setVersionId("2");
+        encounter.setStatus(EncounterStatus.FINISHED);
+        encounter.setSubject(new Reference("Patient/pat-1"));
+        encounter.addType().addCoding().setSystem("http://snomed.info/sct").setCode("185349003");
+        return encounter;
+    }
+
+    /**
+     * Create an Observation whose size grows with the number of components.
+     *
+     * @param components - the number of components
+     * @return the observation
+     */
+    public static Observation observation(int components) {
+        Observation observation = new Observation();
+        observation.setId("Observation/obs-1/_history/1");
+        observation.getMeta().setVersionId("1");
+        observation.setStatus(ObservationStatus.FINAL);
+        observation.setSubject(new Reference("Patient/pat-1"));
+        observation.getCode().addCoding().setSystem("http://loinc.org").setCode("85354-9");
+        for (int i = 0; i < components; i++) {
+            CodeableConcept code = new CodeableConcept();
+            code.addCoding().setSystem("http://loinc.org").setCode("8480-6").setDisplay("Component " + i);
+            observation.addComponent().setCode(code)
+                .setValue(new Quantity().setValue(100 + i).setUnit("mm[Hg]").setSystem("http://unitsofmeasure.org"));
+        }
+        return observation;
+    }
+}
@@ -0,0 +1,56 @@
+package org.mitre.hapifhir.benchmarks;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Resource;
+import org.mitre.hapifhir.client.IServerClient;
+
+/**
+ * IServerClient stub for benchmarks which answers searches from memory so no
+ * server round trip is measured. A search returns the stored resource with the
+ * searched type and _id, ignoring any other parameters.
+ */
+public class InMemoryServerClient implements IServerClient {
+    private final Map<String, Resource> resources = new HashMap<>();
+
+    /**
+     * Store a resource to be returned by searches.
+     *
+     * @param resource - the resource, which must have an id
+     */
+    public void add(Resource resource) {
+        this.resources.put(resource.fhirType() + "/" + resource.getIdElement().getIdPart(), resource);
+    }
+
+    @Override
+    public Bundle searchOnCriteria(String criteria) {
+        Bundle bundle = new Bundle();
+        bundle.setType(BundleType.SEARCHSET);
+        int queryStart = criteria.indexOf('?');
+        if (queryStart < 0) {
+            return bundle;
+        }
+        String resourceType = criteria.substring(0, queryStart);
+        for (String parameter : criteria.substring(queryStart + 1).split("&")) {
+            if (parameter.startsWith("_id=")) {
+                Resource resource = this.resources.get(resourceType + "/" + parameter.substring(4));
+                if (resource != null) {
+                    bundle.addEntry().setResource(resource);
+                }
+            }
+        }
+        bundle.setTotal(bundle.getEntry().size());
+        return bundle;
+    }
+
+    @Override
+    public MethodOutcome updateResource(IBaseResource resource) {
+        return new MethodOutcome(resource.getIdElement());
+    }
+}
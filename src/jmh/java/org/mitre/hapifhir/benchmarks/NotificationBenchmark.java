@@ -0,0 +1,125 @@
+package org.mitre.hapifhir.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.Subscription;
+import org.mitre.hapifhir.model.PayloadContent;
+import org.mitre.hapifhir.model.SubscriptionTopic.NotificationType;
+import org.mitre.hapifhir.utils.CreateNotification;
+import org.mitre.hapifhir.utils.EncodedResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Building and encoding the notifications for a single event sent to every
+ * subscriber, by resource size and number of subscribers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotificationBenchmark {
+    @Param({ "1", "100", "1000" })
+    public int resourceSize;
+
+    @Param({ "1", "10", "100" })
+    public int subscriberCount;
+
+    private FhirContext ctx;
+    private Observation observation;
+    private List<Subscription> subscriptions;
+    private String topicUrl;
+
+    /**
+     * Build the triggering resource and the subscribers.
+     */
+    @Setup
+    public void setup() {
+        this.ctx = FhirContext.forR4();
+        this.observation = BenchmarkData.observation(this.resourceSize);
+        this.topicUrl = BenchmarkData.topicUrl(0);
+        this.subscriptions = new ArrayList<>(this.subscriberCount);
+        for (int i = 0; i < this.subscriberCount; i++) {
+            this.subscriptions.add(BenchmarkData.subscription("sub-" + i, 0, "Observation?status=final"));
+        }
+    }
+
+    /**
+     * Build the notification Bundle for each subscriber.
+     *
+     * @param blackhole - consumes the notifications
+     */
+    @Benchmark
+    public void createResourceNotification(Blackhole blackhole) {
+        List<Resource> resources = Collections.singletonList(this.observation);
+        for (Subscription subscription : this.subscriptions) {
+            blackhole.consume(CreateNotification.createResourceNotification(subscription, resources,
+                BenchmarkData.BASE_URL, this.topicUrl, NotificationType.EVENT_NOTIFICATION));
+        }
+    }
+
+    /**
+     * Build and encode the full notification Bundle for each subscriber.
+     *
+     * @param blackhole - consumes the encoded notifications
+     */
+    @Benchmark
+    public void encodeEachNotification(Blackhole blackhole) {
+        List<Resource> resources = Collections.singletonList(this.observation);
+        for (Subscription subscription : this.subscriptions) {
+            Bundle notification = CreateNotification.createResourceNotification(subscription, resources,
+                BenchmarkData.BASE_URL, this.topicUrl, NotificationType.EVENT_NOTIFICATION);
+            blackhole.consume(this.ctx.newJsonParser().encodeResourceToString(notification));
+        }
+    }
+
+    /**
+     * Encode the resource once and share it between the notifications of every subscriber.
+     *
+     * @param blackhole - consumes the encoded notifications
+     */
+    @Benchmark
+    public void encodeSharedNotification(Blackhole blackhole) {
+        encodeNotifications(blackhole, PayloadContent.FULL_RESOURCE);
+    }
+
+    /**
+     * Encode an id-only notification for each subscriber.
+     *
+     * @param blackhole - consumes the encoded notifications
+     */
+    @Benchmark
+    public void encodeIdOnlyNotification(Blackhole blackhole) {
+        encodeNotifications(blackhole, PayloadContent.ID_ONLY);
+    }
+
+    private void encodeNotifications(Blackhole blackhole, PayloadContent payloadContent) {
+        List<EncodedResource> resources =
+            Collections.singletonList(new EncodedResource(this.observation, BenchmarkData.BASE_URL));
+        for (Subscription subscription : this.subscriptions) {
+            blackhole.consume(CreateNotification.encodeNotification(this.ctx, subscription, resources,
+                BenchmarkData.BASE_URL, this.topicUrl, NotificationType.EVENT_NOTIFICATION, payloadContent,
+                false));
+        }
+    }
+}
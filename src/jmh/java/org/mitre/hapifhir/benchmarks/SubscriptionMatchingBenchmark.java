@@ -0,0 +1,100 @@
+package org.mitre.hapifhir.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Subscription;
+import org.mitre.hapifhir.SubscriptionRegistry;
+import org.mitre.hapifhir.criteria.CriteriaEngine;
+import org.mitre.hapifhir.utils.SubscriptionHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding the subscriptions to notify of a write: the registry lookup for a topic
+ * followed by evaluating each candidate's criteria, as the interceptor does, and
+ * the server search fallback of SubscriptionHelper.matchesCriteria.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubscriptionMatchingBenchmark {
+    private static final int TOPIC_COUNT = 10;
+    private static final String[] CRITERIA = {
+        "Encounter?status=finished",
+        "Encounter?status=in-progress",
+        "Encounter?subject=Patient/pat-1",
+        "Encounter?type=http://snomed.info/sct|185349003",
+        "Observation?status=final"
+    };
+
+    @Param({ "10", "1000", "10000" })
+    public int subscriptionCount;
+
+    private InMemoryServerClient serverClient;
+    private SubscriptionRegistry registry;
+    private CriteriaEngine criteriaEngine;
+    private Encounter encounter;
+    private String topicUrl;
+
+    /**
+     * Register the subscriptions, spread over the topics and criteria.
+     */
+    @Setup
+    public void setup() {
+        this.serverClient = new InMemoryServerClient();
+        this.encounter = BenchmarkData.encounter();
+        this.serverClient.add(this.encounter);
+        this.registry = new SubscriptionRegistry(this.serverClient);
+        for (int i = 0; i < this.subscriptionCount; i++) {
+            this.registry.register(BenchmarkData.subscription("sub-" + i, i % TOPIC_COUNT,
+                CRITERIA[i % CRITERIA.length]));
+        }
+        this.criteriaEngine = new CriteriaEngine(FhirContext.forR4(), this.serverClient);
+        this.topicUrl = BenchmarkData.topicUrl(0);
+    }
+
+    /**
+     * Get the candidate subscriptions for the topic and evaluate their criteria in process.
+     *
+     * @return the number of subscriptions to notify
+     */
+    @Benchmark
+    public int subscriptionsToNotify() {
+        int matched = 0;
+        List<Subscription> candidates = this.registry.getSubscriptions(this.topicUrl, "Encounter");
+        for (Subscription subscription : candidates) {
+            if (this.criteriaEngine.matches(SubscriptionHelper.getCriteria(subscription), this.encounter)) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    @Benchmark
+    public boolean criteriaEngineMatches() {
+        return this.criteriaEngine.matches(Collections.singletonList(CRITERIA[0]), this.encounter);
+    }
+
+    @Benchmark
+    public boolean matchesCriteria() {
+        return SubscriptionHelper.matchesCriteria(Collections.singletonList(CRITERIA[0]), this.encounter,
+            this.serverClient);
+    }
+}
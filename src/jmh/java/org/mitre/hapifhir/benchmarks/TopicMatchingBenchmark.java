@@ -0,0 +1,81 @@
+package org.mitre.hapifhir.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.Encounter;
+import org.mitre.hapifhir.TriggerDispatchTable;
+import org.mitre.hapifhir.criteria.CriteriaEngine;
+import org.mitre.hapifhir.model.ResourceTrigger;
+import org.mitre.hapifhir.model.SubscriptionTopic;
+import org.mitre.hapifhir.utils.SubscriptionHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding the SubscriptionTopics triggered by a write, through the dispatch table
+ * and through a linear scan of every trigger with requestTypeMatches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopicMatchingBenchmark {
+    @Param({ "1", "10", "100" })
+    public int topicCount;
+
+    private List<SubscriptionTopic> topics;
+    private TriggerDispatchTable dispatchTable;
+    private CriteriaEngine criteriaEngine;
+    private Encounter encounter;
+
+    /**
+     * Build the topics and the dispatch table.
+     */
+    @Setup
+    public void setup() {
+        this.topics = BenchmarkData.topics(this.topicCount);
+        this.dispatchTable = new TriggerDispatchTable(this.topics);
+        this.criteriaEngine = new CriteriaEngine(FhirContext.forR4(), new InMemoryServerClient());
+        this.encounter = BenchmarkData.encounter();
+    }
+
+    @Benchmark
+    public List<SubscriptionTopic> dispatchTable() {
+        return this.dispatchTable.match(RequestTypeEnum.PUT, this.encounter, this.criteriaEngine);
+    }
+
+    /**
+     * Scan every trigger of every topic for the resource type and request type.
+     *
+     * @return the number of matching topics
+     */
+    @Benchmark
+    public int requestTypeMatches() {
+        int matched = 0;
+        for (SubscriptionTopic topic : this.topics) {
+            for (ResourceTrigger trigger : topic.getResourceTriggers()) {
+                if (trigger.getResourceType() == this.encounter.getResourceType()
+                    && SubscriptionHelper.requestTypeMatches(RequestTypeEnum.PUT, trigger.getMethodCriteria(),
+                      this.encounter)) {
+                    matched++;
+                }
+            }
+        }
+        return matched;
+    }
+}
@@ -10,31 +10,66 @@ import ca.uhn.fhir.rest.api.RequestTypeEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
 
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.HttpClients;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
-import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.ResourceType;
-import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.Subscription;
 import org.hl7.fhir.r4.model.Subscription.SubscriptionChannelType;
 import org.hl7.fhir.r4.model.Subscription.SubscriptionStatus;
+import org.mitre.hapifhir.changefeed.IChangeFeed;
+import org.mitre.hapifhir.changefeed.SubscriptionChange;
+import org.mitre.hapifhir.changefeed.SubscriptionChange.ChangeType;
+import org.mitre.hapifhir.client.CachingServerClient;
 import org.mitre.hapifhir.client.IServerClient;
-import org.mitre.hapifhir.model.ResourceTrigger;
+import org.mitre.hapifhir.client.ResourceVersionCache;
+import org.mitre.hapifhir.criteria.CriteriaEngine;
+import org.mitre.hapifhir.delivery.DeliveryPolicy;
+import org.mitre.hapifhir.delivery.HeartbeatScheduler;
+import org.mitre.hapifhir.delivery.IDeliveryClient;
+import org.mitre.hapifhir.delivery.NotificationBatcher;
+import org.mitre.hapifhir.delivery.NotificationDelivery;
+import org.mitre.hapifhir.delivery.NotificationDelivery.DeliveryCallback;
+import org.mitre.hapifhir.delivery.NotificationDispatcher;
+import org.mitre.hapifhir.delivery.NotificationDispatcher.DiscardableTask;
+import org.mitre.hapifhir.delivery.NotificationOutbox;
+import org.mitre.hapifhir.delivery.WebhookClient;
+import org.mitre.hapifhir.metrics.HistogramMetricsListener;
+import org.mitre.hapifhir.metrics.IMetricsListener;
+import org.mitre.hapifhir.metrics.IMetricsListener.Stage;
+import org.mitre.hapifhir.model.ResourceTrigger.MethodCriteria;
 import org.mitre.hapifhir.model.SubscriptionTopic;
 import org.mitre.hapifhir.model.SubscriptionTopic.NotificationType;
 import org.mitre.hapifhir.utils.CreateNotification;
+import org.mitre.hapifhir.utils.EncodedResource;
 import org.mitre.hapifhir.utils.SubscriptionHelper;
+import org.mitre.hapifhir.utils.SubscriptionRequestScanner;
+import org.mitre.hapifhir.utils.SubscriptionRequestScanner.ScanResult;
+import org.mitre.hapifhir.utils.TransactionHelper;
+import org.mitre.hapifhir.utils.TransactionHelper.TransactionEntry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,7 +85,39 @@ public class SubscriptionInterceptor {
     private IParser jparser;
     private FhirContext myCtx;
     private IServerClient serverClient;
-    private List<SubscriptionTopic> subscriptionTopics;
+    private SubscriptionRegistry subscriptionRegistry;
+    private CriteriaEngine criteriaEngine;
+    private NotificationDispatcher notificationDispatcher;
+    private NotificationBatcher notificationBatcher;
+    private NotificationDelivery notificationDelivery;
+    private HeartbeatScheduler heartbeatScheduler;
+    private IDeliveryClient deliveryClient;
+    private final TopicRegistry topicRegistry;
+    private volatile boolean prettyPrint = false;
+    private volatile NotificationOutbox outbox;
+    private final AtomicBoolean registryLoadQueued = new AtomicBoolean();
+    // Writes which matched a topic and subscriptions to set to error while the registry was not loaded
+    private final Queue<List<MatchedEntry>> heldEvents = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger heldEventCount = new AtomicInteger();
+    private final Set<String> heldSubscriptionErrors = ConcurrentHashMap.newKeySet();
+    private volatile boolean handshakeEnabled = true;
+    private volatile long handshakeTimeoutMs = DEFAULT_HANDSHAKE_TIMEOUT_MS;
+    private volatile IMetricsListener metricsListener = new HistogramMetricsListener();
+    private volatile IChangeFeed changeFeed;
+    // Publishes changes in order off the request thread, unbounded since Subscription changes are rare
+    private final ExecutorService changePublisher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "subscription-change-publisher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile ResourceVersionCache versionCache;
+    private final String nodeId = UUID.randomUUID().toString();
+    // Latest version of each subscription written or deleted on any node, deletes are kept as tombstones
+    private final Map<String, SeenVersion> subscriptionVersions = new ConcurrentHashMap<>();
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+    private static final int MAX_HELD_EVENTS = 10000;
+    public static final long DEFAULT_HANDSHAKE_TIMEOUT_MS = 10000;
 
     /**
      * Create a new interceptor.
@@ -62,54 +129,420 @@ public class SubscriptionInterceptor {
      */
     public SubscriptionInterceptor(String url, FhirContext ctx, IServerClient serverClient,
       List<SubscriptionTopic> subscriptionTopics) {
+        this(url, ctx, serverClient, subscriptionTopics, new NotificationDispatcher());
+    }
+
+    /**
+     * Create a new interceptor.
+     * 
+     * @param url - the server base url
+     * @param ctx - the fhir context to use
+     * @param serverClient - the client used to interact with the server
+     * @param subscriptionTopics - list of subscription topics this server supports
+     * @param notificationDispatcher - the dispatcher used to deliver notifications off the request thread
+     */
+    public SubscriptionInterceptor(String url, FhirContext ctx, IServerClient serverClient,
+      List<SubscriptionTopic> subscriptionTopics, NotificationDispatcher notificationDispatcher) {
+        this(url, ctx, serverClient, subscriptionTopics, notificationDispatcher, new WebhookClient());
+    }
+
+    /**
+     * Create a new interceptor.
+     * 
+     * @param url - the server base url
+     * @param ctx - the fhir context to use
+     * @param serverClient - the client used to interact with the server
+     * @param subscriptionTopics - list of subscription topics this server supports
+     * @param notificationDispatcher - the dispatcher used to deliver notifications off the request thread
+     * @param deliveryClient - the http client used to post notifications to rest-hook endpoints, e.g. a
+     *     pooled WebhookClient or a non-blocking AsyncWebhookClient
+     */
+    public SubscriptionInterceptor(String url, FhirContext ctx, IServerClient serverClient,
+      List<SubscriptionTopic> subscriptionTopics, NotificationDispatcher notificationDispatcher,
+      IDeliveryClient deliveryClient) {
+        this(url, ctx, serverClient, subscriptionTopics, notificationDispatcher, deliveryClient,
+          new DeliveryPolicy());
+    }
+
+    /**
+     * Create a new interceptor.
+     * 
+     * @param url - the server base url
+     * @param ctx - the fhir context to use
+     * @param serverClient - the client used to interact with the server
+     * @param subscriptionTopics - list of subscription topics this server supports
+     * @param notificationDispatcher - the dispatcher used to deliver notifications off the request thread
+     * @param deliveryClient - the http client used to post notifications to rest-hook endpoints, e.g. a
+     *     pooled WebhookClient or a non-blocking AsyncWebhookClient
+     * @param deliveryPolicy - the retry and circuit breaker policy for failed notifications
+     */
+    public SubscriptionInterceptor(String url, FhirContext ctx, IServerClient serverClient,
+      List<SubscriptionTopic> subscriptionTopics, NotificationDispatcher notificationDispatcher,
+      IDeliveryClient deliveryClient, DeliveryPolicy deliveryPolicy) {
         this.baseUrl = url;
         this.myCtx = ctx;
         this.serverClient = serverClient;
-        this.subscriptionTopics = subscriptionTopics;
+        this.topicRegistry = new TopicRegistry(subscriptionTopics);
+        this.topicRegistry.addListener(snapshot -> publishTopicsChanged());
         this.jparser = this.myCtx.newJsonParser();
+        this.subscriptionRegistry = new SubscriptionRegistry(serverClient);
+        this.criteriaEngine = new CriteriaEngine(ctx, serverClient);
+        this.versionCache = new ResourceVersionCache(ctx, serverClient);
+        this.notificationDispatcher = notificationDispatcher;
+        this.notificationBatcher = new NotificationBatcher((subscription, topicUrl, resources) ->
+            dispatchNotification(subscription, topicUrl, resources, NotificationType.EVENT_NOTIFICATION));
+        this.deliveryClient = deliveryClient;
+        this.notificationDelivery =
+            new NotificationDelivery(deliveryClient, notificationDispatcher, deliveryPolicy);
+        this.notificationDelivery.setMetricsListener(this.metricsListener);
+        this.heartbeatScheduler = new HeartbeatScheduler(this::sendHeartbeat);
+        this.subscriptionRegistry.addListener(new SubscriptionRegistry.Listener() {
+            @Override
+            public void onRegistered(Subscription subscription) {
+                heartbeatScheduler.schedule(subscription.getIdElement().getIdPart(),
+                    TimeUnit.SECONDS.toMillis(SubscriptionHelper.getHeartbeatPeriod(subscription)));
+            }
+
+            @Override
+            public void onRemoved(String subscriptionId) {
+                heartbeatScheduler.cancel(subscriptionId);
+            }
+        });
+    }
+
+    /**
+     * Get the registry of active subscriptions used by this interceptor.
+     *
+     * @return the subscription registry
+     */
+    public SubscriptionRegistry getSubscriptionRegistry() {
+        return this.subscriptionRegistry;
+    }
+
+    /**
+     * Get the registry of the supported SubscriptionTopics, e.g. to replace the topics
+     * at runtime with setTopics or to watch a topic file with a TopicFileWatcher.
+     * Share it with the TopicListInterceptor so $topic-list follows the changes.
+     *
+     * @return the topic registry
+     */
+    public TopicRegistry getTopicRegistry() {
+        return this.topicRegistry;
+    }
+
+    /**
+     * Get the batcher which coalesces events for subscriptions with a backport-max-count
+     * greater than one, e.g. to configure the max delay of a batch.
+     *
+     * @return the notification batcher
+     */
+    public NotificationBatcher getNotificationBatcher() {
+        return this.notificationBatcher;
+    }
+
+    /**
+     * Set whether notifications are pretty printed. Notifications are compact by
+     * default, which lets the resource entries be encoded once and shared by every
+     * subscription notified of the same event.
+     *
+     * @param prettyPrint - true to pretty print notifications
+     */
+    public void setPrettyPrint(boolean prettyPrint) {
+        this.prettyPrint = prettyPrint;
+    }
+
+    /**
+     * Get the listener recording the latency of each stage of matching and delivering
+     * notifications. By default this is a HistogramMetricsListener.
+     *
+     * @return the metrics listener
+     */
+    public IMetricsListener getMetricsListener() {
+        return this.metricsListener;
+    }
+
+    /**
+     * Set the listener recording the latency of each stage of matching and delivering
+     * notifications, e.g. a MicrometerMetricsListener.
+     *
+     * @param metricsListener - the metrics listener
+     */
+    public void setMetricsListener(IMetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+        this.notificationDelivery.setMetricsListener(metricsListener);
+    }
+
+    /**
+     * Set whether requested rest-hook subscriptions are sent a handshake before they
+     * are activated. When enabled (the default) a requested subscription stays
+     * requested until its endpoint accepts the handshake, and is set to error once
+     * the delivery policy's retries are exhausted. When disabled requested
+     * subscriptions are activated immediately.
+     *
+     * @param handshakeEnabled - true to handshake before activating subscriptions
+     */
+    public void setHandshakeEnabled(boolean handshakeEnabled) {
+        this.handshakeEnabled = handshakeEnabled;
+    }
+
+    /**
+     * Set how long each handshake attempt waits for the endpoint to respond.
+     *
+     * @param timeout - the timeout of a handshake attempt
+     * @param unit - the unit of the timeout
+     */
+    public void setHandshakeTimeout(long timeout, TimeUnit unit) {
+        this.handshakeTimeoutMs = unit.toMillis(timeout);
+    }
+
+    /**
+     * Get the delivery used to post notifications, e.g. to check the circuit state of an endpoint.
+     *
+     * @return the notification delivery
+     */
+    public NotificationDelivery getNotificationDelivery() {
+        return this.notificationDelivery;
+    }
+
+    /**
+     * Journal notifications in a durable outbox before they are dispatched so
+     * notifications which are not delivered before the process stops are replayed
+     * on the next start. Notifications pending in the outbox are replayed now.
+     * Events still waiting in a batch are not journaled until the batch is flushed.
+     *
+     * @param outbox - the outbox to journal notifications in
+     */
+    public void setOutbox(NotificationOutbox outbox) {
+        this.outbox = outbox;
+        List<NotificationOutbox.Entry> pendingEntries = outbox.replay();
+        if (!pendingEntries.isEmpty()) {
+            myLogger.info("Replaying " + pendingEntries.size() + " notifications from the outbox");
+        }
+        for (NotificationOutbox.Entry entry : pendingEntries) {
+            this.notificationDispatcher.dispatch(() -> replayNotification(entry));
+        }
+    }
+
+    /**
+     * Share subscription changes with the other nodes of a cluster. Subscriptions
+     * written, deleted, activated or errored through this node are published to the
+     * feed, and changes published by other nodes are applied to this node's registry.
+     *
+     * @param changeFeed - the change feed shared by every node, e.g. a JdbcChangeFeed
+     */
+    public void setChangeFeed(IChangeFeed changeFeed) {
+        this.changeFeed = changeFeed;
+        changeFeed.addListener(this::applyChange);
+    }
+
+    /**
+     * Replace the cache of the latest seen resource versions which previous criteria
+     * and delete triggers are evaluated against, e.g. to change its maximum size.
+     *
+     * @param versionCache - the version cache
+     */
+    public void setVersionCache(ResourceVersionCache versionCache) {
+        this.versionCache = versionCache;
+    }
+
+    /**
+     * Flush open batches, stop accepting notifications and retries, wait for the queued
+     * notifications to be delivered and close the pooled webhook connections, the outbox
+     * and the change feed.
+     */
+    @PreDestroy
+    public void shutdown() {
+        this.heartbeatScheduler.shutdown();
+        this.notificationBatcher.shutdown();
+        this.notificationDelivery.shutdown();
+        this.notificationDispatcher.shutdown(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        this.changePublisher.shutdown();
+        try {
+            if (!this.changePublisher.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                myLogger.warn("Subscription changes were not published to the change feed before shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            this.deliveryClient.close();
+        } catch (IOException e) {
+            myLogger.error("Error closing delivery client", e);
+        }
+        if (this.outbox != null) {
+            try {
+                this.outbox.close();
+            } catch (IOException e) {
+                myLogger.error("Error closing notification outbox", e);
+            }
+        }
+        if (this.changeFeed != null) {
+            try {
+                this.changeFeed.close();
+            } catch (IOException e) {
+                myLogger.error("Error closing change feed", e);
+            }
+        }
     }
 
     /**
      * Hook for server incoming request post processed pointcut. This handles
-     * setting a requested subscription status to active. 
+     * setting a requested subscription status to active, unless it is waiting on a
+     * handshake. The request has not been handled yet, so the registry is only
+     * changed once the response shows the write succeeded.
      * 
      * @param theRequestDetails - HAPI interceptor request details
      */
     @Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
     public void processSubscriptions(RequestDetails theRequestDetails) {
+        // Load the registry on the first request so heartbeats for the existing subscriptions
+        // start without waiting for a write
+        queueRegistryLoad();
+
         String resourceName = theRequestDetails.getResourceName();
         if (resourceName != null && resourceName.equals("Subscription")) {
             RequestTypeEnum requestType = theRequestDetails.getRequestType();
             if (requestType.equals(RequestTypeEnum.POST) || requestType.equals(RequestTypeEnum.PUT)) {
-                try {
-                    Subscription subscription = 
-                        this.jparser.parseResource(Subscription.class, theRequestDetails.getReader());
-                    if (subscription.getStatus().equals(SubscriptionStatus.REQUESTED)) {
-                        if (subscription.getChannel().getType().equals(SubscriptionChannelType.RESTHOOK)) {
-                            subscription.setStatus(SubscriptionStatus.ACTIVE);
-                            myLogger.info(subscription.getId() + " status set to active.");
-                        } else {
-                            subscription.setStatus(SubscriptionStatus.ERROR);
-                            myLogger.info(subscription.getId() 
-                                + " requested with invalid channel. Currently only rest hook supported.");
-                        }
-                    }
-
-                    // The line above which parses the resource consumes the input strean so we must
-                    // reset it again for handlers down the line
-                    String newInputStream = this.jparser.encodeResourceToString(subscription);
-                    theRequestDetails.setRequestContents(newInputStream.getBytes());
-                } catch (DataFormatException | IOException e) {
-                    myLogger.error("Error reading requested Subscription from stream", e);
+                processRequestedSubscription(theRequestDetails);
+            }
+        }
+    }
+
+    /**
+     * Queue a load of the subscription registry on the dispatcher unless it is loaded
+     * or a load is already queued. The load searches this server, so it must not
+     * block the request thread. A failed load is queued again on a later request.
+     */
+    private void queueRegistryLoad() {
+        if (!this.subscriptionRegistry.isLoaded() && this.registryLoadQueued.compareAndSet(false, true)) {
+            boolean queued = this.notificationDispatcher.tryDispatch(new DiscardableTask() {
+                @Override
+                public void run() {
+                    subscriptionRegistry.ensureLoaded();
+                    registryLoadQueued.set(false);
+                    releaseHeldEvents();
                 }
+
+                @Override
+                public void discarded() {
+                    registryLoadQueued.set(false);
+                }
+            });
+            if (!queued) {
+                this.registryLoadQueued.set(false);
             }
         }
     }
 
+    /**
+     * Hold the writes which matched a topic until the subscription registry is
+     * loaded, since until then there is nobody to match them against. The resources
+     * are copied as the server may still change them. Once MAX_HELD_EVENTS resources
+     * are held further writes are not notified.
+     *
+     * @param matchedEntries - the written resources and the topics they matched
+     */
+    private void holdEvents(List<MatchedEntry> matchedEntries) {
+        if (this.heldEventCount.addAndGet(matchedEntries.size()) > MAX_HELD_EVENTS) {
+            this.heldEventCount.addAndGet(-matchedEntries.size());
+            myLogger.warn("Subscription registry is not loaded, not notifying " + matchedEntries.size()
+                + " written resources");
+            return;
+        }
+
+        List<MatchedEntry> copies = new ArrayList<>(matchedEntries.size());
+        for (MatchedEntry matchedEntry : matchedEntries) {
+            copies.add(new MatchedEntry(matchedEntry.resource.copy(), matchedEntry.subscriptionTopics));
+        }
+        this.heldEvents.add(copies);
+        queueRegistryLoad();
+        // The load may have completed before the events were held
+        releaseHeldEvents();
+    }
+
+    /**
+     * Notify the writes and set the subscriptions to error which were held while
+     * the subscription registry was not loaded. Does nothing until it is loaded.
+     */
+    private void releaseHeldEvents() {
+        if (!this.subscriptionRegistry.isLoaded()) {
+            return;
+        }
+
+        List<MatchedEntry> matchedEntries;
+        while ((matchedEntries = this.heldEvents.poll()) != null) {
+            this.heldEventCount.addAndGet(-matchedEntries.size());
+            notifyMatchedEntries(matchedEntries);
+        }
+        for (String subscriptionId : this.heldSubscriptionErrors) {
+            if (this.heldSubscriptionErrors.remove(subscriptionId)) {
+                Subscription subscription = this.subscriptionRegistry.get(subscriptionId);
+                if (subscription != null) {
+                    setSubscriptionError(subscription);
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the status of a requested Subscription being written. The request body is
+     * only scanned for the status and channel type, and it is only parsed and
+     * rewritten when the status changes. JSON and XML bodies are supported.
+     *
+     * @param theRequestDetails - HAPI interceptor request details of the Subscription write
+     */
+    private void processRequestedSubscription(RequestDetails theRequestDetails) {
+        // Loaded contents are kept by the request details for handlers down the line
+        byte[] contents = theRequestDetails.loadRequestContents();
+        if (contents == null || contents.length == 0) {
+            return;
+        }
+        boolean xml = SubscriptionRequestScanner.isXml(theRequestDetails.getHeader("Content-Type"), contents);
+        ScanResult scan = SubscriptionRequestScanner.scan(contents, xml);
+        if (scan == null) {
+            myLogger.error("Error reading requested Subscription from request, leaving it to the server");
+            return;
+        }
+        if (!SubscriptionStatus.REQUESTED.toCode().equals(scan.getStatus())) {
+            return;
+        }
+
+        String label = theRequestDetails.getId() != null
+            ? "Subscription/" + theRequestDetails.getId().getIdPart() : "Subscription";
+        SubscriptionStatus newStatus;
+        if (SubscriptionChannelType.RESTHOOK.toCode().equals(scan.getChannelType())) {
+            if (this.handshakeEnabled) {
+                // Activated once the endpoint accepts the handshake
+                myLogger.info(label + " will be activated after handshake.");
+                return;
+            }
+            newStatus = SubscriptionStatus.ACTIVE;
+            myLogger.info(label + " status set to active.");
+        } else {
+            newStatus = SubscriptionStatus.ERROR;
+            myLogger.info(label + " requested with invalid channel. Currently only rest hook supported.");
+        }
+
+        try {
+            IParser parser = xml ? this.myCtx.newXmlParser() : this.jparser;
+            Subscription subscription =
+                parser.parseResource(Subscription.class, new String(contents, StandardCharsets.UTF_8));
+            subscription.setStatus(newStatus);
+            theRequestDetails.setRequestContents(
+                parser.encodeResourceToString(subscription).getBytes(StandardCharsets.UTF_8));
+        } catch (DataFormatException e) {
+            myLogger.error("Error reading requested Subscription from request", e);
+        }
+    }
+
     /**
      * Hook for server outgoing response pointcut. This handles checking
      * if any subscriptions need to be notified. At this pointcut the 
-     * resource is accessible and all HAPI processing is complete.
+     * resource is accessible and all HAPI processing is complete. Created,
+     * updated, patched and deleted subscriptions are also recorded in the registry
+     * here since the response carries the server assigned id and is only sent
+     * when the write succeeded. Notifications are only
+     * queued here and delivered by the notification dispatcher.
      * 
      * @param theRequestDetails - HAPI interceptor request details
      * @param theResource - the resource being returned by the request
@@ -117,167 +550,815 @@ public class SubscriptionInterceptor {
      */
     @Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
     public boolean outgoingResponse(RequestDetails theRequestDetails, IBaseResource theResource) {
-        // Determine which SubscriptionTopics, if any, should be triggered
         RequestTypeEnum requestType = theRequestDetails.getRequestType();
-        if (requestType.equals(RequestTypeEnum.DELETE) 
+        if (requestType.equals(RequestTypeEnum.DELETE) && !(theResource instanceof Bundle)) {
+            // The response to a delete is not the deleted resource
+            invalidateCachedSearches(theRequestDetails, false);
+            if ("Subscription".equals(theRequestDetails.getResourceName()) && theRequestDetails.getId() != null) {
+                removeSubscription(theRequestDetails.getId().getIdPart());
+            }
+            notifyDelete(theRequestDetails);
+            return true;
+        }
+        if (!(theResource instanceof Resource)
+            || !(requestType.equals(RequestTypeEnum.DELETE) 
             || requestType.equals(RequestTypeEnum.POST) 
-            || requestType.equals(RequestTypeEnum.PUT)) {
-            List<SubscriptionTopic> matchedSubscriptionTopics = 
-              getSubscriptionTopics(theRequestDetails, theResource);
-            if (!matchedSubscriptionTopics.isEmpty()) { 
-                Bundle results = this.serverClient.searchOnCriteria("Subscription?status=active");
-                for (SubscriptionTopic subscriptionTopic : matchedSubscriptionTopics) {
-                    myLogger.info("Checking subscriptions for topic " + subscriptionTopic.getName());
-                    // Find all subscriptions to be notified
-                    Resource resource = (Resource) theResource;
-                    String topicUrl = subscriptionTopic.getTopicUrl();
-                    for (Subscription subscription: getSubscriptionsToNotify(topicUrl, resource, results)) {
-                        Bundle notification = CreateNotification.createResourceNotification(subscription,
-                          Collections.singletonList(resource), this.baseUrl, topicUrl,
-                          NotificationType.EVENT_NOTIFICATION);
-                        if (notification != null) {
-                            sendNotification(subscription, notification);
-                        }
-                    }
+            || requestType.equals(RequestTypeEnum.PUT)
+            || requestType.equals(RequestTypeEnum.PATCH))) {
+            return true;
+        }
+
+        boolean isTransaction =
+            theResource instanceof Bundle && TransactionHelper.isTransactionResponse((Bundle) theResource);
+        invalidateCachedSearches(theRequestDetails, isTransaction);
+
+        List<TransactionEntry> entries;
+        if (isTransaction) {
+            // Expand transactions and batches so topics on the entries fire
+            Bundle response = (Bundle) theResource;
+            Bundle request = TransactionHelper.needsRequestBundle(response)
+                ? getRequestBundle(theRequestDetails) : null;
+            entries = new ArrayList<>();
+            // A transaction processes its deletes first
+            for (IdType deletedId : TransactionHelper.getDeletedIds(response, request)) {
+                if ("Subscription".equals(deletedId.getResourceType())) {
+                    removeSubscription(deletedId.getIdPart());
+                }
+                TransactionEntry deleteEntry = getDeleteEntry(deletedId.getResourceType(), deletedId.getIdPart());
+                if (deleteEntry != null) {
+                    entries.add(deleteEntry);
                 }
             }
+            entries.addAll(TransactionHelper.expand(response, request));
+        } else {
+            Resource resource = (Resource) theResource;
+            entries = Collections.singletonList(
+              new TransactionEntry(resource, SubscriptionHelper.getInteractions(requestType, resource)));
         }
 
+        notifySubscriptions(entries);
         return true;
     }
 
     /**
-     * Find the SubscriptionTopics, if any which is triggered by this request.
-     * 
-     * @param theRequestDetails - HAPI interceptor request details
-     * @param theResource - the resource being returned by the request
-     * @return SubscriptionTopics which matches the current request
+     * Notify subscriptions to topics which trigger on the delete of a resource.
+     *
+     * @param theRequestDetails - the delete request
      */
-    private List<SubscriptionTopic> getSubscriptionTopics(RequestDetails theRequestDetails, 
-      IBaseResource theResource) {
-        List<SubscriptionTopic> matchedTopics = new ArrayList<>();
-        RequestTypeEnum requestType = theRequestDetails.getRequestType();
-        ResourceType resourceType = ResourceType.fromCode(theResource.fhirType());
-
-        for (SubscriptionTopic subscriptionTopic : this.subscriptionTopics) {
-            // TODO: I believe triggers of the same resourceType indicate AND while
-            //  triggers of different resourceType indicates OR
-            boolean isTopicMatch = false;
-            for (ResourceTrigger resourceTrigger : subscriptionTopic.getResourceTriggers()) {
-                // If requestType does not match methodCriteria there is no resourceTrigger match
-                if (!SubscriptionHelper.requestTypeMatches(requestType, 
-                  resourceTrigger.getMethodCriteria(), theResource)) {
-                    continue;
+    private void notifyDelete(RequestDetails theRequestDetails) {
+        String resourceName = theRequestDetails.getResourceName();
+        if (resourceName == null || theRequestDetails.getId() == null) {
+            return;
+        }
+        TransactionEntry deleteEntry = getDeleteEntry(resourceName, theRequestDetails.getId().getIdPart());
+        if (deleteEntry != null) {
+            notifySubscriptions(Collections.singletonList(deleteEntry));
+        }
+    }
+
+    /**
+     * Get the deleted version of a resource for topics which trigger on its delete.
+     * The deleted version is taken from the version cache, or read from history on
+     * this thread when it is not cached.
+     *
+     * @param resourceName - the type of the deleted resource
+     * @param id - the id of the deleted resource
+     * @return the delete entry, or null if no topic needs it or the deleted version was not found
+     */
+    private TransactionEntry getDeleteEntry(String resourceName, String id) {
+        ResourceType resourceType;
+        try {
+            resourceType = ResourceType.valueOf(resourceName);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!this.topicRegistry.getSnapshot().getTriggerDispatchTable().needsPreviousVersion(resourceType)) {
+            return null;
+        }
+
+        Resource deleted = this.versionCache.removeDeleted(resourceName, id);
+        if (deleted == null) {
+            myLogger.warn("Unable to find the deleted version of " + resourceName + "/" + id
+                + ", delete triggers are skipped");
+            return null;
+        }
+        return new TransactionEntry(deleted, EnumSet.of(MethodCriteria.DELETE));
+    }
+
+    /**
+     * Invalidate the cached searches of the written resource type when searches go
+     * through a CachingServerClient, so criteria are never matched against results
+     * cached before the write. A transaction may write any type so it invalidates all.
+     *
+     * @param theRequestDetails - the write request
+     * @param isTransaction - whether the request is a transaction or batch
+     */
+    private void invalidateCachedSearches(RequestDetails theRequestDetails, boolean isTransaction) {
+        if (!(this.serverClient instanceof CachingServerClient)) {
+            return;
+        }
+        CachingServerClient cachingServerClient = (CachingServerClient) this.serverClient;
+        if (isTransaction || theRequestDetails.getResourceName() == null) {
+            cachingServerClient.invalidateAll();
+        } else {
+            cachingServerClient.invalidate(theRequestDetails.getResourceName());
+        }
+    }
+
+    /**
+     * Match written resources against the topics and active subscriptions and queue
+     * the notifications. All entries are matched against the same snapshot of the
+     * subscription registry and the notifications are grouped per subscription, so a
+     * transaction results in one notification per subscriber rather than per entry.
+     * Each resource is encoded at most once no matter how many subscribers it goes to.
+     * Writes which match a topic before the registry is loaded are held until it is.
+     *
+     * @param entries - the written resources and how they were written
+     */
+    private void notifySubscriptions(List<TransactionEntry> entries) {
+        IMetricsListener metrics = this.metricsListener;
+        TriggerDispatchTable triggerDispatchTable = this.topicRegistry.getSnapshot().getTriggerDispatchTable();
+        List<MatchedEntry> matchedEntries = new ArrayList<>();
+        for (TransactionEntry entry : entries) {
+            Resource resource = entry.getResource();
+            if (resource instanceof Subscription && !entry.getInteractions().contains(MethodCriteria.DELETE)) {
+                Subscription subscription = (Subscription) resource;
+                registerSubscription(subscription);
+                if (this.handshakeEnabled && subscription.getStatus() == SubscriptionStatus.REQUESTED
+                    && subscription.getChannel().getType() == SubscriptionChannelType.RESTHOOK) {
+                    queueHandshake(subscription.copy());
+                }
+            }
+
+            // Determine which SubscriptionTopics, if any, should be triggered
+            long start = System.nanoTime();
+            ResourceVersionCache currentVersionCache = this.versionCache;
+            List<SubscriptionTopic> matchedSubscriptionTopics = triggerDispatchTable.match(
+                entry.getInteractions(), resource, () -> currentVersionCache.getPreviousVersion(resource),
+                this.criteriaEngine);
+            metrics.recordStage(Stage.TOPIC_MATCHING, System.nanoTime() - start);
+            // Remember this version as the previous one of the next write
+            if (!entry.getInteractions().contains(MethodCriteria.DELETE)
+                && triggerDispatchTable.needsPreviousVersion(resource.getResourceType())) {
+                currentVersionCache.put(resource);
+            }
+            if (!matchedSubscriptionTopics.isEmpty()) {
+                matchedEntries.add(new MatchedEntry(resource, matchedSubscriptionTopics));
+            }
+        }
+
+        if (matchedEntries.isEmpty()) {
+            return;
+        }
+        if (!this.subscriptionRegistry.isLoaded()) {
+            // The registry is never loaded on the request thread
+            holdEvents(matchedEntries);
+            return;
+        }
+        notifyMatchedEntries(matchedEntries);
+    }
+
+    /**
+     * Notify the subscriptions to the topics matched by the written resources,
+     * grouping the notifications per subscription.
+     *
+     * @param matchedEntries - the written resources and the topics they matched
+     */
+    private void notifyMatchedEntries(List<MatchedEntry> matchedEntries) {
+        IMetricsListener metrics = this.metricsListener;
+        Map<String, List<Subscription>> candidateSnapshot = new HashMap<>();
+        Map<String, PendingNotification> pendingNotifications = new LinkedHashMap<>();
+        for (MatchedEntry matchedEntry : matchedEntries) {
+            Resource resource = matchedEntry.resource;
+            EncodedResource encodedResource = new EncodedResource(resource, this.baseUrl);
+            for (SubscriptionTopic subscriptionTopic : matchedEntry.subscriptionTopics) {
+                if (myLogger.isDebugEnabled()) {
+                    myLogger.debug("Checking subscriptions for topic " + subscriptionTopic.getName());
                 }
+                // Find all subscriptions to be notified
+                String topicUrl = subscriptionTopic.getTopicUrl();
+                long start = System.nanoTime();
+                List<Subscription> candidates = candidateSnapshot.computeIfAbsent(
+                    topicUrl + "|" + resource.fhirType(),
+                    k -> this.subscriptionRegistry.getSubscriptions(topicUrl, resource.fhirType()));
+                metrics.recordStage(Stage.SUBSCRIPTION_LOOKUP, System.nanoTime() - start);
 
-                // If resourceType does not match there is no resourceTrigger match
-                if (!resourceType.equals(resourceTrigger.getResourceType())) {
-                    continue;
+                start = System.nanoTime();
+                List<Subscription> subscriptionsToNotify =
+                    getSubscriptionsToNotify(topicUrl, candidates, resource);
+                metrics.recordStage(Stage.CRITERIA_EVALUATION, System.nanoTime() - start);
+                for (Subscription subscription : subscriptionsToNotify) {
+                    pendingNotifications.computeIfAbsent(
+                        subscription.getIdElement().getIdPart() + "|" + topicUrl,
+                        k -> new PendingNotification(subscription, topicUrl)).resources.add(encodedResource);
                 }
-                
-                // If query criteria does not match there is no resourceTrigger match
-                String currentCriteria = resourceTrigger.getCurrentCriteria();
-                String queryCriteria = resourceType.name() + "?" + currentCriteria;
-                if (currentCriteria != null && !SubscriptionHelper.matchesCriteria(
-                  Collections.singletonList(queryCriteria), (Resource) theResource, this.serverClient)) {
-                    continue;
+            }
+        }
+
+        for (PendingNotification pending : pendingNotifications.values()) {
+            int maxCount = SubscriptionHelper.getMaxCount(pending.subscription);
+            if (maxCount > 1) {
+                for (EncodedResource resource : pending.resources) {
+                    this.notificationBatcher.add(pending.subscription, pending.topicUrl, resource, maxCount);
                 }
+            } else if (maxCount == 1) {
+                for (EncodedResource resource : pending.resources) {
+                    dispatchNotification(pending.subscription, pending.topicUrl,
+                      Collections.singletonList(resource), NotificationType.EVENT_NOTIFICATION);
+                }
+            } else {
+                dispatchNotification(pending.subscription, pending.topicUrl, pending.resources,
+                    NotificationType.EVENT_NOTIFICATION);
+            }
+        }
+    }
 
-                // If we get here all criteria is met so the topic is a match
-                isTopicMatch = true;
+    /**
+     * Helper function to get the transaction or batch Bundle posted by the client.
+     *
+     * @param theRequestDetails - HAPI interceptor request details
+     * @return the request bundle, or null if it could not be read
+     */
+    private Bundle getRequestBundle(RequestDetails theRequestDetails) {
+        try {
+            byte[] contents = theRequestDetails.loadRequestContents();
+            if (contents == null || contents.length == 0) {
+                return null;
             }
+            String contentType = theRequestDetails.getHeader("Content-Type");
+            IParser parser = contentType != null && contentType.contains("xml")
+                ? this.myCtx.newXmlParser() : this.myCtx.newJsonParser();
+            return parser.parseResource(Bundle.class, new String(contents, StandardCharsets.UTF_8));
+        } catch (DataFormatException e) {
+            myLogger.error("Error reading transaction Bundle from request", e);
+            return null;
+        }
+    }
+
+    /**
+     * Queue a notification to be built and sent by the dispatcher. When an outbox
+     * is set the notification is built and journaled before it is queued.
+     *
+     * @param subscription - the subscription to notify
+     * @param topicUrl - the canonical url of the topic
+     * @param resources - the resources to include in the notification
+     * @param notificationType - R5 Subscription Notification Type Value Set
+     */
+    private void dispatchNotification(Subscription subscription, String topicUrl,
+      List<EncodedResource> resources, NotificationType notificationType) {
+        NotificationOutbox currentOutbox = this.outbox;
+        if (currentOutbox == null) {
+            this.notificationDispatcher.dispatch(() -> sendNotification(subscription,
+                encodeNotification(subscription, topicUrl, resources, notificationType), null));
+            return;
+        }
 
-            if (isTopicMatch) {
-                matchedTopics.add(subscriptionTopic);
+        // If the dispatcher rejects or drops the delivery the entry stays pending and is replayed
+        String notification = encodeNotification(subscription, topicUrl, resources, notificationType);
+        NotificationOutbox.Entry entry = appendToOutbox(currentOutbox, subscription, notification);
+        this.notificationDispatcher.dispatch(() -> sendNotification(subscription, notification, entry));
+    }
+
+    /**
+     * Helper function to build a notification.
+     *
+     * @param subscription - the subscription to notify
+     * @param topicUrl - the canonical url of the topic
+     * @param resources - the resources to include in the notification
+     * @param notificationType - R5 Subscription Notification Type Value Set
+     * @return the notification bundle encoded as JSON
+     */
+    private String encodeNotification(Subscription subscription, String topicUrl,
+      List<EncodedResource> resources, NotificationType notificationType) {
+        IMetricsListener metrics = this.metricsListener;
+        long start = System.nanoTime();
+        Bundle notification = CreateNotification.createResourceNotification(subscription, null, this.baseUrl,
+            topicUrl, notificationType);
+        long built = System.nanoTime();
+        metrics.recordStage(Stage.NOTIFICATION_BUILD, built - start);
+
+        String payload = CreateNotification.encodeNotification(this.myCtx, notification, resources,
+            SubscriptionHelper.getPayloadContent(subscription), this.prettyPrint);
+        metrics.recordStage(Stage.SERIALIZATION, System.nanoTime() - built);
+        return payload;
+    }
+
+    /**
+     * Queue the handshake of a requested subscription on the dispatcher, since it is
+     * encoded and submitted to the delivery scheduler, which may block under the BLOCK
+     * policy, and it must not hold up the request thread. If the dispatcher queue is
+     * full the handshake is not sent and the subscription remains requested.
+     *
+     * @param subscription - the requested subscription
+     */
+    private void queueHandshake(Subscription subscription) {
+        String subscriptionId = subscription.getIdElement().getIdPart();
+        boolean queued = this.notificationDispatcher.tryDispatch(new DiscardableTask() {
+            @Override
+            public void run() {
+                startHandshake(subscription);
+            }
+
+            @Override
+            public void discarded() {
+                myLogger.warn("Handshake for Subscription/" + subscriptionId
+                    + " was discarded, it remains requested");
             }
+        });
+        if (!queued) {
+            myLogger.warn("Handshake for Subscription/" + subscriptionId
+                + " was not sent (notification queue is full), it remains requested");
+        }
+    }
+
+    /**
+     * Send a handshake notification to a requested subscription's endpoint. The
+     * handshake is queued like any notification, so it is scheduled fairly, retried
+     * and short-circuited by the delivery policy and no thread waits for the response.
+     * The subscription is activated once the endpoint accepts it, or set to error once
+     * the policy is exhausted.
+     *
+     * @param subscription - the requested subscription
+     */
+    private void startHandshake(Subscription subscription) {
+        String subscriptionId = subscription.getIdElement().getIdPart();
+        String endpoint = subscription.getChannel().getEndpoint();
+        if (endpoint == null) {
+            myLogger.error("Subscription/" + subscriptionId + " has no channel.endpoint to handshake with");
+            finishHandshake(subscription, false);
+            return;
+        }
+
+        String payload = encodeNotification(subscription, SubscriptionHelper.getTopicCanonical(subscription),
+            Collections.emptyList(), NotificationType.HANDSHAKE);
+        this.notificationDelivery.deliver(endpoint, SubscriptionHelper.getHeaders(subscription), payload,
+            (int) Math.min(Integer.MAX_VALUE, this.handshakeTimeoutMs), new DeliveryCallback() {
+                @Override
+                public void onSuccess() {
+                    finishHandshake(subscription, true);
+                }
+
+                @Override
+                public void onExhausted(String reason) {
+                    myLogger.warn("Handshake for Subscription/" + subscriptionId + " to " + endpoint + " failed: "
+                        + reason);
+                    finishHandshake(subscription, false);
+                }
+
+                @Override
+                public void onDropped(String reason) {
+                    myLogger.warn("Handshake for Subscription/" + subscriptionId + " was not sent (" + reason
+                        + "), it remains requested");
+                }
+            });
+    }
+
+    /**
+     * Activate a requested subscription if its endpoint accepted the handshake,
+     * otherwise set it to error. The outcome is saved on the server.
+     *
+     * @param subscription - the requested subscription
+     * @param accepted - true if the endpoint accepted the handshake
+     */
+    private void finishHandshake(Subscription subscription, boolean accepted) {
+        String subscriptionId = subscription.getIdElement().getIdPart();
+        subscription.setStatus(accepted ? SubscriptionStatus.ACTIVE : SubscriptionStatus.ERROR);
+        myLogger.info("Subscription/" + subscriptionId + " status set to " + subscription.getStatus().toCode()
+            + " after handshake.");
+        try {
+            SubscriptionHelper.updateSubscription(subscription, this.serverClient);
+        } catch (Exception e) {
+            myLogger.error("Error saving handshake result for Subscription/" + subscriptionId, e);
+            return;
         }
+        registerSubscription(subscription);
+    }
 
-        return matchedTopics;
+    /**
+     * Queue a heartbeat notification for a subscription. Called by the heartbeat
+     * scheduler when no notification has been delivered for the heartbeat period.
+     *
+     * @param subscriptionId - the id of the subscription
+     */
+    private void sendHeartbeat(String subscriptionId) {
+        Subscription subscription = this.subscriptionRegistry.get(subscriptionId);
+        if (subscription == null) {
+            this.heartbeatScheduler.cancel(subscriptionId);
+            return;
+        }
+        dispatchNotification(subscription, SubscriptionHelper.getTopicCanonical(subscription),
+            Collections.emptyList(), NotificationType.HEARTBEAT);
     }
 
     /**
-     * Helper function to get all subscriptions from the server which
-     * need to be notified. Matches topic and criteria.
+     * Helper function to journal a notification in the outbox.
+     *
+     * @param currentOutbox - the outbox
+     * @param subscription - the subscription to notify
+     * @param payload - the notification bundle encoded as JSON
+     * @return the journaled entry, or null if the notification could not be journaled
+     */
+    private NotificationOutbox.Entry appendToOutbox(NotificationOutbox currentOutbox, Subscription subscription,
+      String payload) {
+        String endpoint = subscription.getChannel().getEndpoint();
+        if (endpoint == null) {
+            return null;
+        }
+        try {
+            return currentOutbox.append(subscription.getIdElement().getIdPart(), endpoint,
+                SubscriptionHelper.getHeaders(subscription), payload);
+        } catch (IOException e) {
+            myLogger.error("Error writing notification to the outbox, delivering without it", e);
+            return null;
+        }
+    }
+
+    /**
+     * Helper function to get all active subscriptions from the candidates which
+     * need to be notified. Matches criteria, searching the criteria of all candidates
+     * which cannot be evaluated locally in a single batch.
      * 
      * @param topicUrl - the topic url to find subscriptions for
+     * @param candidates - the active subscriptions to the topic
      * @param theResource - the triggering resource used to check subscription criteria
-     * @param allSubscriptions - bundle containing a list of all the active subscriptions
      * @return list of Subscription resource
      */
-    private List<Subscription> getSubscriptionsToNotify(String topicUrl, Resource theResource, 
-      Bundle allSubscriptions) {
-        myLogger.info("Checking all active subscriptions for topic " + topicUrl);
-        List<Subscription> subscriptions = new ArrayList<>(); 
-        for (BundleEntryComponent entry: allSubscriptions.getEntry()) {
-            Resource resource = entry.getResource();
-            if (!resource.getResourceType().equals(ResourceType.Subscription)) {
-                continue;
-            }
-
-            Subscription subscription = (Subscription) resource;
-
-            // Check Subscription topic extension, if not equal skip subscription
-            if (!SubscriptionHelper.getTopicCanonical(subscription).equals(topicUrl)) {
-                continue;
-            }
+    private List<Subscription> getSubscriptionsToNotify(String topicUrl, List<Subscription> candidates,
+      Resource theResource) {
+        if (myLogger.isDebugEnabled()) {
+            myLogger.debug("Checking all active subscriptions for topic " + topicUrl);
+        }
+        List<List<String>> criteria = new ArrayList<>(candidates.size());
+        for (Subscription subscription : candidates) {
+            criteria.add(SubscriptionHelper.getCriteria(subscription));
+        }
 
-            // Check at least one Subscription criteria matches resource, if not skip subscription
-            if (!SubscriptionHelper.matchesCriteria(SubscriptionHelper.getCriteria(subscription), 
-              theResource, this.serverClient)) {
-                continue;
+        // Check at least one Subscription criteria matches resource, if not skip subscription
+        boolean[] matches = this.criteriaEngine.matchesEach(criteria, theResource);
+        List<Subscription> subscriptions = new ArrayList<>(); 
+        for (int i = 0; i < candidates.size(); i++) {
+            if (matches[i]) {
+                // If we get this far the topic and criteria matches
+                subscriptions.add(candidates.get(i));
             }
-
-            // If we get this far the topic and criteria matches
-            subscriptions.add(subscription);
         }
-        myLogger.info("Found " + subscriptions.size() + " subscriptions to notify.");
+        if (myLogger.isDebugEnabled()) {
+            myLogger.debug("Found " + subscriptions.size() + " subscriptions to notify.");
+        }
         return subscriptions;
     }
 
     /**
-     * Send the notification to the subscriber.
+     * Send the notification to the subscriber. Failed notifications are retried
+     * according to the delivery policy and the subscription is only set to error
+     * once the policy is exhausted. The outbox entry is only acknowledged once the
+     * endpoint accepted or permanently rejected the notification, otherwise it stays
+     * pending and is replayed when the server starts again.
      * 
      * @param subscription - the subscription resource the notification is for
-     * @param notification - the notification bundle to send
+     * @param payload - the notification bundle encoded as JSON
+     * @param entry - the outbox entry of the notification, null if it was not journaled
      */
-    private void sendNotification(Subscription subscription, Bundle notification) {
+    private void sendNotification(Subscription subscription, String payload, NotificationOutbox.Entry entry) {
         String subscriptionId = subscription.getIdElement().getIdPart();
         String endpoint = subscription.getChannel().getEndpoint();
 
         if (endpoint == null) {
             myLogger.error("UnsupportedChannelTypeException: Subscription/" + subscriptionId 
                 + " must be rest-hook and include channel.endpoint");
+            // Never deliverable, so there is nothing to replay
+            acknowledge(entry);
             return;
         }
 
-        myLogger.info("Sending notification for Subscription/" + subscriptionId + " to " + endpoint);
+        if (myLogger.isDebugEnabled()) {
+            myLogger.debug("Sending notification for Subscription/" + subscriptionId + " to " + endpoint);
+        }
+
+        this.notificationDelivery.deliver(endpoint, SubscriptionHelper.getHeaders(subscription), payload,
+            new DeliveryCallback() {
+                @Override
+                public void onSuccess() {
+                    heartbeatScheduler.reset(subscriptionId);
+                    acknowledge(entry);
+                }
+
+                @Override
+                public void onExhausted(String reason) {
+                    myLogger.error("Error sending notification for Subscription/" + subscriptionId + ": "
+                        + reason);
+                    setSubscriptionError(subscription);
+                }
+
+                @Override
+                public void onRejected(String reason) {
+                    myLogger.error("Notification for Subscription/" + subscriptionId + " rejected: " + reason);
+                    setSubscriptionError(subscription);
+                    acknowledge(entry);
+                }
+
+                @Override
+                public void onDropped(String reason) {
+                    // Shed under backpressure, the endpoint did not fail so the subscription stays active
+                    myLogger.warn("Notification for Subscription/" + subscriptionId + " dropped: " + reason);
+                }
+            });
+    }
+
+    /**
+     * Send a notification replayed from the outbox. Like any journaled notification
+     * it is only acknowledged once it is accepted or permanently rejected.
+     *
+     * @param entry - the outbox entry of the notification
+     */
+    private void replayNotification(NotificationOutbox.Entry entry) {
+        this.notificationDelivery.deliver(entry.getEndpoint(), entry.getHeaders(), entry.getPayload(),
+            new DeliveryCallback() {
+                @Override
+                public void onSuccess() {
+                    acknowledge(entry);
+                }
+
+                @Override
+                public void onExhausted(String reason) {
+                    myLogger.error("Error sending replayed notification for Subscription/"
+                        + entry.getSubscriptionId() + ": " + reason);
+                    setReplayedSubscriptionError(entry);
+                }
+
+                @Override
+                public void onRejected(String reason) {
+                    myLogger.error("Replayed notification for Subscription/" + entry.getSubscriptionId()
+                        + " rejected: " + reason);
+                    setReplayedSubscriptionError(entry);
+                    acknowledge(entry);
+                }
+
+                @Override
+                public void onDropped(String reason) {
+                    myLogger.warn("Replayed notification for Subscription/" + entry.getSubscriptionId()
+                        + " dropped: " + reason);
+                }
+            });
+    }
 
+    /**
+     * Set the subscription of a replayed notification to error. The subscription is
+     * looked up in the registry, so until it is loaded this is held, as the load
+     * searches the server and must not block a delivery outcome thread.
+     *
+     * @param entry - the outbox entry of the notification
+     */
+    private void setReplayedSubscriptionError(NotificationOutbox.Entry entry) {
+        if (!this.subscriptionRegistry.isLoaded()) {
+            this.heldSubscriptionErrors.add(entry.getSubscriptionId());
+            queueRegistryLoad();
+            // The load may have completed before the subscription was held
+            releaseHeldEvents();
+            return;
+        }
+        Subscription subscription = this.subscriptionRegistry.get(entry.getSubscriptionId());
+        if (subscription != null) {
+            setSubscriptionError(subscription);
+        }
+    }
+
+    /**
+     * Acknowledge a delivered notification in the outbox so it is not replayed.
+     *
+     * @param entry - the outbox entry, may be null
+     */
+    private void acknowledge(NotificationOutbox.Entry entry) {
+        NotificationOutbox currentOutbox = this.outbox;
+        if (entry == null || currentOutbox == null) {
+            return;
+        }
         try {
-            StringEntity data = new StringEntity(jparser.setPrettyPrint(true)
-              .encodeResourceToString(notification));
-            HttpPost httpPost = new HttpPost(endpoint);
-            httpPost.setEntity(data);
-            httpPost.addHeader("Content-type", "application/json");
-            for (StringType header : subscription.getChannel().getHeader()) {
-                String headerString = header.asStringValue();
-                String[] headerParts = headerString.split(": ", 2);
-                httpPost.addHeader(headerParts[0], headerParts[1]);
-            }
-            HttpClient httpClient = HttpClients.createDefault();
-            httpClient.execute(httpPost);
-        } catch (UnsupportedEncodingException e) {
-            myLogger.error("UnsupportedEncodingException sending notification for Subscription/"
-                + subscriptionId, e);
-            SubscriptionHelper.setSubscriptionError(subscription, this.serverClient);
-        } catch (ClientProtocolException e) {
-            myLogger.error("ClientProtocolException sending notification for Subscription/" + subscriptionId, e);
-            SubscriptionHelper.setSubscriptionError(subscription, this.serverClient);
+            currentOutbox.ack(entry);
         } catch (IOException e) {
-            myLogger.error("IOException sending notification for Subscription/" + subscriptionId, e);
-            SubscriptionHelper.setSubscriptionError(subscription, this.serverClient);
-        } catch (Exception e) {
-            myLogger.info("Error sending notification for Subscription/" + subscriptionId);
-            SubscriptionHelper.setSubscriptionError(subscription, this.serverClient);
+            myLogger.error("Error acknowledging notification in the outbox", e);
+        }
+    }
+
+    /**
+     * Set the subscription status to error on the server and stop notifying it.
+     *
+     * @param subscription - the Subscription resource to update
+     */
+    private void setSubscriptionError(Subscription subscription) {
+        this.subscriptionRegistry.remove(subscription.getIdElement().getIdPart());
+        SubscriptionHelper.setSubscriptionError(subscription, this.serverClient);
+        if (recordVersion(subscription.getIdElement().getIdPart(), subscription.getMeta().getVersionId())) {
+            publishChange(ChangeType.SUBSCRIPTION_UPDATED, subscription);
+        }
+    }
+
+    /**
+     * Add or replace a Subscription written through this node in the registry and
+     * publish it to the other nodes. A version older than one already seen is
+     * neither registered nor published.
+     *
+     * @param subscription - the Subscription resource
+     */
+    private void registerSubscription(Subscription subscription) {
+        if (recordVersion(subscription.getIdElement().getIdPart(), subscription.getMeta().getVersionId())) {
+            this.subscriptionRegistry.register(subscription);
+            publishChange(ChangeType.SUBSCRIPTION_UPDATED, subscription);
+        }
+    }
+
+    /**
+     * Remove a Subscription deleted through this node from the registry and publish
+     * the deletion to the other nodes.
+     *
+     * @param subscriptionId - the id of the deleted subscription
+     */
+    private void removeSubscription(String subscriptionId) {
+        recordDelete(subscriptionId);
+        this.subscriptionRegistry.remove(subscriptionId);
+        publish(new SubscriptionChange(this.nodeId, ChangeType.SUBSCRIPTION_DELETED, subscriptionId, null));
+    }
+
+    /**
+     * Tell the other nodes that the topics of this node changed so they reload theirs.
+     */
+    private void publishTopicsChanged() {
+        publish(new SubscriptionChange(this.nodeId, ChangeType.TOPICS_CHANGED, null, null));
+    }
+
+    /**
+     * Record the version of a subscription written on any node. Changes from the feed
+     * may arrive out of order, so an older version than one already recorded must not
+     * be applied. After a delete only a newer version, i.e. a subscription created
+     * again with the same id, is applied.
+     *
+     * @param subscriptionId - the id of the subscription
+     * @param versionId - the written version, may be null if the server does not version resources
+     * @return true if the version is the latest, false if it is stale
+     */
+    private boolean recordVersion(String subscriptionId, String versionId) {
+        if (versionId == null) {
+            return true;
+        }
+        boolean[] latest = {true};
+        this.subscriptionVersions.compute(subscriptionId, (id, seen) -> {
+            int comparison = seen == null ? 1 : compareVersions(versionId, seen.versionId);
+            if (comparison < 0 || (comparison == 0 && seen.deleted)) {
+                latest[0] = false;
+                return seen;
+            }
+            return new SeenVersion(versionId, false);
+        });
+        return latest[0];
+    }
+
+    /**
+     * Record that a subscription was deleted on any node, so versions written before
+     * the delete which arrive late are not applied.
+     *
+     * @param subscriptionId - the id of the deleted subscription
+     */
+    private void recordDelete(String subscriptionId) {
+        this.subscriptionVersions.compute(subscriptionId,
+            (id, seen) -> new SeenVersion(seen == null ? null : seen.versionId, true));
+    }
+
+    /**
+     * Helper function to compare version ids, which are numeric on most servers.
+     *
+     * @param a - the first version id
+     * @param b - the second version id, may be null
+     * @return negative if a is older than b, 0 if equal, positive if newer or not comparable
+     */
+    private static int compareVersions(String a, String b) {
+        if (a.equals(b)) {
+            return 0;
+        }
+        try {
+            return Long.compare(Long.parseLong(a), Long.parseLong(b));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    private void publishChange(ChangeType type, Subscription subscription) {
+        if (this.changeFeed == null) {
+            return;
+        }
+        String subscriptionId = subscription.getIdElement().getIdPart();
+        try {
+            // Encoded now since the subscription may still be changed on this thread
+            String payload = this.myCtx.newJsonParser().encodeResourceToString(subscription);
+            publish(new SubscriptionChange(this.nodeId, type, subscriptionId, payload));
+        } catch (RuntimeException e) {
+            myLogger.error("Unable to publish change to Subscription/" + subscriptionId, e);
+        }
+    }
+
+    /**
+     * Publish a change to the change feed, if there is one, in order on the change
+     * publisher thread, since a JdbcChangeFeed inserts into its database and must
+     * not hold up the request thread.
+     *
+     * @param change - the change
+     */
+    private void publish(SubscriptionChange change) {
+        IChangeFeed currentChangeFeed = this.changeFeed;
+        if (currentChangeFeed == null) {
+            return;
+        }
+        try {
+            this.changePublisher.execute(() -> {
+                try {
+                    currentChangeFeed.publish(change);
+                } catch (RuntimeException e) {
+                    myLogger.error("Unable to publish " + change.getType() + " change", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            myLogger.warn("Shut down, " + change.getType() + " change was not published");
+        }
+    }
+
+    /**
+     * Apply a change published by another node to this node's registry. Cached
+     * Subscription searches are invalidated since the server has changed.
+     *
+     * @param change - the change
+     */
+    private void applyChange(SubscriptionChange change) {
+        if (this.nodeId.equals(change.getNodeId())) {
+            return;
+        }
+        if (myLogger.isDebugEnabled()) {
+            myLogger.debug("Applying " + change.getType() + " change from node " + change.getNodeId());
+        }
+
+        switch (change.getType()) {
+            case SUBSCRIPTION_UPDATED:
+                Subscription subscription =
+                    this.myCtx.newJsonParser().parseResource(Subscription.class, change.getPayload());
+                if (!recordVersion(change.getResourceId(), subscription.getMeta().getVersionId())) {
+                    myLogger.info("Ignoring stale version " + subscription.getMeta().getVersionId()
+                        + " of Subscription/" + change.getResourceId() + " from node " + change.getNodeId());
+                    return;
+                }
+                this.subscriptionRegistry.register(subscription);
+                break;
+            case SUBSCRIPTION_DELETED:
+                recordDelete(change.getResourceId());
+                this.subscriptionRegistry.remove(change.getResourceId());
+                break;
+            case TOPICS_CHANGED:
+                // Reloading topics equal to the current ones changes nothing, so nodes do not echo the change
+                myLogger.info("SubscriptionTopics changed on node " + change.getNodeId() + ", reloading");
+                this.topicRegistry.reload();
+                return;
+            default:
+                return;
+        }
+        if (this.serverClient instanceof CachingServerClient) {
+            ((CachingServerClient) this.serverClient).invalidate("Subscription");
+        }
+    }
+
+    /**
+     * The latest version of a subscription seen, and whether it was deleted since.
+     */
+    private static class SeenVersion {
+        private final String versionId;
+        private final boolean deleted;
+
+        SeenVersion(String versionId, boolean deleted) {
+            this.versionId = versionId;
+            this.deleted = deleted;
+        }
+    }
+
+    /**
+     * A written resource and the topics it matched.
+     */
+    private static class MatchedEntry {
+        private final Resource resource;
+        private final List<SubscriptionTopic> subscriptionTopics;
+
+        MatchedEntry(Resource resource, List<SubscriptionTopic> subscriptionTopics) {
+            this.resource = resource;
+            this.subscriptionTopics = subscriptionTopics;
+        }
+    }
+
+    /**
+     * The resources to notify a subscription of for a single request.
+     */
+    private static class PendingNotification {
+        private final Subscription subscription;
+        private final String topicUrl;
+        private final List<EncodedResource> resources = new ArrayList<>();
+
+        PendingNotification(Subscription subscription, String topicUrl) {
+            this.subscription = subscription;
+            this.topicUrl = topicUrl;
         }
     }
 }
@@ -0,0 +1,257 @@
+package org.mitre.hapifhir;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.hl7.fhir.r4.model.Subscription;
+import org.hl7.fhir.r4.model.Subscription.SubscriptionStatus;
+import org.mitre.hapifhir.client.IServerClient;
+import org.mitre.hapifhir.utils.SubscriptionHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory registry of the active Subscriptions on the server, indexed by
+ * topic canonical url and by the resource type of the subscription criteria.
+ * The registry is loaded from the server once and then kept current by the
+ * SubscriptionInterceptor as Subscriptions are created, updated and deleted.
+ */
+public class SubscriptionRegistry {
+    private final Logger myLogger = LoggerFactory.getLogger(SubscriptionRegistry.class.getName());
+
+    /**
+     * Notified as Subscriptions are added to and removed from the registry.
+     */
+    public interface Listener {
+        /**
+         * Called after an active subscription is added or replaced.
+         *
+         * @param subscription - the subscription
+         */
+        void onRegistered(Subscription subscription);
+
+        /**
+         * Called after a subscription is removed.
+         *
+         * @param subscriptionId - the id of the removed subscription
+         */
+        void onRemoved(String subscriptionId);
+    }
+
+    // Index key for subscriptions whose criteria does not name a resource type
+    private static final String ANY_RESOURCE_TYPE = "*";
+
+    private IServerClient serverClient;
+    private volatile boolean loaded;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final Map<String, Subscription> subscriptionsById = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Map<String, Subscription>>> subscriptionsByTopic =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Create a new registry.
+     *
+     * @param serverClient - the client used to load the active subscriptions from the server
+     */
+    public SubscriptionRegistry(IServerClient serverClient) {
+        this.serverClient = serverClient;
+    }
+
+    /**
+     * Add a listener notified as subscriptions are registered and removed.
+     *
+     * @param listener - the listener
+     */
+    public void addListener(Listener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Load the registry from the server if it has not been loaded yet. The load is
+     * deferred until first use since the server may still be starting up when the
+     * interceptor is created. A failed load is retried on the next call.
+     */
+    public void ensureLoaded() {
+        if (this.loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (!this.loaded) {
+                this.loaded = load();
+            }
+        }
+    }
+
+    /**
+     * Check if the registry has been loaded from the server.
+     *
+     * @return true if loaded, false otherwise
+     */
+    public boolean isLoaded() {
+        return this.loaded;
+    }
+
+    /**
+     * Search the server for all active Subscriptions and add them to the registry.
+     * Every page of the search is streamed, so at most two pages are held at a time.
+     *
+     * @return true if the subscriptions were loaded, false otherwise
+     */
+    public boolean load() {
+        try (Stream<BundleEntryComponent> entries =
+            this.serverClient.streamOnCriteria("Subscription?status=active")) {
+            entries.map(BundleEntryComponent::getResource)
+                .filter(resource -> resource != null
+                    && resource.getResourceType().equals(ResourceType.Subscription))
+                .forEach(resource -> register((Subscription) resource));
+            myLogger.info("Loaded " + this.subscriptionsById.size() + " active subscriptions.");
+            return true;
+        } catch (Exception e) {
+            myLogger.error("Unable to load active subscriptions from the server", e);
+            return false;
+        }
+    }
+
+    /**
+     * Add or replace a Subscription in the registry. Only active subscriptions are
+     * kept, any other status removes the subscription from the registry.
+     *
+     * @param subscription - the subscription resource
+     */
+    public synchronized void register(Subscription subscription) {
+        String subscriptionId = subscription.getIdElement().getIdPart();
+        if (subscriptionId == null) {
+            return;
+        }
+
+        remove(subscriptionId);
+        if (subscription.getStatus() != SubscriptionStatus.ACTIVE) {
+            return;
+        }
+
+        String topicUrl = SubscriptionHelper.getTopicCanonical(subscription);
+        if (topicUrl == null) {
+            myLogger.warn("Subscription/" + subscriptionId + " has no topic canonical and will not be notified.");
+            return;
+        }
+
+        this.subscriptionsById.put(subscriptionId, subscription);
+        this.subscriptionsByTopic
+            .computeIfAbsent(topicUrl, k -> new ConcurrentHashMap<>())
+            .computeIfAbsent(getCriteriaResourceType(subscription), k -> new ConcurrentHashMap<>())
+            .put(subscriptionId, subscription);
+        for (Listener listener : this.listeners) {
+            listener.onRegistered(subscription);
+        }
+    }
+
+    /**
+     * Remove a Subscription from the registry.
+     *
+     * @param subscriptionId - the id of the subscription to remove
+     */
+    public synchronized void remove(String subscriptionId) {
+        if (subscriptionId == null) {
+            return;
+        }
+
+        Subscription existing = this.subscriptionsById.remove(subscriptionId);
+        if (existing == null) {
+            return;
+        }
+
+        Map<String, Map<String, Subscription>> byResourceType =
+            this.subscriptionsByTopic.get(SubscriptionHelper.getTopicCanonical(existing));
+        if (byResourceType != null) {
+            Map<String, Subscription> subscriptions = byResourceType.get(getCriteriaResourceType(existing));
+            if (subscriptions != null) {
+                subscriptions.remove(subscriptionId);
+            }
+        }
+        for (Listener listener : this.listeners) {
+            listener.onRemoved(subscriptionId);
+        }
+    }
+
+    /**
+     * Get an active Subscription by id.
+     *
+     * @param subscriptionId - the subscription id
+     * @return the subscription if it is active, otherwise null
+     */
+    public Subscription get(String subscriptionId) {
+        return this.subscriptionsById.get(subscriptionId);
+    }
+
+    /**
+     * Get all active Subscriptions.
+     *
+     * @return unmodifiable view of the active subscriptions
+     */
+    public Collection<Subscription> getAll() {
+        return Collections.unmodifiableCollection(this.subscriptionsById.values());
+    }
+
+    /**
+     * Get the active Subscriptions to a topic whose criteria could match a resource
+     * of the given type. This includes subscriptions without a resource type in
+     * their criteria.
+     *
+     * @param topicUrl - the topic canonical url
+     * @param resourceType - the type of the triggering resource
+     * @return list of candidate subscriptions
+     */
+    public List<Subscription> getSubscriptions(String topicUrl, String resourceType) {
+        Map<String, Map<String, Subscription>> byResourceType = this.subscriptionsByTopic.get(topicUrl);
+        if (byResourceType == null) {
+            return Collections.emptyList();
+        }
+
+        Map<String, Subscription> typed = byResourceType.get(resourceType);
+        Map<String, Subscription> untyped = byResourceType.get(ANY_RESOURCE_TYPE);
+        List<Subscription> subscriptions = new ArrayList<>(
+            (typed == null ? 0 : typed.size()) + (untyped == null ? 0 : untyped.size()));
+        if (typed != null) {
+            subscriptions.addAll(typed.values());
+        }
+        if (untyped != null) {
+            subscriptions.addAll(untyped.values());
+        }
+        return subscriptions;
+    }
+
+    /**
+     * Get the number of active Subscriptions in the registry.
+     *
+     * @return the number of active subscriptions
+     */
+    public int size() {
+        return this.subscriptionsById.size();
+    }
+
+    /**
+     * Helper method to get the resource type from the subscription criteria,
+     * e.g. "Encounter" from "Encounter?status=finished".
+     *
+     * @param subscription - the subscription
+     * @return the resource type of the criteria, or ANY_RESOURCE_TYPE if there is none
+     */
+    private static String getCriteriaResourceType(Subscription subscription) {
+        String criteria = subscription.getCriteria();
+        if (criteria == null || criteria.isEmpty()) {
+            return ANY_RESOURCE_TYPE;
+        }
+        int queryStart = criteria.indexOf('?');
+        String resourceType = queryStart < 0 ? criteria : criteria.substring(0, queryStart);
+        return resourceType.isEmpty() ? ANY_RESOURCE_TYPE : resourceType;
+    }
+}
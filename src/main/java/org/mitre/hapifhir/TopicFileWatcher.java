@@ -0,0 +1,120 @@
+package org.mitre.hapifhir;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import org.mitre.hapifhir.utils.TopicLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the SubscriptionTopics of a TopicRegistry from a JSON file and reloads
+ * them whenever the file changes. Changes are picked up by a background
+ * thread watching the file's directory and are debounced so a file written in
+ * several steps is only loaded once. A file which cannot be read or parsed is
+ * logged and the current topics are kept.
+ */
+public class TopicFileWatcher implements Closeable {
+    private final Logger myLogger = LoggerFactory.getLogger(TopicFileWatcher.class.getName());
+
+    public static final long DEFAULT_DEBOUNCE_MS = 500;
+
+    private final Path path;
+    private final TopicRegistry topicRegistry;
+    private final long debounceMs;
+    private final WatchService watchService;
+    private final Thread watcherThread;
+
+    /**
+     * Create a new watcher with the default debounce and load the file now.
+     *
+     * @param path - the topic JSON file, see TopicLoader for the format
+     * @param topicRegistry - the registry to load the topics into
+     * @throws IOException if the directory of the file cannot be watched
+     */
+    public TopicFileWatcher(Path path, TopicRegistry topicRegistry) throws IOException {
+        this(path, topicRegistry, DEFAULT_DEBOUNCE_MS);
+    }
+
+    /**
+     * Create a new watcher and load the file now.
+     *
+     * @param path - the topic JSON file, see TopicLoader for the format
+     * @param topicRegistry - the registry to load the topics into
+     * @param debounceMs - how long the file must be unchanged before it is loaded, in milliseconds
+     * @throws IOException if the directory of the file cannot be watched
+     */
+    public TopicFileWatcher(Path path, TopicRegistry topicRegistry, long debounceMs) throws IOException {
+        this.path = path.toAbsolutePath();
+        this.topicRegistry = topicRegistry;
+        this.debounceMs = debounceMs;
+        this.watchService = this.path.getFileSystem().newWatchService();
+        this.path.getParent().register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY);
+
+        topicRegistry.setSource(() -> TopicLoader.load(this.path));
+        topicRegistry.reload();
+
+        this.watcherThread = new Thread(this::run, "subscription-topic-watcher");
+        this.watcherThread.setDaemon(true);
+        this.watcherThread.start();
+    }
+
+    /**
+     * Stop watching the file.
+     *
+     * @throws IOException when the watch service cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        this.watcherThread.interrupt();
+        this.watchService.close();
+    }
+
+    private void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = this.watchService.take();
+                boolean changed = pollChanges(key);
+                // Wait until the file has been quiet for the debounce period
+                while (changed) {
+                    WatchKey next = this.watchService.poll(this.debounceMs, TimeUnit.MILLISECONDS);
+                    if (next == null || !pollChanges(next)) {
+                        break;
+                    }
+                }
+                if (changed) {
+                    myLogger.info("Reloading SubscriptionTopics from " + this.path);
+                    this.topicRegistry.reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * Read the events of a watch key and reset it.
+     *
+     * @param key - the signalled key
+     * @return true if the watched file changed, false otherwise
+     */
+    private boolean pollChanges(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                || this.path.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+}
@@ -6,9 +6,15 @@ import ca.uhn.fhir.interceptor.api.Interceptor;
 import ca.uhn.fhir.interceptor.api.Pointcut;
 import ca.uhn.fhir.parser.IParser;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -28,6 +34,7 @@ public class TopicListInterceptor {
     private FhirContext myCtx;
     private IParser jparser;
     private List<SubscriptionTopic> subscriptionTopics;
+    private volatile TopicListResponse topicListResponse;
 
     private static final String TOPIC_LIST_EXT_URL = 
       "http://hl7.org/fhir/uv/subscriptions-backport/StructureDefinition/backport-subscription-topic-canonical-urls";
@@ -41,7 +48,35 @@ public class TopicListInterceptor {
     public TopicListInterceptor(FhirContext ctx, List<SubscriptionTopic> subscriptionTopics) {
         this.myCtx = ctx;
         this.jparser = this.myCtx.newJsonParser();
+        setSubscriptionTopics(subscriptionTopics);
+    }
+
+    /**
+     * Create a new interceptor which lists the topics of a registry and follows
+     * its changes, e.g. the registry of the SubscriptionInterceptor.
+     *
+     * @param ctx - the fhir context to use
+     * @param topicRegistry - the registry of subscription topics this server supports
+     */
+    public TopicListInterceptor(FhirContext ctx, TopicRegistry topicRegistry) {
+        this(ctx, topicRegistry.getSnapshot().getSubscriptionTopics());
+        topicRegistry.addListener(snapshot -> setSubscriptionTopics(snapshot.getSubscriptionTopics()));
+    }
+
+    /**
+     * Replace the subscription topics listed by $topic-list. The response is
+     * serialized once here and served from memory until the topics change again.
+     *
+     * @param subscriptionTopics - list of subscription topics this server supports
+     */
+    public synchronized void setSubscriptionTopics(List<SubscriptionTopic> subscriptionTopics) {
         this.subscriptionTopics = subscriptionTopics;
+        TopicListResponse response =
+            new TopicListResponse(this.jparser.setPrettyPrint(true).encodeResourceToString(createTopicList()));
+        // Keep the validators of an unchanged topic list so clients' cached copies stay current
+        if (this.topicListResponse == null || !this.topicListResponse.etag.equals(response.etag)) {
+            this.topicListResponse = response;
+        }
     }
 
     /**
@@ -57,9 +92,11 @@ public class TopicListInterceptor {
         if (theRequest.getPathInfo() != null 
             && theRequest.getPathInfo().equals("/Subscription/$topic-list") 
             && theRequest.getMethod().equals("GET")) {
-            myLogger.info("Request received for $topic-list");
+            if (myLogger.isDebugEnabled()) {
+                myLogger.debug("Request received for $topic-list");
+            }
             try {
-                handleTopicList(theResponse);
+                handleTopicList(theRequest, theResponse);
             } catch (Exception e) {
                 myLogger.error("Exception: " + e.getMessage(), e);
             }
@@ -75,6 +112,115 @@ public class TopicListInterceptor {
      * @throws IOException when unable to write response
      */
     public void handleTopicList(HttpServletResponse theResponse) throws IOException {
+        writeTopicList(this.topicListResponse, theResponse, false);
+    }
+
+    /**
+     * The handler to send the response of the operation. Responds 304 Not Modified
+     * when the client already has the current topic list, per If-None-Match or
+     * If-Modified-Since, and sends the gzipped response when the client accepts gzip.
+     * Each encoding has its own strong ETag, and either satisfies If-None-Match since
+     * both are the same topic list.
+     *
+     * @param theRequest - HttpServletRequest object
+     * @param theResponse - HttpServletResponse object
+     * @throws IOException when unable to write response
+     */
+    public void handleTopicList(HttpServletRequest theRequest, HttpServletResponse theResponse)
+        throws IOException {
+        TopicListResponse response = this.topicListResponse;
+        boolean gzip = acceptsGzip(theRequest.getHeader("Accept-Encoding"));
+        theResponse.setHeader("Vary", "Accept-Encoding");
+        if (isNotModified(theRequest, response)) {
+            theResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            theResponse.setHeader("ETag", gzip ? response.gzipEtag : response.etag);
+            theResponse.setDateHeader("Last-Modified", response.lastModified);
+            return;
+        }
+        writeTopicList(response, theResponse, gzip);
+    }
+
+    private void writeTopicList(TopicListResponse response, HttpServletResponse theResponse, boolean gzip)
+        throws IOException {
+        byte[] body = gzip ? response.gzipBody : response.body;
+        theResponse.setStatus(200);
+        theResponse.setContentType("application/json");
+        theResponse.setCharacterEncoding("UTF-8");
+        theResponse.setHeader("ETag", gzip ? response.gzipEtag : response.etag);
+        theResponse.setDateHeader("Last-Modified", response.lastModified);
+        if (gzip) {
+            theResponse.setHeader("Content-Encoding", "gzip");
+        }
+        theResponse.setContentLength(body.length);
+        OutputStream out = theResponse.getOutputStream();
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * Helper method to determine if the client's cached copy of the topic list is current.
+     * If-None-Match takes precedence over If-Modified-Since.
+     *
+     * @param theRequest - HttpServletRequest object
+     * @param response - the current topic list response
+     * @return true if the client's copy is current, false otherwise
+     */
+    private static boolean isNotModified(HttpServletRequest theRequest, TopicListResponse response) {
+        String ifNoneMatch = theRequest.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String etag : ifNoneMatch.split(",")) {
+                String trimmed = etag.trim();
+                if (trimmed.startsWith("W/")) {
+                    trimmed = trimmed.substring(2);
+                }
+                if (trimmed.equals("*") || trimmed.equals(response.etag) || trimmed.equals(response.gzipEtag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        try {
+            long ifModifiedSince = theRequest.getDateHeader("If-Modified-Since");
+            // HTTP dates have second precision
+            return ifModifiedSince >= 0 && response.lastModified / 1000 <= ifModifiedSince / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Helper method to determine if the Accept-Encoding header allows gzip.
+     *
+     * @param acceptEncoding - the Accept-Encoding header, may be null
+     * @return true if gzip is accepted, false otherwise
+     */
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            String name = parts[0].trim();
+            if (name.equalsIgnoreCase("gzip") || name.equals("*")) {
+                for (int i = 1; i < parts.length; i++) {
+                    String parameter = parts[i].trim().replace(" ", "");
+                    if (parameter.matches("q=0(\\.0{0,3})?")) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Build the Parameters resource listing the subscription topics.
+     *
+     * @return the topic list
+     */
+    private Parameters createTopicList() {
         Meta meta = new Meta();
         meta.addProfile(TOPIC_LIST_EXT_URL);
 
@@ -86,12 +232,49 @@ public class TopicListInterceptor {
             parameter.setValue(new CanonicalType(subscriptionTopic.getTopicUrl()));
             topicList.addParameter(parameter);
         }
+        return topicList;
+    }
 
-        theResponse.setStatus(200);
-        theResponse.setContentType("application/json");
-        theResponse.setCharacterEncoding("UTF-8");
-        PrintWriter out = theResponse.getWriter();
-        out.print(jparser.setPrettyPrint(true).encodeResourceToString(topicList));
-        out.flush();
+    /**
+     * The serialized topic list with its validators, computed once per topic set.
+     */
+    private static class TopicListResponse {
+        private final byte[] body;
+        private final byte[] gzipBody;
+        private final String etag;
+        private final String gzipEtag;
+        private final long lastModified;
+
+        TopicListResponse(String json) {
+            this.body = json.getBytes(StandardCharsets.UTF_8);
+            this.gzipBody = gzip(this.body);
+            String hash = sha256(this.body);
+            this.etag = "\"" + hash + "\"";
+            // A strong ETag identifies the exact bytes, so the gzipped body needs its own
+            this.gzipEtag = "\"" + hash + "-gzip\"";
+            this.lastModified = System.currentTimeMillis();
+        }
+
+        private static byte[] gzip(byte[] bytes) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return out.toByteArray();
+        }
+
+        private static String sha256(byte[] bytes) {
+            try {
+                StringBuilder hex = new StringBuilder();
+                for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+                    hex.append(String.format("%02x", b));
+                }
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
     }
 }
@@ -0,0 +1,169 @@
+package org.mitre.hapifhir;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.mitre.hapifhir.model.ResourceTrigger;
+import org.mitre.hapifhir.model.SubscriptionTopic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the SubscriptionTopics this server supports as an immutable snapshot.
+ * A new set of topics is compiled into a new snapshot which is swapped in
+ * atomically, so request threads read the current topics without locks or
+ * copies and a reload never pauses traffic. A request should read the snapshot
+ * once and use it throughout so it sees a consistent set of topics.
+ */
+public class TopicRegistry {
+    private final Logger myLogger = LoggerFactory.getLogger(TopicRegistry.class.getName());
+
+    /**
+     * Notified after a new set of topics is swapped in.
+     */
+    public interface Listener {
+        /**
+         * Called after the topics changed.
+         *
+         * @param snapshot - the new snapshot
+         */
+        void onTopicsChanged(TopicSnapshot snapshot);
+    }
+
+    /**
+     * An immutable set of topics and the dispatch table compiled from them.
+     */
+    public static final class TopicSnapshot {
+        private final List<SubscriptionTopic> subscriptionTopics;
+        private final TriggerDispatchTable triggerDispatchTable;
+        private final String fingerprint;
+
+        TopicSnapshot(List<SubscriptionTopic> subscriptionTopics) {
+            this.subscriptionTopics = Collections.unmodifiableList(new ArrayList<>(subscriptionTopics));
+            this.triggerDispatchTable = new TriggerDispatchTable(this.subscriptionTopics);
+            this.fingerprint = fingerprint(this.subscriptionTopics);
+        }
+
+        public List<SubscriptionTopic> getSubscriptionTopics() {
+            return this.subscriptionTopics;
+        }
+
+        public TriggerDispatchTable getTriggerDispatchTable() {
+            return this.triggerDispatchTable;
+        }
+    }
+
+    private final AtomicReference<TopicSnapshot> snapshot;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile Callable<List<SubscriptionTopic>> source;
+
+    /**
+     * Create a new registry.
+     *
+     * @param subscriptionTopics - the initial list of subscription topics this server supports
+     */
+    public TopicRegistry(List<SubscriptionTopic> subscriptionTopics) {
+        this.snapshot = new AtomicReference<>(new TopicSnapshot(subscriptionTopics));
+    }
+
+    /**
+     * Get the current snapshot of the topics.
+     *
+     * @return the snapshot
+     */
+    public TopicSnapshot getSnapshot() {
+        return this.snapshot.get();
+    }
+
+    /**
+     * Add a listener notified after the topics change.
+     *
+     * @param listener - the listener
+     */
+    public void addListener(Listener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Replace the topics. The new topics are compiled on the calling thread and
+     * then swapped in. Nothing changes if the topics are the same as the current ones.
+     * Writers are serialized so listeners see the changes in order, readers never wait.
+     *
+     * @param subscriptionTopics - list of subscription topics this server supports
+     * @return true if the topics changed, false otherwise
+     */
+    public synchronized boolean setTopics(List<SubscriptionTopic> subscriptionTopics) {
+        TopicSnapshot newSnapshot = new TopicSnapshot(subscriptionTopics);
+        if (this.snapshot.get().fingerprint.equals(newSnapshot.fingerprint)) {
+            return false;
+        }
+        this.snapshot.set(newSnapshot);
+
+        myLogger.info("Loaded " + newSnapshot.subscriptionTopics.size() + " SubscriptionTopics");
+        for (Listener listener : this.listeners) {
+            try {
+                listener.onTopicsChanged(newSnapshot);
+            } catch (Exception e) {
+                myLogger.error("Error notifying listener of changed SubscriptionTopics", e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Set where the topics are reloaded from, e.g. a file or a server search.
+     *
+     * @param source - loads the current list of subscription topics
+     */
+    public void setSource(Callable<List<SubscriptionTopic>> source) {
+        this.source = source;
+    }
+
+    /**
+     * Reload the topics from the source. If the source fails the current topics
+     * are kept.
+     *
+     * @return true if the topics changed, false otherwise
+     */
+    public boolean reload() {
+        Callable<List<SubscriptionTopic>> currentSource = this.source;
+        if (currentSource == null) {
+            return false;
+        }
+        try {
+            return setTopics(currentSource.call());
+        } catch (Exception e) {
+            myLogger.error("Unable to reload SubscriptionTopics, keeping the current topics", e);
+            return false;
+        }
+    }
+
+    /**
+     * Helper method to describe every topic and trigger so equal sets of topics
+     * can be recognized.
+     *
+     * @param subscriptionTopics - the topics
+     * @return the description
+     */
+    private static String fingerprint(List<SubscriptionTopic> subscriptionTopics) {
+        StringBuilder fingerprint = new StringBuilder();
+        for (SubscriptionTopic topic : subscriptionTopics) {
+            fingerprint.append(topic.getId()).append('|').append(topic.getName()).append('|')
+                .append(topic.getTopicUrl()).append('\n');
+            for (ResourceTrigger trigger : topic.getResourceTriggers()) {
+                fingerprint.append(' ').append(trigger.getResourceType()).append('|')
+                    .append(trigger.getMethodCriteria()).append('|')
+                    .append(trigger.getPreviousCriteria()).append('|')
+                    .append(trigger.getResultForCreate()).append('|')
+                    .append(trigger.getCurrentCriteria()).append('|')
+                    .append(trigger.getResultForDelete()).append('|')
+                    .append(trigger.isRequireBoth()).append('\n');
+            }
+        }
+        return fingerprint.toString();
+    }
+}
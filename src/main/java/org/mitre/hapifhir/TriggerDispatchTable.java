@@ -0,0 +1,282 @@
+package org.mitre.hapifhir;
+
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.mitre.hapifhir.criteria.CriteriaEngine;
+import org.mitre.hapifhir.model.ResourceTrigger;
+import org.mitre.hapifhir.model.ResourceTrigger.CriteriaResult;
+import org.mitre.hapifhir.model.ResourceTrigger.MethodCriteria;
+import org.mitre.hapifhir.model.SubscriptionTopic;
+import org.mitre.hapifhir.utils.SubscriptionHelper;
+
+/**
+ * The SubscriptionTopics compiled into a lookup table keyed by resource type and
+ * interaction, so a write to a resource type no topic triggers on is rejected
+ * with a single map lookup.
+ *
+ * <p>Triggers of the same resourceType on a topic are AND'd while triggers of
+ * different resourceTypes are OR'd, so a topic matches a write when every one of
+ * its triggers for the written resource type matches.
+ *
+ * <p>Triggers with previous criteria are evaluated against the version of the
+ * resource before the write, which is only looked up when such a trigger is
+ * reached. On delete the deleted version is the previous version and the
+ * current criteria uses resultForDelete.
+ */
+public class TriggerDispatchTable {
+    private final Map<ResourceType, Map<MethodCriteria, List<CompiledTopic>>> table =
+        new EnumMap<>(ResourceType.class);
+    private final Set<ResourceType> previousVersionTypes = EnumSet.noneOf(ResourceType.class);
+
+    /**
+     * Compile the topics into a dispatch table.
+     *
+     * @param subscriptionTopics - list of subscription topics this server supports
+     */
+    public TriggerDispatchTable(List<SubscriptionTopic> subscriptionTopics) {
+        for (SubscriptionTopic subscriptionTopic : subscriptionTopics) {
+            // Group the topic triggers by resource type, preserving order
+            Map<ResourceType, List<CompiledTrigger>> triggersByType = new LinkedHashMap<>();
+            for (ResourceTrigger resourceTrigger : subscriptionTopic.getResourceTriggers()) {
+                triggersByType.computeIfAbsent(resourceTrigger.getResourceType(), k -> new ArrayList<>())
+                    .add(new CompiledTrigger(resourceTrigger));
+            }
+
+            for (Map.Entry<ResourceType, List<CompiledTrigger>> entry : triggersByType.entrySet()) {
+                CompiledTopic compiledTopic = new CompiledTopic(subscriptionTopic, entry.getValue());
+                Set<MethodCriteria> interactions = EnumSet.noneOf(MethodCriteria.class);
+                for (CompiledTrigger trigger : entry.getValue()) {
+                    interactions.addAll(trigger.methodCriteria);
+                    if (trigger.previousCriteria != null
+                        || trigger.methodCriteria.contains(MethodCriteria.DELETE)) {
+                        this.previousVersionTypes.add(entry.getKey());
+                    }
+                }
+
+                Map<MethodCriteria, List<CompiledTopic>> byInteraction =
+                    this.table.computeIfAbsent(entry.getKey(), k -> new EnumMap<>(MethodCriteria.class));
+                for (MethodCriteria interaction : interactions) {
+                    byInteraction.computeIfAbsent(interaction, k -> new ArrayList<>()).add(compiledTopic);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the SubscriptionTopics triggered by a write.
+     *
+     * @param requestType - the request type of the write
+     * @param theResource - the resource being returned by the request
+     * @param criteriaEngine - the engine used to evaluate trigger criteria
+     * @return SubscriptionTopics which match the write
+     */
+    public List<SubscriptionTopic> match(RequestTypeEnum requestType, Resource theResource,
+      CriteriaEngine criteriaEngine) {
+        if (!hasTriggers(theResource.getResourceType())) {
+            return Collections.emptyList();
+        }
+        return match(SubscriptionHelper.getInteractions(requestType, theResource), theResource, criteriaEngine);
+    }
+
+    /**
+     * Find the SubscriptionTopics triggered by a write.
+     *
+     * @param interactions - the methodCriteria the write counts as
+     * @param theResource - the written resource
+     * @param criteriaEngine - the engine used to evaluate trigger criteria
+     * @return SubscriptionTopics which match the write
+     */
+    public List<SubscriptionTopic> match(Set<MethodCriteria> interactions, Resource theResource,
+      CriteriaEngine criteriaEngine) {
+        return match(interactions, theResource, () -> null, criteriaEngine);
+    }
+
+    /**
+     * Find the SubscriptionTopics triggered by a write, with access to the version
+     * of the resource before the write for triggers with previous criteria.
+     *
+     * @param interactions - the methodCriteria the write counts as
+     * @param theResource - the written resource, or the deleted version on delete
+     * @param previousVersion - supplies the version before the write, or null if there is none.
+     *     Only called when a trigger with previous criteria is evaluated
+     * @param criteriaEngine - the engine used to evaluate trigger criteria
+     * @return SubscriptionTopics which match the write
+     */
+    public List<SubscriptionTopic> match(Set<MethodCriteria> interactions, Resource theResource,
+      Supplier<Resource> previousVersion, CriteriaEngine criteriaEngine) {
+        Map<MethodCriteria, List<CompiledTopic>> byInteraction = this.table.get(theResource.getResourceType());
+        if (byInteraction == null || interactions.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        Collection<CompiledTopic> candidates;
+        if (interactions.size() == 1) {
+            candidates = byInteraction.getOrDefault(interactions.iterator().next(), Collections.emptyList());
+        } else {
+            candidates = new LinkedHashSet<>();
+            for (MethodCriteria interaction : interactions) {
+                candidates.addAll(byInteraction.getOrDefault(interaction, Collections.emptyList()));
+            }
+        }
+
+        Supplier<Resource> previous = new PreviousVersion(interactions, theResource, previousVersion);
+        List<SubscriptionTopic> matchedTopics = new ArrayList<>();
+        for (CompiledTopic candidate : candidates) {
+            if (candidate.matches(interactions, theResource, previous, criteriaEngine)) {
+                matchedTopics.add(candidate.subscriptionTopic);
+            }
+        }
+        return matchedTopics;
+    }
+
+    /**
+     * Check if any topic triggers on the resource type.
+     *
+     * @param resourceType - the resource type
+     * @return true if at least one topic has a trigger for the type, false otherwise
+     */
+    public boolean hasTriggers(ResourceType resourceType) {
+        return this.table.containsKey(resourceType);
+    }
+
+    /**
+     * Check if any trigger on the resource type needs the version of a resource
+     * before a write, i.e. it has previous criteria or fires on delete.
+     *
+     * @param resourceType - the resource type
+     * @return true if versions of the type should be remembered, false otherwise
+     */
+    public boolean needsPreviousVersion(ResourceType resourceType) {
+        return this.previousVersionTypes.contains(resourceType);
+    }
+
+    /**
+     * A topic and its triggers for a single resource type.
+     */
+    private static class CompiledTopic {
+        private final SubscriptionTopic subscriptionTopic;
+        private final List<CompiledTrigger> triggers;
+
+        CompiledTopic(SubscriptionTopic subscriptionTopic, List<CompiledTrigger> triggers) {
+            this.subscriptionTopic = subscriptionTopic;
+            this.triggers = triggers;
+        }
+
+        boolean matches(Set<MethodCriteria> interactions, Resource theResource, Supplier<Resource> previousVersion,
+          CriteriaEngine criteriaEngine) {
+            // Check every methodCriteria before any criteria since those may need the server
+            for (CompiledTrigger trigger : this.triggers) {
+                if (Collections.disjoint(trigger.methodCriteria, interactions)) {
+                    return false;
+                }
+            }
+            for (CompiledTrigger trigger : this.triggers) {
+                if (!trigger.matches(interactions, theResource, previousVersion, criteriaEngine)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A resourceTrigger with its methodCriteria as a set and its previous and
+     * current criteria as full criteria strings.
+     */
+    private static class CompiledTrigger {
+        private final Set<MethodCriteria> methodCriteria;
+        private final List<String> criteria;
+        private final List<String> previousCriteria;
+        private final boolean passesOnCreate;
+        private final boolean passesOnDelete;
+        private final boolean requireBoth;
+
+        CompiledTrigger(ResourceTrigger resourceTrigger) {
+            this.methodCriteria = EnumSet.noneOf(MethodCriteria.class);
+            this.methodCriteria.addAll(resourceTrigger.getMethodCriteria());
+            this.criteria = toCriteria(resourceTrigger, resourceTrigger.getCurrentCriteria());
+            this.previousCriteria = toCriteria(resourceTrigger, resourceTrigger.getPreviousCriteria());
+            this.passesOnCreate = resourceTrigger.getResultForCreate() == CriteriaResult.TEST_PASSES;
+            this.passesOnDelete = resourceTrigger.getResultForDelete() == CriteriaResult.TEST_PASSES;
+            this.requireBoth = resourceTrigger.isRequireBoth();
+        }
+
+        /**
+         * Evaluate the previous and current criteria. A trigger without criteria
+         * always matches and a trigger with only one of them matches on that one.
+         */
+        boolean matches(Set<MethodCriteria> interactions, Resource theResource,
+          Supplier<Resource> previousVersion, CriteriaEngine criteriaEngine) {
+            Boolean current = null;
+            if (this.criteria != null) {
+                current = interactions.contains(MethodCriteria.DELETE) ? this.passesOnDelete
+                    : criteriaEngine.matches(this.criteria, theResource);
+            }
+            if (this.previousCriteria == null) {
+                return current == null || current;
+            } else if (current != null && current != this.requireBoth) {
+                // Decided without the previous version, false when both are required and true when either is
+                return current;
+            }
+
+            Resource previous = previousVersion.get();
+            boolean previousResult = previous == null ? this.passesOnCreate
+                : criteriaEngine.matchesLocally(this.previousCriteria, previous);
+            if (current == null) {
+                return previousResult;
+            }
+            return this.requireBoth ? current && previousResult : current || previousResult;
+        }
+
+        private static List<String> toCriteria(ResourceTrigger resourceTrigger, String criteria) {
+            return criteria == null ? null
+                : Collections.singletonList(resourceTrigger.getResourceType().name() + "?" + criteria);
+        }
+    }
+
+    /**
+     * Supplies the version of a resource before a write, at most once. There is
+     * no previous version on create, and on delete it is the deleted version.
+     */
+    private static class PreviousVersion implements Supplier<Resource> {
+        private final Set<MethodCriteria> interactions;
+        private final Resource theResource;
+        private final Supplier<Resource> previousVersion;
+        private boolean loaded;
+        private Resource previous;
+
+        PreviousVersion(Set<MethodCriteria> interactions, Resource theResource,
+          Supplier<Resource> previousVersion) {
+            this.interactions = interactions;
+            this.theResource = theResource;
+            this.previousVersion = previousVersion;
+        }
+
+        @Override
+        public Resource get() {
+            if (!this.loaded) {
+                this.loaded = true;
+                if (this.interactions.contains(MethodCriteria.DELETE)) {
+                    this.previous = this.theResource;
+                } else if (!this.interactions.contains(MethodCriteria.CREATE)) {
+                    this.previous = this.previousVersion.get();
+                }
+            }
+            return this.previous;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.mitre.hapifhir.changefeed;
+
+import java.io.Closeable;
+
+/**
+ * IChangeFeed broadcasts subscription and topic changes to every node running
+ * the interceptors, so each node can keep its local subscription state current
+ * when a Subscription is written or errored through another node. A change is
+ * delivered to every listener, including those on the node which published it.
+ */
+public interface IChangeFeed extends Closeable {
+
+    /**
+     * Receives the changes published to the feed.
+     */
+    public interface Listener {
+        /**
+         * Called for every change published to the feed. Called on the publishing
+         * thread or a feed thread, so implementations must be thread safe.
+         *
+         * @param change - the change
+         */
+        void onChange(SubscriptionChange change);
+    }
+
+    /**
+     * Broadcast a change to every node.
+     *
+     * @param change - the change
+     */
+    public void publish(SubscriptionChange change);
+
+    /**
+     * Add a listener receiving the changes published from now on.
+     *
+     * @param listener - the listener
+     */
+    public void addListener(Listener listener);
+}
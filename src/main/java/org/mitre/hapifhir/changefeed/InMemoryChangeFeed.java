@@ -0,0 +1,39 @@
+package org.mitre.hapifhir.changefeed;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * IChangeFeed within a single JVM, e.g. for several servers or interceptors in
+ * one process. Changes are delivered to the listeners on the publishing thread.
+ */
+public class InMemoryChangeFeed implements IChangeFeed {
+    private final Logger myLogger = LoggerFactory.getLogger(InMemoryChangeFeed.class.getName());
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void publish(SubscriptionChange change) {
+        for (Listener listener : this.listeners) {
+            try {
+                listener.onChange(change);
+            } catch (Exception e) {
+                myLogger.error("Error handling " + change.getType() + " change from node "
+                    + change.getNodeId(), e);
+            }
+        }
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        this.listeners.add(listener);
+    }
+
+    @Override
+    public void close() {
+        this.listeners.clear();
+    }
+}
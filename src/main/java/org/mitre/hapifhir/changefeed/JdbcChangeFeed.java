@@ -0,0 +1,238 @@
+package org.mitre.hapifhir.changefeed;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.mitre.hapifhir.changefeed.SubscriptionChange.ChangeType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * IChangeFeed shared through a database table which every node polls, e.g. an
+ * H2 database in server mode or the database of the HAPI server. Changes are
+ * inserted with an increasing sequence number and each node reads the rows
+ * after the last one it has seen. Rows older than the retention are deleted.
+ *
+ * <p>Sequence numbers may become visible out of order when inserts commit
+ * concurrently, so every poll also reads again the rows created within the last
+ * 30 seconds and delivers those it has not seen yet. A change whose insert takes
+ * longer than that to commit, or which is published by a node whose clock is
+ * more than that behind, may be missed. Listeners must therefore tolerate
+ * changes arriving out of order.
+ *
+ * <p>The table is created if it does not exist. The default DDL is written for
+ * H2, for other databases create the table up front with equivalent columns.
+ */
+public class JdbcChangeFeed implements IChangeFeed {
+    private final Logger myLogger = LoggerFactory.getLogger(JdbcChangeFeed.class.getName());
+
+    public static final String DEFAULT_TABLE_NAME = "subscription_change_feed";
+    public static final long DEFAULT_POLL_INTERVAL_MS = 1000;
+    public static final long DEFAULT_RETENTION_MS = TimeUnit.HOURS.toMillis(1);
+
+    // Rows created this recently are read again in case they committed after later rows
+    private static final long LOOKBACK_MS = TimeUnit.SECONDS.toMillis(30);
+    private static final int MAX_ROWS_PER_POLL = 1000;
+    private static final long PRUNE_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private final DataSource dataSource;
+    private final String tableName;
+    private final long retentionMs;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    // Sequences of the rows delivered within the lookback, and when they were created
+    private final Map<Long, Long> seenSequences = new HashMap<>();
+    private final ScheduledExecutorService poller;
+    private final long startSequence;
+    private long lastSequence;
+    private long lastPruneMs;
+
+    /**
+     * Create a new feed with the default table, poll interval and retention.
+     *
+     * @param dataSource - the shared database
+     * @throws SQLException if the table cannot be created or read
+     */
+    public JdbcChangeFeed(DataSource dataSource) throws SQLException {
+        this(dataSource, DEFAULT_TABLE_NAME, DEFAULT_POLL_INTERVAL_MS, DEFAULT_RETENTION_MS);
+    }
+
+    /**
+     * Create a new feed. Only changes published after the feed is created are delivered.
+     *
+     * @param dataSource - the shared database
+     * @param tableName - the table holding the changes
+     * @param pollIntervalMs - how often to read new changes, in milliseconds
+     * @param retentionMs - how long changes are kept in the table, in milliseconds
+     * @throws SQLException if the table cannot be created or read
+     */
+    public JdbcChangeFeed(DataSource dataSource, String tableName, long pollIntervalMs, long retentionMs)
+        throws SQLException {
+        if (!tableName.matches("[A-Za-z_][A-Za-z0-9_]*")) {
+            throw new IllegalArgumentException("Invalid table name " + tableName);
+        }
+        this.dataSource = dataSource;
+        this.tableName = tableName;
+        this.retentionMs = retentionMs;
+        createTable();
+        this.startSequence = readMaxSequence();
+        this.lastSequence = this.startSequence;
+
+        this.poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "subscription-change-feed");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.poller.scheduleWithFixedDelay(this::poll, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void publish(SubscriptionChange change) {
+        String sql = "INSERT INTO " + this.tableName
+            + " (node_id, change_type, resource_id, payload, created_at) VALUES (?, ?, ?, ?, ?)";
+        try (Connection connection = this.dataSource.getConnection();
+            PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, change.getNodeId());
+            statement.setString(2, change.getType().name());
+            statement.setString(3, change.getResourceId());
+            statement.setString(4, change.getPayload());
+            statement.setLong(5, System.currentTimeMillis());
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            myLogger.error("Unable to publish " + change.getType() + " change to the change feed", e);
+        }
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Stop polling for changes.
+     */
+    @Override
+    public void close() {
+        this.poller.shutdownNow();
+    }
+
+    /**
+     * Read the changes after the last seen one, and the recent ones which committed
+     * late, and deliver them to the listeners.
+     */
+    private void poll() {
+        List<SubscriptionChange> changes = new ArrayList<>();
+        long cutoff = System.currentTimeMillis() - LOOKBACK_MS;
+        String columns =
+            "SELECT seq, node_id, change_type, resource_id, payload, created_at FROM " + this.tableName;
+        try (Connection connection = this.dataSource.getConnection();
+            PreparedStatement next = connection.prepareStatement(columns + " WHERE seq > ? ORDER BY seq");
+            PreparedStatement recent =
+                connection.prepareStatement(columns + " WHERE seq <= ? AND created_at >= ? ORDER BY seq")) {
+            recent.setLong(1, this.lastSequence);
+            recent.setLong(2, cutoff);
+            readChanges(recent, changes);
+            next.setLong(1, this.lastSequence);
+            next.setMaxRows(MAX_ROWS_PER_POLL);
+            readChanges(next, changes);
+
+            // Older rows are not read again so they need not be remembered
+            this.seenSequences.values().removeIf(createdAt -> createdAt < cutoff);
+            prune(connection);
+        } catch (SQLException | RuntimeException e) {
+            myLogger.error("Unable to read the change feed", e);
+        }
+
+        for (SubscriptionChange change : changes) {
+            for (Listener listener : this.listeners) {
+                try {
+                    listener.onChange(change);
+                } catch (Exception e) {
+                    myLogger.error("Error handling " + change.getType() + " change from node "
+                        + change.getNodeId(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the changes selected by a statement which have not been seen yet.
+     *
+     * @param statement - the prepared select
+     * @param changes - the list to add the new changes to
+     * @throws SQLException if the changes cannot be read
+     */
+    private void readChanges(PreparedStatement statement, List<SubscriptionChange> changes) throws SQLException {
+        try (ResultSet results = statement.executeQuery()) {
+            while (results.next()) {
+                long sequence = results.getLong(1);
+                if (sequence <= this.startSequence || this.seenSequences.containsKey(sequence)) {
+                    continue;
+                }
+                this.seenSequences.put(sequence, results.getLong(6));
+                this.lastSequence = Math.max(this.lastSequence, sequence);
+                ChangeType type;
+                try {
+                    type = ChangeType.valueOf(results.getString(3));
+                } catch (IllegalArgumentException e) {
+                    myLogger.warn("Skipping change " + sequence + " with unknown type " + results.getString(3));
+                    continue;
+                }
+                changes.add(new SubscriptionChange(results.getString(2), type, results.getString(4),
+                    results.getString(5)));
+            }
+        }
+    }
+
+    /**
+     * Delete the changes older than the retention, at most once per prune interval.
+     *
+     * @param connection - the open connection
+     * @throws SQLException if the rows cannot be deleted
+     */
+    private void prune(Connection connection) throws SQLException {
+        long now = System.currentTimeMillis();
+        if (now - this.lastPruneMs < PRUNE_INTERVAL_MS) {
+            return;
+        }
+        this.lastPruneMs = now;
+        try (PreparedStatement statement =
+            connection.prepareStatement("DELETE FROM " + this.tableName + " WHERE created_at < ?")) {
+            statement.setLong(1, now - this.retentionMs);
+            statement.executeUpdate();
+        }
+    }
+
+    private void createTable() throws SQLException {
+        try (Connection connection = this.dataSource.getConnection();
+            Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + this.tableName + " ("
+                + "seq BIGINT AUTO_INCREMENT PRIMARY KEY, "
+                + "node_id VARCHAR(64) NOT NULL, "
+                + "change_type VARCHAR(32) NOT NULL, "
+                + "resource_id VARCHAR(64), "
+                + "payload CLOB, "
+                + "created_at BIGINT NOT NULL)");
+        }
+    }
+
+    private long readMaxSequence() throws SQLException {
+        try (Connection connection = this.dataSource.getConnection();
+            Statement statement = connection.createStatement();
+            ResultSet results = statement.executeQuery("SELECT MAX(seq) FROM " + this.tableName)) {
+            return results.next() ? results.getLong(1) : 0;
+        }
+    }
+}
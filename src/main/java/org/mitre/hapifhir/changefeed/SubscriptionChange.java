@@ -0,0 +1,53 @@
+package org.mitre.hapifhir.changefeed;
+
+/**
+ * A change to the subscriptions or topics of the server, published to an
+ * IChangeFeed by the node it was made on.
+ */
+public class SubscriptionChange {
+
+    public enum ChangeType {
+        /** A Subscription was created or updated, the payload is the Subscription as JSON. */
+        SUBSCRIPTION_UPDATED,
+        /** A Subscription was deleted, there is no payload. */
+        SUBSCRIPTION_DELETED,
+        /** The supported SubscriptionTopics changed, there is no payload. */
+        TOPICS_CHANGED;
+    }
+
+    private final String nodeId;
+    private final ChangeType type;
+    private final String resourceId;
+    private final String payload;
+
+    /**
+     * Create a new change.
+     *
+     * @param nodeId - the id of the node which made the change
+     * @param type - the type of change
+     * @param resourceId - the id of the changed Subscription, null for topic changes
+     * @param payload - the changed resource as JSON, null if the change type has no payload
+     */
+    public SubscriptionChange(String nodeId, ChangeType type, String resourceId, String payload) {
+        this.nodeId = nodeId;
+        this.type = type;
+        this.resourceId = resourceId;
+        this.payload = payload;
+    }
+
+    public String getNodeId() {
+        return this.nodeId;
+    }
+
+    public ChangeType getType() {
+        return this.type;
+    }
+
+    public String getResourceId() {
+        return this.resourceId;
+    }
+
+    public String getPayload() {
+        return this.payload;
+    }
+}
@@ -0,0 +1,66 @@
+package org.mitre.hapifhir.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+
+/**
+ * Helper methods for IServerClient implementations which send many searches as
+ * a single FHIR batch Bundle.
+ */
+class BatchSearchHelper {
+
+    private BatchSearchHelper() {
+    }
+
+    /**
+     * Helper method to create a batch Bundle with a GET entry for each criteria.
+     *
+     * @param criteria - the criteria strings e.g. "Encounter?status=finished"
+     * @return the batch Bundle
+     */
+    static Bundle createBatchBundle(List<String> criteria) {
+        Bundle batch = new Bundle();
+        batch.setType(BundleType.BATCH);
+        for (String criterion : criteria) {
+            String url = criterion.trim();
+            if (url.startsWith("/")) {
+                url = url.substring(1);
+            }
+            batch.addEntry().getRequest().setMethod(HTTPVerb.GET).setUrl(url);
+        }
+        return batch;
+    }
+
+    /**
+     * Helper method to get the search bundle of each entry in a batch-response.
+     * Entries are in the same order as the batch, per the FHIR spec.
+     *
+     * @param response - the batch-response Bundle
+     * @param size - the number of searches in the batch
+     * @return the search bundle for each search, null for a search which failed
+     */
+    static List<Bundle> getSearchResults(Bundle response, int size) {
+        List<Bundle> results = new ArrayList<>(size);
+        List<BundleEntryComponent> entries = response.getEntry();
+        for (int i = 0; i < size; i++) {
+            BundleEntryComponent entry = i < entries.size() ? entries.get(i) : null;
+            if (entry != null && entry.getResource() instanceof Bundle && isSuccess(entry)) {
+                results.add((Bundle) entry.getResource());
+            } else {
+                results.add(null);
+            }
+        }
+        return results;
+    }
+
+    private static boolean isSuccess(BundleEntryComponent entry) {
+        String status = entry.getResponse().getStatus();
+        // The status is e.g. "200 OK", a missing status is taken as success
+        return status == null || status.trim().startsWith("2");
+    }
+}
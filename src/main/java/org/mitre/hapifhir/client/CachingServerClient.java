@@ -0,0 +1,328 @@
+package org.mitre.hapifhir.client;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * IServerClient decorator which caches search results in memory. The cache is
+ * a bounded LRU keyed by the normalized criteria, and entries expire after a
+ * time to live. Cached searches of a resource type are invalidated whenever a
+ * resource of that type is written, either through updateResource or by
+ * calling invalidate when the server sees a write. Searches with chained,
+ * reverse chained or included parameters depend on other resource types and
+ * are invalidated by a write to any type.
+ *
+ * <p>Cached Bundles are shared between callers and must not be modified.
+ */
+public class CachingServerClient implements IServerClient {
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_TTL_MS = 30000;
+
+    private final IServerClient delegate;
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final Map<String, CacheEntry> cache;
+    private final Map<String, AtomicLong> typeGenerations = new ConcurrentHashMap<>();
+    private final AtomicLong globalGeneration = new AtomicLong();
+    private final AtomicLong clearGeneration = new AtomicLong();
+
+    /**
+     * Create a new caching client with the default size and time to live.
+     *
+     * @param delegate - the client to send searches and updates to
+     */
+    public CachingServerClient(IServerClient delegate) {
+        this(delegate, DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create a new caching client.
+     *
+     * @param delegate - the client to send searches and updates to
+     * @param maxEntries - the maximum number of cached searches, the least recently used are evicted first
+     * @param ttl - how long a search result is cached
+     * @param unit - the unit of the time to live
+     */
+    public CachingServerClient(IServerClient delegate, int maxEntries, long ttl, TimeUnit unit) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.delegate = delegate;
+        this.maxEntries = maxEntries;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > CachingServerClient.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Search for resources matching criteria, from the cache when a fresh result is cached.
+     *
+     * @param criteria - the criteria string e.g. "Subscription?active=true"
+     * @return the search bundle, which must not be modified
+     */
+    @Override
+    public Bundle searchOnCriteria(String criteria) {
+        String key = normalize(criteria);
+        Bundle cached = getCached(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        // Read the generations before searching so a write during the search invalidates the result
+        CacheEntry pending = newEntry(key);
+        Bundle bundle = this.delegate.searchOnCriteria(criteria);
+        put(key, pending, bundle);
+        return bundle;
+    }
+
+    /**
+     * Search for resources matching each of many criteria. Cached results are
+     * served from memory and only the remaining searches are sent to the delegate,
+     * together in a single call.
+     *
+     * @param criteria - the criteria strings e.g. "Encounter?status=finished&amp;_id=123"
+     * @return the search bundle for each criteria in the same order, null for a search which failed
+     */
+    @Override
+    public List<Bundle> searchOnCriteria(List<String> criteria) {
+        List<Bundle> results = new ArrayList<>(criteria.size());
+        List<String> missedKeys = new ArrayList<>();
+        List<String> missedCriteria = new ArrayList<>();
+        List<Integer> missedIndexes = new ArrayList<>();
+        for (String criterion : criteria) {
+            String key = normalize(criterion);
+            Bundle cached = getCached(key);
+            if (cached == null) {
+                missedKeys.add(key);
+                missedCriteria.add(criterion);
+                missedIndexes.add(results.size());
+            }
+            results.add(cached);
+        }
+        if (missedCriteria.isEmpty()) {
+            return results;
+        }
+
+        List<CacheEntry> pending = new ArrayList<>(missedKeys.size());
+        for (String key : missedKeys) {
+            pending.add(newEntry(key));
+        }
+        List<Bundle> searched = this.delegate.searchOnCriteria(missedCriteria);
+        for (int i = 0; i < missedIndexes.size(); i++) {
+            Bundle bundle = searched.get(i);
+            results.set(missedIndexes.get(i), bundle);
+            if (bundle != null) {
+                put(missedKeys.get(i), pending.get(i), bundle);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Load the page after a page of search results. Pages after the first are not cached.
+     *
+     * @param bundle - the current page
+     * @return the next page, or null if there is no next page
+     */
+    @Override
+    public Bundle getNextPage(Bundle bundle) {
+        return this.delegate.getNextPage(bundle);
+    }
+
+    /**
+     * Read the most recent versions of a resource. History is not cached.
+     *
+     * @param resourceType - the resource type e.g. "Observation"
+     * @param id - the resource id
+     * @param count - the maximum number of versions to read
+     * @return the history bundle, or null if history is not supported
+     */
+    @Override
+    public Bundle getHistory(String resourceType, String id, int count) {
+        return this.delegate.getHistory(resourceType, id, count);
+    }
+
+    /**
+     * Update the resource and invalidate cached searches of its type.
+     *
+     * @param resource - the updated resource
+     * @return method outcome
+     */
+    @Override
+    public MethodOutcome updateResource(IBaseResource resource) {
+        try {
+            return this.delegate.updateResource(resource);
+        } finally {
+            invalidate(resource.fhirType());
+        }
+    }
+
+    /**
+     * Invalidate the cached searches of a resource type, and every cached search
+     * which depends on other resource types. Call when a resource of the type is written.
+     *
+     * @param resourceType - the written resource type, e.g. "Encounter"
+     */
+    public void invalidate(String resourceType) {
+        getGeneration(resourceType).incrementAndGet();
+        this.globalGeneration.incrementAndGet();
+    }
+
+    /**
+     * Invalidate every cached search.
+     */
+    public void invalidateAll() {
+        this.clearGeneration.incrementAndGet();
+        synchronized (this.cache) {
+            this.cache.clear();
+        }
+    }
+
+    /**
+     * Get the number of cached searches, including expired ones not yet evicted.
+     *
+     * @return the cache size
+     */
+    public int size() {
+        synchronized (this.cache) {
+            return this.cache.size();
+        }
+    }
+
+    /**
+     * Get a fresh cached search result, removing the entry if it is stale.
+     *
+     * @param key - the normalized criteria
+     * @return the cached search bundle, or null if there is no fresh result
+     */
+    private Bundle getCached(String key) {
+        long now = System.nanoTime();
+        synchronized (this.cache) {
+            CacheEntry entry = this.cache.get(key);
+            if (entry == null) {
+                return null;
+            } else if (now - entry.cachedAt < this.ttlNanos && isCurrent(entry)) {
+                return entry.bundle;
+            }
+            this.cache.remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Snapshot the write generations for a search which is about to be sent.
+     *
+     * @param key - the normalized criteria
+     * @return the entry to cache the result in once the search returns
+     */
+    private CacheEntry newEntry(String key) {
+        String resourceType = getResourceType(key);
+        return new CacheEntry(resourceType, dependsOnOtherTypes(key), getGeneration(resourceType).get(),
+            this.globalGeneration.get(), this.clearGeneration.get(), System.nanoTime());
+    }
+
+    private void put(String key, CacheEntry entry, Bundle bundle) {
+        entry.bundle = bundle;
+        synchronized (this.cache) {
+            this.cache.put(key, entry);
+        }
+    }
+
+    private boolean isCurrent(CacheEntry entry) {
+        if (entry.clearGeneration != this.clearGeneration.get()) {
+            return false;
+        } else if (entry.dependsOnOtherTypes) {
+            return entry.globalGeneration == this.globalGeneration.get();
+        }
+        return entry.typeGeneration == getGeneration(entry.resourceType).get();
+    }
+
+    private AtomicLong getGeneration(String resourceType) {
+        AtomicLong generation = this.typeGenerations.get(resourceType);
+        return generation != null ? generation
+            : this.typeGenerations.computeIfAbsent(resourceType, k -> new AtomicLong());
+    }
+
+    /**
+     * Helper method to normalize criteria so equivalent searches share a cache entry.
+     * The leading slash is removed and the parameters are sorted.
+     *
+     * @param criteria - the criteria string
+     * @return the normalized criteria
+     */
+    static String normalize(String criteria) {
+        String trimmed = criteria.trim();
+        if (trimmed.startsWith("/")) {
+            trimmed = trimmed.substring(1);
+        }
+        int queryStart = trimmed.indexOf('?');
+        if (queryStart < 0) {
+            return trimmed;
+        }
+
+        String[] parameters = Arrays.stream(trimmed.substring(queryStart + 1).split("&"))
+            .filter(parameter -> !parameter.isEmpty())
+            .sorted()
+            .toArray(String[]::new);
+        return trimmed.substring(0, queryStart) + "?" + String.join("&", parameters);
+    }
+
+    private static String getResourceType(String normalizedCriteria) {
+        int queryStart = normalizedCriteria.indexOf('?');
+        return queryStart < 0 ? normalizedCriteria : normalizedCriteria.substring(0, queryStart);
+    }
+
+    private static boolean dependsOnOtherTypes(String normalizedCriteria) {
+        int queryStart = normalizedCriteria.indexOf('?');
+        if (queryStart < 0) {
+            return false;
+        }
+        for (String parameter : normalizedCriteria.substring(queryStart + 1).split("&")) {
+            int separator = parameter.indexOf('=');
+            String name = separator < 0 ? parameter : parameter.substring(0, separator);
+            if (name.contains(".") || name.startsWith("_has") || name.startsWith("_include")
+                || name.startsWith("_revinclude")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A cached search result and the write generations it was searched at.
+     */
+    private static class CacheEntry {
+        private final String resourceType;
+        private final boolean dependsOnOtherTypes;
+        private final long typeGeneration;
+        private final long globalGeneration;
+        private final long clearGeneration;
+        private final long cachedAt;
+        private Bundle bundle;
+
+        CacheEntry(String resourceType, boolean dependsOnOtherTypes, long typeGeneration,
+          long globalGeneration, long clearGeneration, long cachedAt) {
+            this.resourceType = resourceType;
+            this.dependsOnOtherTypes = dependsOnOtherTypes;
+            this.typeGeneration = typeGeneration;
+            this.globalGeneration = globalGeneration;
+            this.clearGeneration = clearGeneration;
+            this.cachedAt = cachedAt;
+        }
+    }
+}
@@ -2,8 +2,13 @@ package org.mitre.hapifhir.client;
 
 import ca.uhn.fhir.rest.api.MethodOutcome;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 
 /**
  * IServerClient is an interface to perform CRUD operations on the HAPI
@@ -22,6 +27,61 @@ public interface IServerClient {
      */
     public Bundle searchOnCriteria(String criteria);
 
+    /**
+     * Search for resources matching each of many criteria. Implementations should
+     * send the searches to the server together, e.g. as a single FHIR batch Bundle,
+     * rather than one request per criteria. The default implementation searches
+     * one criteria at a time.
+     *
+     * @param criteria - the criteria strings e.g. "Encounter?status=finished&amp;_id=123"
+     * @return the search bundle for each criteria in the same order, null for a search which failed
+     */
+    public default List<Bundle> searchOnCriteria(List<String> criteria) {
+        List<Bundle> results = new ArrayList<>(criteria.size());
+        for (String criterion : criteria) {
+            results.add(searchOnCriteria(criterion));
+        }
+        return results;
+    }
+
+    /**
+     * Stream the entries of every page of a search. Pages are loaded lazily as
+     * the stream is consumed, with the next page prefetched in the background, so
+     * memory stays bounded regardless of the number of results. Close the stream
+     * when it is not consumed to the end.
+     *
+     * @param criteria - the criteria string e.g. "Subscription?status=active"
+     * @return sequential stream of the search entries
+     */
+    public default Stream<BundleEntryComponent> streamOnCriteria(String criteria) {
+        return PagedSearchSpliterator.stream(this, searchOnCriteria(criteria));
+    }
+
+    /**
+     * Load the page after a page of search results. The default implementation does
+     * not support paging, so searches end after the first page.
+     *
+     * @param bundle - the current page
+     * @return the next page, or null if there is no next page
+     */
+    public default Bundle getNextPage(Bundle bundle) {
+        return null;
+    }
+
+    /**
+     * Read the most recent versions of a resource, newest first. Deleted versions
+     * are included as entries without a resource. The default implementation does
+     * not support history and returns null.
+     *
+     * @param resourceType - the resource type e.g. "Observation"
+     * @param id - the resource id
+     * @param count - the maximum number of versions to read
+     * @return the history bundle, or null if history is not supported
+     */
+    public default Bundle getHistory(String resourceType, String id, int count) {
+        return null;
+    }
+
     /**
      * Update the resource.
      * 
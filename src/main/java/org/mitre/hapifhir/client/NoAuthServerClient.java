@@ -3,8 +3,12 @@ package org.mitre.hapifhir.client;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 
+import java.util.Collections;
+import java.util.List;
+
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
 
 public class NoAuthServerClient implements IServerClient {
     
@@ -26,6 +30,57 @@ public class NoAuthServerClient implements IServerClient {
             .execute();
     }
 
+    /**
+     * Search for resources matching each of many criteria on the server defined by
+     * the client. The searches are sent in a single batch Bundle.
+     *
+     * @param criteria - the criteria strings e.g. "Encounter?status=finished&amp;_id=123"
+     * @return the search bundle for each criteria in the same order, null for a search which failed
+     */
+    @Override
+    public List<Bundle> searchOnCriteria(List<String> criteria) {
+        if (criteria.isEmpty()) {
+            return Collections.emptyList();
+        } else if (criteria.size() == 1) {
+            return Collections.singletonList(searchOnCriteria(criteria.get(0)));
+        }
+
+        Bundle response = client.transaction().withBundle(BatchSearchHelper.createBatchBundle(criteria))
+            .execute();
+        return BatchSearchHelper.getSearchResults(response, criteria.size());
+    }
+
+    /**
+     * Load the page after a page of search results from the server defined by the client.
+     *
+     * @param bundle - the current page
+     * @return the next page, or null if there is no next page
+     */
+    @Override
+    public Bundle getNextPage(Bundle bundle) {
+        if (bundle.getLink(Bundle.LINK_NEXT) == null) {
+            return null;
+        }
+        return client.loadPage().next(bundle)
+            .execute();
+    }
+
+    /**
+     * Read the most recent versions of a resource from the server defined by the client.
+     *
+     * @param resourceType - the resource type e.g. "Observation"
+     * @param id - the resource id
+     * @param count - the maximum number of versions to read
+     * @return the history bundle, newest version first
+     */
+    @Override
+    public Bundle getHistory(String resourceType, String id, int count) {
+        return client.history().onInstance(new IdType(resourceType, id))
+            .returnBundle(Bundle.class)
+            .count(count)
+            .execute();
+    }
+
     /**
      * Updates a resource on the server defined by the client.
      * 
@@ -0,0 +1,139 @@
+package org.mitre.hapifhir.client;
+
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+
+/**
+ * Lazy Spliterator over the entries of a paged search. The next link of each
+ * page is followed only as the entries are consumed, and the next page is
+ * fetched in the background while the entries of the current page are
+ * processed. At most two pages are held at a time no matter how many results
+ * the search has.
+ */
+public class PagedSearchSpliterator implements Spliterator<BundleEntryComponent> {
+    private static final ExecutorService PREFETCH_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "subscription-page-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final IServerClient serverClient;
+    private final Executor executor;
+    private Iterator<BundleEntryComponent> currentEntries;
+    private CompletableFuture<Bundle> nextPage;
+
+    /**
+     * Create a new spliterator which prefetches on a shared pool of daemon threads.
+     *
+     * @param serverClient - the client used to load the next pages
+     * @param firstPage - the first page of the search
+     */
+    public PagedSearchSpliterator(IServerClient serverClient, Bundle firstPage) {
+        this(serverClient, firstPage, PREFETCH_EXECUTOR);
+    }
+
+    /**
+     * Create a new spliterator.
+     *
+     * @param serverClient - the client used to load the next pages
+     * @param firstPage - the first page of the search
+     * @param executor - runs the prefetch of the next page
+     */
+    public PagedSearchSpliterator(IServerClient serverClient, Bundle firstPage, Executor executor) {
+        this.serverClient = serverClient;
+        this.executor = executor;
+        setPage(firstPage);
+    }
+
+    /**
+     * Stream the entries of a paged search. Close the stream to cancel the prefetch
+     * when it is not consumed to the end.
+     *
+     * @param serverClient - the client used to load the next pages
+     * @param firstPage - the first page of the search
+     * @return sequential stream of the entries of every page
+     */
+    public static Stream<BundleEntryComponent> stream(IServerClient serverClient, Bundle firstPage) {
+        PagedSearchSpliterator spliterator = new PagedSearchSpliterator(serverClient, firstPage);
+        return StreamSupport.stream(spliterator, false).onClose(spliterator::cancel);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super BundleEntryComponent> action) {
+        while (!this.currentEntries.hasNext()) {
+            if (this.nextPage == null) {
+                return false;
+            }
+            Bundle page = awaitNextPage();
+            if (page == null) {
+                this.nextPage = null;
+                return false;
+            }
+            setPage(page);
+        }
+        action.accept(this.currentEntries.next());
+        return true;
+    }
+
+    @Override
+    public Spliterator<BundleEntryComponent> trySplit() {
+        // Pages must be followed in order
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+
+    /**
+     * Cancel the prefetch of the next page and end the iteration.
+     */
+    public void cancel() {
+        if (this.nextPage != null) {
+            this.nextPage.cancel(true);
+            this.nextPage = null;
+        }
+    }
+
+    /**
+     * Make a page current and start fetching the page after it.
+     *
+     * @param page - the page whose entries are iterated next
+     */
+    private void setPage(Bundle page) {
+        this.currentEntries = page.getEntry().iterator();
+        this.nextPage = page.getLink(Bundle.LINK_NEXT) == null ? null
+            : CompletableFuture.supplyAsync(() -> this.serverClient.getNextPage(page), this.executor);
+    }
+
+    private Bundle awaitNextPage() {
+        try {
+            return this.nextPage.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading the next page", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Unable to load the next page", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package org.mitre.hapifhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Memory bounded cache of the latest seen version of resources, used to
+ * evaluate previous criteria without reading the previous version from the
+ * server on every write. Versions are recorded as writes pass through the
+ * interceptor and kept as compact JSON, least recently used first out, up to
+ * a maximum total size. The previous version is only read from the instance
+ * history when it is not cached, e.g. after a restart or an eviction. The read
+ * is a synchronous request to the server on the calling thread, which is the
+ * request thread of the write, so a miss adds a round trip to the write.
+ */
+public class ResourceVersionCache {
+    private final Logger myLogger = LoggerFactory.getLogger(ResourceVersionCache.class.getName());
+
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    // Enough versions to find the previous one when a few writes race
+    private static final int HISTORY_COUNT = 5;
+
+    private final FhirContext myCtx;
+    private final IServerClient serverClient;
+    private final long maxBytes;
+    private final Map<String, CachedVersion> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long sizeBytes;
+
+    /**
+     * Create a new version cache with the default maximum size.
+     *
+     * @param ctx - the fhir context used to encode and parse the cached versions
+     * @param serverClient - the client used to read history on a cache miss
+     */
+    public ResourceVersionCache(FhirContext ctx, IServerClient serverClient) {
+        this(ctx, serverClient, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Create a new version cache.
+     *
+     * @param ctx - the fhir context used to encode and parse the cached versions
+     * @param serverClient - the client used to read history on a cache miss
+     * @param maxBytes - the maximum total size of the cached versions, the least recently used are evicted first
+     */
+    public ResourceVersionCache(FhirContext ctx, IServerClient serverClient, long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        this.myCtx = ctx;
+        this.serverClient = serverClient;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Record the latest version of a resource. An older version than the one
+     * cached is ignored.
+     *
+     * @param resource - the written resource
+     */
+    public void put(Resource resource) {
+        if (resource.getIdElement().getIdPart() == null) {
+            return;
+        }
+        String key = getKey(resource.fhirType(), resource.getIdElement().getIdPart());
+        String versionId = resource.getMeta().getVersionId();
+        // Parsers are not thread safe so a new one is used each time
+        String json = this.myCtx.newJsonParser().encodeResourceToString(resource);
+        CachedVersion version = new CachedVersion(versionId, json);
+
+        synchronized (this.cache) {
+            CachedVersion existing = this.cache.get(key);
+            if (existing != null && compareVersions(existing.versionId, versionId) > 0) {
+                return;
+            }
+            if (existing != null) {
+                this.sizeBytes -= existing.sizeBytes();
+            }
+            this.cache.put(key, version);
+            this.sizeBytes += version.sizeBytes();
+            evict();
+        }
+    }
+
+    /**
+     * Get the version of a resource before the given one, from the cache or otherwise
+     * from the resource history. Reading the history blocks until the server responds.
+     *
+     * @param current - the current version of the resource
+     * @return the previous version, or null if the resource has no previous version or it cannot be read
+     */
+    public Resource getPreviousVersion(Resource current) {
+        String resourceType = current.fhirType();
+        String id = current.getIdElement().getIdPart();
+        String versionId = current.getMeta().getVersionId();
+        if (id == null || "1".equals(versionId)) {
+            return null;
+        }
+
+        String previousVersionId = getPreviousVersionId(versionId);
+        CachedVersion cached;
+        synchronized (this.cache) {
+            cached = this.cache.get(getKey(resourceType, id));
+        }
+        boolean isPrevious;
+        if (cached == null) {
+            isPrevious = false;
+        } else if (previousVersionId != null) {
+            isPrevious = previousVersionId.equals(cached.versionId);
+        } else {
+            // Without numeric versions any cached version other than the current one is the latest seen before it
+            isPrevious = versionId == null || !versionId.equals(cached.versionId);
+        }
+        if (isPrevious) {
+            return parse(cached);
+        }
+        return readFromHistory(resourceType, id, versionId);
+    }
+
+    /**
+     * Get the latest version of a deleted resource and forget it. When it is not
+     * cached it is read from the resource history, which blocks until the server responds.
+     *
+     * @param resourceType - the resource type e.g. "Observation"
+     * @param id - the resource id
+     * @return the last version before the delete, or null if it cannot be read
+     */
+    public Resource removeDeleted(String resourceType, String id) {
+        CachedVersion cached;
+        synchronized (this.cache) {
+            cached = this.cache.remove(getKey(resourceType, id));
+            if (cached != null) {
+                this.sizeBytes -= cached.sizeBytes();
+            }
+        }
+        return cached != null ? parse(cached) : readFromHistory(resourceType, id, null);
+    }
+
+    /**
+     * Get the number of cached versions.
+     *
+     * @return the cache size
+     */
+    public int size() {
+        synchronized (this.cache) {
+            return this.cache.size();
+        }
+    }
+
+    /**
+     * Get the approximate memory used by the cached versions.
+     *
+     * @return the size in bytes
+     */
+    public long getSizeBytes() {
+        synchronized (this.cache) {
+            return this.sizeBytes;
+        }
+    }
+
+    private void evict() {
+        Iterator<CachedVersion> iterator = this.cache.values().iterator();
+        while (this.sizeBytes > this.maxBytes && iterator.hasNext()) {
+            this.sizeBytes -= iterator.next().sizeBytes();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Read the version of a resource before the given one from its history.
+     *
+     * @param resourceType - the resource type
+     * @param id - the resource id
+     * @param versionId - the current version, or null for the latest version with a resource
+     * @return the previous version, or null if it cannot be read
+     */
+    private Resource readFromHistory(String resourceType, String id, String versionId) {
+        Bundle history;
+        try {
+            history = this.serverClient.getHistory(resourceType, id, HISTORY_COUNT);
+        } catch (Exception e) {
+            myLogger.warn("Unable to read history of " + resourceType + "/" + id, e);
+            return null;
+        }
+        if (history == null) {
+            return null;
+        }
+
+        // History is newest first, so without a numeric version the previous one is the entry after the current
+        String previousVersionId = getPreviousVersionId(versionId);
+        boolean afterCurrent = false;
+        for (BundleEntryComponent entry : history.getEntry()) {
+            Resource resource = entry.getResource();
+            if (resource == null) {
+                continue;
+            }
+            String entryVersionId = resource.getMeta().getVersionId();
+            if (versionId == null || afterCurrent
+                || (previousVersionId != null && previousVersionId.equals(entryVersionId))) {
+                return resource;
+            }
+            afterCurrent = versionId.equals(entryVersionId) && previousVersionId == null;
+        }
+        return null;
+    }
+
+    private Resource parse(CachedVersion cached) {
+        try {
+            return (Resource) this.myCtx.newJsonParser().parseResource(cached.json);
+        } catch (DataFormatException e) {
+            myLogger.error("Unable to parse cached resource version", e);
+            return null;
+        }
+    }
+
+    private static String getKey(String resourceType, String id) {
+        return resourceType + "/" + id;
+    }
+
+    /**
+     * Helper method to get the version before a numeric version id.
+     *
+     * @param versionId - the version id
+     * @return the previous version id, or null if the version id is not numeric
+     */
+    private static String getPreviousVersionId(String versionId) {
+        try {
+            return versionId == null ? null : Long.toString(Long.parseLong(versionId) - 1);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Helper method to compare version ids, which are numeric on most servers.
+     *
+     * @param a - the first version id
+     * @param b - the second version id
+     * @return negative if a is older than b, positive if newer, 0 if equal or not comparable
+     */
+    private static int compareVersions(String a, String b) {
+        try {
+            return Long.compare(Long.parseLong(a), Long.parseLong(b));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * A cached resource version as JSON.
+     */
+    private static class CachedVersion {
+        private final String versionId;
+        private final String json;
+
+        CachedVersion(String versionId, String json) {
+            this.versionId = versionId;
+            this.json = json;
+        }
+
+        long sizeBytes() {
+            // Two bytes per char plus the entry overhead
+            return 2L * this.json.length() + 64;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.mitre.hapifhir.criteria;
+
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Search criteria, e.g. "Encounter?status=finished&amp;class=AMB", parsed once into
+ * matchers which are evaluated directly against a resource. Parameters which
+ * cannot be evaluated locally are kept as server criteria.
+ */
+public class CompiledCriteria {
+    private final String criteria;
+    private final String resourceType;
+    private final List<ParameterMatcher> matchers;
+    private final String serverCriteria;
+
+    /**
+     * Create new compiled criteria.
+     *
+     * @param criteria - the original criteria string
+     * @param resourceType - the resource type of the criteria, or null if any type matches
+     * @param matchers - the locally evaluated parameters
+     * @param serverParameters - the parameters which must be evaluated by the server
+     */
+    CompiledCriteria(String criteria, String resourceType, List<ParameterMatcher> matchers,
+      List<String> serverParameters) {
+        this.criteria = criteria;
+        this.resourceType = resourceType;
+        this.matchers = matchers;
+        if (serverParameters.isEmpty()) {
+            this.serverCriteria = null;
+        } else if (resourceType == null) {
+            // Nothing is compiled without a resource type, so the criteria is searched as it is
+            this.serverCriteria = criteria;
+        } else {
+            this.serverCriteria = resourceType + "?" + String.join("&", serverParameters);
+        }
+    }
+
+    public String getCriteria() {
+        return this.criteria;
+    }
+
+    public String getResourceType() {
+        return this.resourceType;
+    }
+
+    /**
+     * Get the criteria for the parameters which could not be compiled, e.g.
+     * "Encounter?subject.name=peter".
+     *
+     * @return the server criteria, or null if every parameter is evaluated locally. Criteria
+     *     without a resource type are returned as they are.
+     */
+    public String getServerCriteria() {
+        return this.serverCriteria;
+    }
+
+    /**
+     * Check if every parameter of the criteria can be evaluated locally.
+     *
+     * @return true if no server search is needed, false otherwise
+     */
+    public boolean isLocal() {
+        return this.serverCriteria == null;
+    }
+
+    /**
+     * Evaluate the compiled parameters against a resource. Parameters are AND'd so
+     * the first parameter which does not match ends the evaluation.
+     *
+     * @param resource - the resource to check
+     * @return MATCH or NO_MATCH, or UNKNOWN if a parameter could not be evaluated for
+     *     this resource and the full criteria must be searched on the server
+     */
+    public MatchResult evaluate(Resource resource) {
+        if (this.resourceType != null && !this.resourceType.equals(resource.fhirType())) {
+            return MatchResult.NO_MATCH;
+        }
+
+        MatchResult result = MatchResult.MATCH;
+        for (ParameterMatcher matcher : this.matchers) {
+            MatchResult parameterResult = matcher.matches(resource);
+            if (parameterResult == MatchResult.NO_MATCH) {
+                return MatchResult.NO_MATCH;
+            } else if (parameterResult == MatchResult.UNKNOWN) {
+                result = MatchResult.UNKNOWN;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,363 @@
+package org.mitre.hapifhir.criteria;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.mitre.hapifhir.client.IServerClient;
+import org.mitre.hapifhir.utils.SubscriptionHelper;
+
+/**
+ * Evaluates search criteria against resources in process. Criteria strings are
+ * compiled once and cached. Token, string, reference, date and quantity
+ * parameters are evaluated directly against the resource, anything else
+ * (chained parameters, unsupported modifiers or types) falls back to a search
+ * on the server.
+ */
+public class CriteriaEngine {
+    private static final int MAX_CACHED_CRITERIA = 10000;
+
+    private static final List<ResourcePath> ID_PATHS =
+        Collections.singletonList(new ResourcePath(new String[] { "id" }, null, null));
+    private static final List<ResourcePath> LAST_UPDATED_PATHS =
+        Collections.singletonList(new ResourcePath(new String[] { "meta", "lastUpdated" }, null, null));
+
+    private FhirContext myCtx;
+    private IServerClient serverClient;
+    private final Map<String, CompiledCriteria> compiledCriteria = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new criteria engine.
+     *
+     * @param ctx - the fhir context used to look up search parameter definitions
+     * @param serverClient - the client used for criteria which cannot be evaluated locally
+     */
+    public CriteriaEngine(FhirContext ctx, IServerClient serverClient) {
+        this.myCtx = ctx;
+        this.serverClient = serverClient;
+    }
+
+    /**
+     * Determine if a resource matches any of the criteria. Criteria are evaluated
+     * locally where possible and the rest are searched on the server in a single batch.
+     *
+     * @param criteria - list of criteria strings, a null or empty criteria matches every resource
+     * @param theResource - the resource to check against
+     * @return true if the resource matches at least one criteria, false otherwise
+     */
+    public boolean matches(List<String> criteria, Resource theResource) {
+        return matchesEach(Collections.singletonList(criteria), theResource)[0];
+    }
+
+    /**
+     * Determine for each of many criteria lists, e.g. the criteria of every candidate
+     * subscription for an event, if a resource matches any of its criteria. Criteria
+     * are evaluated locally where possible and everything which must be searched on
+     * the server is sent in a single batch, so the whole evaluation takes at most one
+     * round trip.
+     *
+     * @param criteriaLists - the lists of criteria strings, a null or empty criteria matches every resource
+     * @param theResource - the resource to check against
+     * @return for each list, true if the resource matches at least one of its criteria
+     */
+    public boolean[] matchesEach(List<List<String>> criteriaLists, Resource theResource) {
+        boolean[] results = new boolean[criteriaLists.size()];
+        // Identical searches for different lists are only sent once
+        Map<String, Integer> searchIndexes = new LinkedHashMap<>();
+        List<List<Integer>> pendingSearches = new ArrayList<>(criteriaLists.size());
+        for (int i = 0; i < criteriaLists.size(); i++) {
+            List<Integer> pending = new ArrayList<>();
+            pendingSearches.add(pending);
+            for (String criterion : criteriaLists.get(i)) {
+                String serverCriteria = evaluateLocally(criterion, theResource);
+                if (serverCriteria == null) {
+                    continue;
+                } else if (serverCriteria.isEmpty()) {
+                    results[i] = true;
+                    break;
+                }
+                String searchCriteria = SubscriptionHelper.getSearchCriteria(serverCriteria, theResource);
+                Integer index = searchIndexes.get(searchCriteria);
+                if (index == null) {
+                    index = searchIndexes.size();
+                    searchIndexes.put(searchCriteria, index);
+                }
+                pending.add(index);
+            }
+        }
+        if (searchIndexes.isEmpty()) {
+            return results;
+        }
+
+        List<Bundle> searchBundles = this.serverClient.searchOnCriteria(new ArrayList<>(searchIndexes.keySet()));
+        for (int i = 0; i < results.length; i++) {
+            if (results[i]) {
+                continue;
+            }
+            for (Integer index : pendingSearches.get(i)) {
+                if (SubscriptionHelper.containsResource(searchBundles.get(index), theResource)) {
+                    results[i] = true;
+                    break;
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Determine if a version of a resource which is not its current state on the
+     * server, e.g. the previous version, matches any of the criteria. The server
+     * can only search current state, so criteria which cannot be evaluated
+     * entirely in process are treated as not matching.
+     *
+     * @param criteria - list of criteria strings, a null or empty criteria matches every resource
+     * @param theVersion - the resource version to check against
+     * @return true if the version matches at least one criteria, false otherwise
+     */
+    public boolean matchesLocally(List<String> criteria, Resource theVersion) {
+        for (String criterion : criteria) {
+            if (criterion == null || criterion.trim().isEmpty()) {
+                return true;
+            }
+            CompiledCriteria compiled = compile(criterion);
+            if (compiled.isLocal() && compiled.evaluate(theVersion) == MatchResult.MATCH) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evaluate a single criteria locally.
+     *
+     * @param criterion - the criteria string
+     * @param theResource - the resource to check against
+     * @return an empty string if the resource matches, null if it does not match, otherwise
+     *     the criteria which must be searched on the server to decide
+     */
+    private String evaluateLocally(String criterion, Resource theResource) {
+        if (criterion == null || criterion.trim().isEmpty()) {
+            return "";
+        }
+
+        CompiledCriteria compiled = compile(criterion);
+        MatchResult result = compiled.evaluate(theResource);
+        if (result == MatchResult.NO_MATCH) {
+            return null;
+        } else if (result == MatchResult.MATCH && compiled.isLocal()) {
+            return "";
+        }
+
+        // Only search what could not be evaluated locally
+        return result == MatchResult.MATCH ? compiled.getServerCriteria() : criterion;
+    }
+
+    /**
+     * Get the compiled form of a criteria string, compiling it on first use.
+     *
+     * @param criteria - the criteria string e.g. "Encounter?status=finished"
+     * @return the compiled criteria
+     */
+    public CompiledCriteria compile(String criteria) {
+        CompiledCriteria compiled = this.compiledCriteria.get(criteria);
+        if (compiled == null) {
+            if (this.compiledCriteria.size() >= MAX_CACHED_CRITERIA) {
+                this.compiledCriteria.clear();
+            }
+            compiled = this.compiledCriteria.computeIfAbsent(criteria, this::doCompile);
+        }
+        return compiled;
+    }
+
+    /**
+     * Parse a criteria string into matchers for each parameter.
+     *
+     * @param criteria - the criteria string
+     * @return the compiled criteria
+     */
+    private CompiledCriteria doCompile(String criteria) {
+        String trimmed = criteria.trim();
+        int queryStart = trimmed.indexOf('?');
+        String resourceType = queryStart < 0 ? trimmed : trimmed.substring(0, queryStart);
+        if (resourceType.startsWith("/")) {
+            resourceType = resourceType.substring(1);
+        }
+        String query = queryStart < 0 ? "" : trimmed.substring(queryStart + 1);
+
+        RuntimeResourceDefinition definition = null;
+        if (!resourceType.isEmpty()) {
+            try {
+                definition = this.myCtx.getResourceDefinition(resourceType);
+            } catch (DataFormatException e) {
+                definition = null;
+            }
+        }
+
+        List<ParameterMatcher> matchers = new ArrayList<>();
+        List<String> serverParameters = new ArrayList<>();
+        for (String parameter : query.split("&")) {
+            if (parameter.isEmpty()) {
+                continue;
+            }
+            ParameterMatcher matcher = definition == null ? null
+                : compileParameter(resourceType, definition, parameter);
+            if (matcher == null) {
+                serverParameters.add(parameter);
+            } else {
+                matchers.add(matcher);
+            }
+        }
+
+        return new CompiledCriteria(criteria, resourceType.isEmpty() ? null : resourceType, matchers,
+          serverParameters);
+    }
+
+    /**
+     * Compile a single parameter, e.g. "status=finished" or "name:exact=Peter".
+     *
+     * @param resourceType - the resource type of the criteria
+     * @param definition - the resource definition used to look up the search parameter
+     * @param parameter - the parameter from the criteria string
+     * @return the matcher, or null if the parameter must be evaluated by the server
+     */
+    private ParameterMatcher compileParameter(String resourceType, RuntimeResourceDefinition definition,
+      String parameter) {
+        int separator = parameter.indexOf('=');
+        if (separator <= 0) {
+            return null;
+        }
+
+        try {
+            String name = decode(parameter.substring(0, separator));
+            String modifier = null;
+            int modifierStart = name.indexOf(':');
+            if (modifierStart > 0) {
+                modifier = name.substring(modifierStart + 1);
+                name = name.substring(0, modifierStart);
+            }
+
+            // Chained parameters need other resources
+            if (name.contains(".")) {
+                return null;
+            }
+
+            List<ResourcePath> paths;
+            RestSearchParameterTypeEnum type;
+            if (name.equals("_id")) {
+                paths = ID_PATHS;
+                type = RestSearchParameterTypeEnum.TOKEN;
+            } else if (name.equals("_lastUpdated")) {
+                paths = LAST_UPDATED_PATHS;
+                type = RestSearchParameterTypeEnum.DATE;
+            } else {
+                RuntimeSearchParam searchParam = definition.getSearchParam(name);
+                if (searchParam == null) {
+                    return null;
+                }
+                paths = ResourcePath.compile(resourceType, searchParam.getPath());
+                type = searchParam.getParamType();
+            }
+
+            if (paths == null || paths.isEmpty()) {
+                return null;
+            }
+
+            // Split before decoding so an encoded comma is part of a value rather than a separator
+            List<String> values = new ArrayList<>();
+            for (String value : splitValues(parameter.substring(separator + 1))) {
+                values.add(unescape(decode(value)));
+            }
+            if ("missing".equals(modifier)) {
+                return new MissingMatcher(paths, values);
+            }
+
+            switch (type) {
+                case TOKEN:
+                    return new TokenMatcher(paths, values, modifier);
+                case STRING:
+                    return new StringMatcher(paths, values, modifier);
+                case REFERENCE:
+                    return new ReferenceMatcher(paths, values, modifier);
+                case DATE:
+                    return new DateMatcher(paths, values, modifier);
+                case QUANTITY:
+                    return new QuantityMatcher(paths, values, modifier);
+                default:
+                    return null;
+            }
+        } catch (RuntimeException e) {
+            // Unsupported modifiers and unparseable values are left to the server
+            return null;
+        }
+    }
+
+    /**
+     * Helper method to split a raw parameter value on unescaped commas. Escapes are
+     * kept so the values can be decoded and then unescaped.
+     *
+     * @param value - the parameter value as it appears in the criteria
+     * @return list of the OR'd values
+     */
+    private static List<String> splitValues(String value) {
+        if (!value.contains("\\")) {
+            return Arrays.asList(value.split(","));
+        }
+
+        List<String> values = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == ',') {
+                values.add(value.substring(start, i));
+                start = i + 1;
+            }
+        }
+        values.add(value.substring(start));
+        return values;
+    }
+
+    /**
+     * Helper method to remove the escapes from a decoded parameter value, e.g. "a\,b" to "a,b".
+     *
+     * @param value - the decoded value
+     * @return the unescaped value
+     */
+    private static String unescape(String value) {
+        if (!value.contains("\\")) {
+            return value;
+        }
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                c = value.charAt(++i);
+            }
+            unescaped.append(c);
+        }
+        return unescaped.toString();
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.mitre.hapifhir.criteria;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.BaseDateTimeType;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Period;
+
+/**
+ * Matcher for date search parameters, e.g. "date=ge2021-01-01". Dates are
+ * compared as ranges based on their precision. The ap prefix is not supported.
+ */
+class DateMatcher extends PathMatcher {
+    private final List<SearchPrefix> prefixes = new ArrayList<>();
+    private final List<long[]> ranges = new ArrayList<>();
+
+    /**
+     * Create a new matcher.
+     *
+     * @param paths - the compiled search parameter paths
+     * @param values - the parameter values
+     * @param modifier - the parameter modifier, must be null
+     */
+    DateMatcher(List<ResourcePath> paths, List<String> values, String modifier) {
+        super(paths, false);
+        if (modifier != null) {
+            throw new IllegalArgumentException("Unsupported date modifier " + modifier);
+        }
+
+        for (String value : values) {
+            SearchPrefix prefix = SearchPrefix.fromValue(value);
+            if (prefix == SearchPrefix.AP) {
+                throw new IllegalArgumentException("Unsupported date prefix " + prefix);
+            }
+            // Invalid dates throw a DataFormatException and are left to the server
+            long[] range = toRange(new DateTimeType(SearchPrefix.stripPrefix(value)));
+            if (range == null) {
+                throw new IllegalArgumentException("Invalid date " + value);
+            }
+            this.prefixes.add(prefix);
+            this.ranges.add(range);
+        }
+    }
+
+    @Override
+    protected MatchResult matchValue(Base value) {
+        long[] target;
+        if (value instanceof BaseDateTimeType) {
+            target = toRange((BaseDateTimeType) value);
+        } else if (value instanceof Period) {
+            Period period = (Period) value;
+            long[] start = period.hasStart() ? toRange(period.getStartElement()) : null;
+            long[] end = period.hasEnd() ? toRange(period.getEndElement()) : null;
+            target = new long[] {
+                start == null ? Long.MIN_VALUE : start[0],
+                end == null ? Long.MAX_VALUE : end[1]
+            };
+        } else {
+            return MatchResult.UNKNOWN;
+        }
+
+        if (target == null) {
+            return MatchResult.NO_MATCH;
+        }
+
+        for (int i = 0; i < this.ranges.size(); i++) {
+            long[] range = this.ranges.get(i);
+            if (this.prefixes.get(i).matchesRange(target[0], target[1], range[0], range[1])) {
+                return MatchResult.MATCH;
+            }
+        }
+        return MatchResult.NO_MATCH;
+    }
+
+    /**
+     * Helper method to get the range covered by a date at its precision, e.g.
+     * 2021-01 covers all of January 2021.
+     *
+     * @param date - the date
+     * @return the range as [low, high) in epoch milliseconds, or null if the date has no value
+     */
+    private static long[] toRange(BaseDateTimeType date) {
+        Date low = date.getValue();
+        if (low == null || date.getPrecision() == null) {
+            return null;
+        }
+        Date high = date.getPrecision().add(low, 1);
+        return new long[] { low.getTime(), high.getTime() };
+    }
+}
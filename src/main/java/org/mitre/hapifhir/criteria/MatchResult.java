@@ -0,0 +1,10 @@
+package org.mitre.hapifhir.criteria;
+
+/**
+ * Result of evaluating search criteria against a resource locally. UNKNOWN
+ * means the criteria could not be evaluated in process and the server must
+ * be asked.
+ */
+public enum MatchResult {
+    MATCH, NO_MATCH, UNKNOWN;
+}
@@ -0,0 +1,39 @@
+package org.mitre.hapifhir.criteria;
+
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Matcher for the :missing modifier of any search parameter type.
+ */
+class MissingMatcher implements ParameterMatcher {
+    private final List<ResourcePath> paths;
+    private final boolean missing;
+
+    /**
+     * Create a new matcher.
+     *
+     * @param paths - the compiled search parameter paths
+     * @param values - the parameter values, must be a single "true" or "false"
+     */
+    MissingMatcher(List<ResourcePath> paths, List<String> values) {
+        if (values.size() != 1 || !(values.get(0).equals("true") || values.get(0).equals("false"))) {
+            throw new IllegalArgumentException("Invalid :missing value " + values);
+        }
+        this.paths = paths;
+        this.missing = Boolean.parseBoolean(values.get(0));
+    }
+
+    @Override
+    public MatchResult matches(Resource resource) {
+        boolean present = false;
+        for (ResourcePath path : this.paths) {
+            if (!path.evaluate(resource).isEmpty()) {
+                present = true;
+                break;
+            }
+        }
+        return present != this.missing ? MatchResult.MATCH : MatchResult.NO_MATCH;
+    }
+}
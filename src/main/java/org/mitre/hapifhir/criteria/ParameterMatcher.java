@@ -0,0 +1,18 @@
+package org.mitre.hapifhir.criteria;
+
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * A single compiled search parameter, e.g. "status=finished", which can be
+ * evaluated directly against a resource.
+ */
+public interface ParameterMatcher {
+
+    /**
+     * Evaluate the search parameter against the resource.
+     *
+     * @param resource - the resource to check
+     * @return MATCH or NO_MATCH, or UNKNOWN if the resource contains values this matcher cannot evaluate
+     */
+    public MatchResult matches(Resource resource);
+}
@@ -0,0 +1,54 @@
+package org.mitre.hapifhir.criteria;
+
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Base class for matchers which compare the values at the search parameter
+ * paths against the (comma separated, OR'd) values of the parameter.
+ */
+abstract class PathMatcher implements ParameterMatcher {
+    private final List<ResourcePath> paths;
+    private final boolean negate;
+
+    /**
+     * Create a new matcher.
+     *
+     * @param paths - the compiled search parameter paths
+     * @param negate - true to invert the result, used by the :not modifier
+     */
+    PathMatcher(List<ResourcePath> paths, boolean negate) {
+        this.paths = paths;
+        this.negate = negate;
+    }
+
+    @Override
+    public MatchResult matches(Resource resource) {
+        MatchResult result = MatchResult.NO_MATCH;
+        for (ResourcePath path : this.paths) {
+            for (Base value : path.evaluate(resource)) {
+                MatchResult valueResult = matchValue(value);
+                if (valueResult == MatchResult.MATCH) {
+                    return this.negate ? MatchResult.NO_MATCH : MatchResult.MATCH;
+                } else if (valueResult == MatchResult.UNKNOWN) {
+                    result = MatchResult.UNKNOWN;
+                }
+            }
+        }
+
+        if (this.negate && result == MatchResult.NO_MATCH) {
+            return MatchResult.MATCH;
+        }
+        return result;
+    }
+
+    /**
+     * Check if a single value from the resource matches any of the parameter values.
+     *
+     * @param value - the value from the resource
+     * @return MATCH or NO_MATCH, or UNKNOWN if the value type is not supported
+     */
+    protected abstract MatchResult matchValue(Base value);
+}
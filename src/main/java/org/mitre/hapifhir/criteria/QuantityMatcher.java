@@ -0,0 +1,117 @@
+package org.mitre.hapifhir.criteria;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Quantity;
+
+/**
+ * Matcher for quantity search parameters, e.g. "value-quantity=gt5.4|http://unitsofmeasure.org|mg".
+ * Units must match exactly, no unit conversion is done.
+ */
+class QuantityMatcher extends PathMatcher {
+    private final List<SearchPrefix> prefixes = new ArrayList<>();
+    private final List<BigDecimal> numbers = new ArrayList<>();
+    private final List<String> systems = new ArrayList<>();
+    private final List<String> codes = new ArrayList<>();
+
+    /**
+     * Create a new matcher.
+     *
+     * @param paths - the compiled search parameter paths
+     * @param values - the parameter values
+     * @param modifier - the parameter modifier, must be null
+     */
+    QuantityMatcher(List<ResourcePath> paths, List<String> values, String modifier) {
+        super(paths, false);
+        if (modifier != null) {
+            throw new IllegalArgumentException("Unsupported quantity modifier " + modifier);
+        }
+
+        for (String value : values) {
+            String[] parts = SearchPrefix.stripPrefix(value).split("\\|", 3);
+            this.prefixes.add(SearchPrefix.fromValue(value));
+            // Invalid numbers throw a NumberFormatException and are left to the server
+            this.numbers.add(new BigDecimal(parts[0]));
+            this.systems.add(parts.length > 1 ? parts[1] : "");
+            this.codes.add(parts.length > 2 ? parts[2] : "");
+        }
+    }
+
+    @Override
+    protected MatchResult matchValue(Base value) {
+        if (!(value instanceof Quantity)) {
+            return MatchResult.UNKNOWN;
+        }
+
+        Quantity quantity = (Quantity) value;
+        if (quantity.getValue() == null) {
+            return MatchResult.NO_MATCH;
+        } else if (quantity.hasComparator()) {
+            return MatchResult.UNKNOWN;
+        }
+
+        for (int i = 0; i < this.numbers.size(); i++) {
+            if (matchUnits(quantity, this.systems.get(i), this.codes.get(i))
+                && matchNumber(quantity.getValue(), this.prefixes.get(i), this.numbers.get(i))) {
+                return MatchResult.MATCH;
+            }
+        }
+        return MatchResult.NO_MATCH;
+    }
+
+    /**
+     * Helper method to compare the units of a quantity.
+     *
+     * @param quantity - the quantity from the resource
+     * @param system - the parameter unit system, may be empty
+     * @param code - the parameter unit code, may be empty
+     * @return true if the units match, false otherwise
+     */
+    private static boolean matchUnits(Quantity quantity, String system, String code) {
+        if (!system.isEmpty()) {
+            return system.equals(quantity.getSystem()) && (code.isEmpty() || code.equals(quantity.getCode()));
+        } else if (!code.isEmpty()) {
+            return code.equals(quantity.getCode()) || code.equals(quantity.getUnit());
+        }
+        return true;
+    }
+
+    /**
+     * Helper method to compare a number with a prefix. Equality uses the implicit
+     * precision of the parameter value, e.g. 5.4 matches [5.35, 5.45).
+     *
+     * @param target - the number from the resource
+     * @param prefix - the parameter prefix
+     * @param number - the parameter number
+     * @return true if the number matches, false otherwise
+     */
+    static boolean matchNumber(BigDecimal target, SearchPrefix prefix, BigDecimal number) {
+        BigDecimal halfUnit = BigDecimal.ONE.movePointLeft(number.scale()).divide(BigDecimal.valueOf(2));
+        boolean equal = target.compareTo(number.subtract(halfUnit)) >= 0
+            && target.compareTo(number.add(halfUnit)) < 0;
+        int comparison = target.compareTo(number);
+        switch (prefix) {
+            case EQ:
+                return equal;
+            case NE:
+                return !equal;
+            case GT:
+            case SA:
+                return comparison > 0;
+            case LT:
+            case EB:
+                return comparison < 0;
+            case GE:
+                return comparison >= 0;
+            case LE:
+                return comparison <= 0;
+            case AP:
+                return target.subtract(number).abs().compareTo(number.abs().movePointLeft(1)) <= 0;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.mitre.hapifhir.criteria;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.Reference;
+
+/**
+ * Matcher for reference search parameters, e.g. "subject=Patient/123" or
+ * "subject:Patient=123". Absolute and versioned references are compared on
+ * their resource type and id.
+ */
+class ReferenceMatcher extends PathMatcher {
+    private final String typeModifier;
+    private final List<String> values;
+    private final List<IdType> ids = new ArrayList<>();
+
+    /**
+     * Create a new matcher.
+     *
+     * @param paths - the compiled search parameter paths
+     * @param values - the parameter values
+     * @param modifier - the parameter modifier, only null and a resource type are supported
+     */
+    ReferenceMatcher(List<ResourcePath> paths, List<String> values, String modifier) {
+        super(paths, false);
+        if (modifier != null && !modifier.matches("[A-Z][A-Za-z]+")) {
+            throw new IllegalArgumentException("Unsupported reference modifier " + modifier);
+        }
+        this.typeModifier = modifier;
+        this.values = values;
+        for (String value : values) {
+            this.ids.add(new IdType(value));
+        }
+    }
+
+    @Override
+    protected MatchResult matchValue(Base value) {
+        if (value instanceof Reference) {
+            String reference = ((Reference) value).getReference();
+            if (reference == null || reference.startsWith("#")) {
+                return MatchResult.NO_MATCH;
+            }
+            IdType referenceId = new IdType(reference);
+            for (IdType id : this.ids) {
+                if (matchId(referenceId, id)) {
+                    return MatchResult.MATCH;
+                }
+            }
+            return MatchResult.NO_MATCH;
+        } else if (value instanceof PrimitiveType) {
+            // canonical and uri references are compared as is
+            String uri = ((PrimitiveType<?>) value).getValueAsString();
+            return this.values.contains(uri) ? MatchResult.MATCH : MatchResult.NO_MATCH;
+        }
+        return MatchResult.UNKNOWN;
+    }
+
+    /**
+     * Helper method to compare a reference from the resource to a parameter value.
+     *
+     * @param referenceId - the reference from the resource
+     * @param id - the parameter value
+     * @return true if the reference points to the same resource, false otherwise
+     */
+    private boolean matchId(IdType referenceId, IdType id) {
+        if (referenceId.getIdPart() == null || !referenceId.getIdPart().equals(id.getIdPart())) {
+            return false;
+        }
+        String resourceType = id.hasResourceType() ? id.getResourceType() : this.typeModifier;
+        return resourceType == null || resourceType.equals(referenceId.getResourceType());
+    }
+}
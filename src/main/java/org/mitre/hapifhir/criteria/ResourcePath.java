@@ -0,0 +1,185 @@
+package org.mitre.hapifhir.criteria;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * A simple element path, e.g. "Encounter.class", compiled from the FHIRPath
+ * expression of a search parameter. Only plain dotted paths with an optional
+ * "as Type" cast or "where(resolve() is Type)" reference filter are supported,
+ * which covers the expressions of most of the base search parameters.
+ */
+class ResourcePath {
+    private final String[] segments;
+    private final String typeFilter;
+    private final String referenceTypeFilter;
+
+    /**
+     * Create a new path.
+     *
+     * @param segments - the element names to walk, not including the resource type
+     * @param typeFilter - only keep values of this type, or null
+     * @param referenceTypeFilter - only keep references to this resource type, or null
+     */
+    ResourcePath(String[] segments, String typeFilter, String referenceTypeFilter) {
+        this.segments = segments;
+        this.typeFilter = typeFilter;
+        this.referenceTypeFilter = referenceTypeFilter;
+    }
+
+    /**
+     * Compile the paths of a search parameter expression that apply to a resource type.
+     * Expressions may contain several paths separated by "|", e.g.
+     * "Observation.subject.where(resolve() is Patient) | Encounter.subject", only the
+     * paths starting with the resource type are kept.
+     *
+     * @param resourceType - the type of resource being searched
+     * @param expression - the search parameter expression
+     * @return the compiled paths, or null if the expression is not supported
+     */
+    static List<ResourcePath> compile(String resourceType, String expression) {
+        if (expression == null || expression.trim().isEmpty()) {
+            return null;
+        }
+
+        List<ResourcePath> paths = new ArrayList<>();
+        for (String alternative : expression.split("\\|")) {
+            String path = stripParentheses(alternative.trim());
+
+            String typeFilter = null;
+            int asIndex = path.indexOf(" as ");
+            if (asIndex > 0) {
+                typeFilter = path.substring(asIndex + 4).trim();
+                path = stripParentheses(path.substring(0, asIndex).trim());
+            } else if (path.endsWith(")") && path.contains(".as(")) {
+                asIndex = path.lastIndexOf(".as(");
+                typeFilter = path.substring(asIndex + 4, path.length() - 1).trim();
+                path = path.substring(0, asIndex);
+            }
+
+            String referenceTypeFilter = null;
+            int whereIndex = path.indexOf(".where(resolve() is ");
+            if (whereIndex > 0 && path.endsWith(")")) {
+                referenceTypeFilter = path.substring(whereIndex + 20, path.length() - 1).trim();
+                path = path.substring(0, whereIndex);
+            }
+
+            // Any other function or operator is not supported
+            if (path.contains("(") || path.contains(" ") || !isTypeName(typeFilter)
+                || !isTypeName(referenceTypeFilter)) {
+                return null;
+            }
+
+            String[] parts = path.split("\\.");
+            if (parts.length < 2 || !parts[0].equals(resourceType)) {
+                continue;
+            }
+
+            String[] segments = new String[parts.length - 1];
+            System.arraycopy(parts, 1, segments, 0, segments.length);
+            paths.add(new ResourcePath(segments, typeFilter, referenceTypeFilter));
+        }
+
+        return paths;
+    }
+
+    /**
+     * Get all values at this path in the resource.
+     *
+     * @param resource - the resource
+     * @return list of the values, empty if there are none
+     */
+    List<Base> evaluate(Resource resource) {
+        List<Base> current = Collections.singletonList(resource);
+        for (String segment : this.segments) {
+            List<Base> next = new ArrayList<>();
+            for (Base base : current) {
+                Base[] children;
+                try {
+                    children = base.getProperty(segment.hashCode(), segment, false);
+                } catch (FHIRException e) {
+                    children = null;
+                }
+                if (children == null) {
+                    continue;
+                }
+                for (Base child : children) {
+                    if (child != null && !child.isEmpty()) {
+                        next.add(child);
+                    }
+                }
+            }
+            if (next.isEmpty()) {
+                return next;
+            }
+            current = next;
+        }
+
+        if (this.typeFilter == null && this.referenceTypeFilter == null) {
+            return current;
+        }
+
+        List<Base> filtered = new ArrayList<>();
+        for (Base base : current) {
+            if (this.typeFilter != null && !isType(base, this.typeFilter)) {
+                continue;
+            }
+            if (this.referenceTypeFilter != null && base instanceof Reference) {
+                String reference = ((Reference) base).getReference();
+                if (reference == null
+                    || !this.referenceTypeFilter.equals(new IdType(reference).getResourceType())) {
+                    continue;
+                }
+            }
+            filtered.add(base);
+        }
+        return filtered;
+    }
+
+    /**
+     * Helper method to check if a value is of the given FHIR type.
+     *
+     * @param base - the value
+     * @param type - the FHIR type name, e.g. "Quantity" or "dateTime"
+     * @return true if the value is of the type, false otherwise
+     */
+    private static boolean isType(Base base, String type) {
+        if (type.equals("Quantity")) {
+            // Age, Duration, Distance etc are all specializations of Quantity
+            return base instanceof Quantity;
+        }
+        return base.fhirType().equalsIgnoreCase(type);
+    }
+
+    /**
+     * Helper method to check a type filter is a plain type name.
+     *
+     * @param type - the type name, may be null
+     * @return true if the type is null or a plain name, false otherwise
+     */
+    private static boolean isTypeName(String type) {
+        return type == null || type.matches("[A-Za-z]+");
+    }
+
+    /**
+     * Helper method to remove parentheses around an entire expression.
+     *
+     * @param expression - the expression
+     * @return the expression without enclosing parentheses
+     */
+    private static String stripParentheses(String expression) {
+        String stripped = expression;
+        while (stripped.startsWith("(") && stripped.endsWith(")")) {
+            stripped = stripped.substring(1, stripped.length() - 1).trim();
+        }
+        return stripped;
+    }
+}
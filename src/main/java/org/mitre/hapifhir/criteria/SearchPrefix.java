@@ -0,0 +1,72 @@
+package org.mitre.hapifhir.criteria;
+
+/**
+ * Comparison prefixes for date, number and quantity search parameters.
+ */
+enum SearchPrefix {
+    EQ, NE, GT, LT, GE, LE, SA, EB, AP;
+
+    /**
+     * Get the prefix of a parameter value, e.g. GE for "ge2021-01-01".
+     *
+     * @param value - the parameter value
+     * @return the prefix, EQ when the value has none
+     */
+    static SearchPrefix fromValue(String value) {
+        if (value.length() > 2 && Character.isLetter(value.charAt(0)) && Character.isLetter(value.charAt(1))) {
+            for (SearchPrefix prefix : values()) {
+                if (value.substring(0, 2).equalsIgnoreCase(prefix.name())) {
+                    return prefix;
+                }
+            }
+        }
+        return EQ;
+    }
+
+    /**
+     * Get a parameter value without its prefix.
+     *
+     * @param value - the parameter value
+     * @return the value without the prefix
+     */
+    static String stripPrefix(String value) {
+        if (value.length() > 2 && value.substring(0, 2).equalsIgnoreCase(fromValue(value).name())) {
+            return value.substring(2);
+        }
+        return value;
+    }
+
+    /**
+     * Compare a target range against a search range, following the R4 search
+     * rules for ranges. Bounds are inclusive of low and exclusive of high.
+     *
+     * @param targetLow - low bound of the value in the resource
+     * @param targetHigh - high bound of the value in the resource
+     * @param searchLow - low bound of the parameter value
+     * @param searchHigh - high bound of the parameter value
+     * @return true if the target matches
+     */
+    boolean matchesRange(long targetLow, long targetHigh, long searchLow, long searchHigh) {
+        boolean contained = targetLow >= searchLow && targetHigh <= searchHigh;
+        switch (this) {
+            case EQ:
+                return contained;
+            case NE:
+                return !contained;
+            case GT:
+                return targetHigh > searchHigh;
+            case LT:
+                return targetLow < searchLow;
+            case GE:
+                return contained || targetHigh > searchHigh;
+            case LE:
+                return contained || targetLow < searchLow;
+            case SA:
+                return targetLow >= searchHigh;
+            case EB:
+                return targetHigh <= searchLow;
+            default:
+                throw new IllegalStateException("Range comparison not supported for " + this);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.mitre.hapifhir.criteria;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.hl7.fhir.r4.model.Address;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.StringType;
+
+/**
+ * Matcher for string search parameters. By default a value matches when it starts
+ * with the parameter value, ignoring case and accents. The :exact and :contains
+ * modifiers are supported.
+ */
+class StringMatcher extends PathMatcher {
+    private final boolean exact;
+    private final boolean contains;
+    private final List<String> values = new ArrayList<>();
+
+    /**
+     * Create a new matcher.
+     *
+     * @param paths - the compiled search parameter paths
+     * @param values - the parameter values
+     * @param modifier - the parameter modifier, only null, "exact" and "contains" are supported
+     */
+    StringMatcher(List<ResourcePath> paths, List<String> values, String modifier) {
+        super(paths, false);
+        if (modifier != null && !modifier.equals("exact") && !modifier.equals("contains")) {
+            throw new IllegalArgumentException("Unsupported string modifier " + modifier);
+        }
+        this.exact = "exact".equals(modifier);
+        this.contains = "contains".equals(modifier);
+        for (String value : values) {
+            this.values.add(this.exact ? value : normalize(value));
+        }
+    }
+
+    @Override
+    protected MatchResult matchValue(Base value) {
+        List<String> strings = new ArrayList<>();
+        if (value instanceof HumanName) {
+            HumanName name = (HumanName) value;
+            strings.add(name.getText());
+            strings.add(name.getFamily());
+            addAll(strings, name.getGiven());
+            addAll(strings, name.getPrefix());
+            addAll(strings, name.getSuffix());
+        } else if (value instanceof Address) {
+            Address address = (Address) value;
+            strings.add(address.getText());
+            addAll(strings, address.getLine());
+            strings.add(address.getCity());
+            strings.add(address.getDistrict());
+            strings.add(address.getState());
+            strings.add(address.getPostalCode());
+            strings.add(address.getCountry());
+        } else if (value instanceof PrimitiveType) {
+            strings.add(((PrimitiveType<?>) value).getValueAsString());
+        } else {
+            return MatchResult.UNKNOWN;
+        }
+
+        for (String string : strings) {
+            if (string != null && matchString(string)) {
+                return MatchResult.MATCH;
+            }
+        }
+        return MatchResult.NO_MATCH;
+    }
+
+    /**
+     * Helper method to check a string against the parameter values.
+     *
+     * @param string - a string from the resource
+     * @return true if any parameter value matches, false otherwise
+     */
+    private boolean matchString(String string) {
+        String candidate = this.exact ? string : normalize(string);
+        for (String value : this.values) {
+            if (this.exact && candidate.equals(value)) {
+                return true;
+            } else if (this.contains && candidate.contains(value)) {
+                return true;
+            } else if (!this.exact && !this.contains && candidate.startsWith(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void addAll(List<String> strings, List<StringType> values) {
+        for (StringType value : values) {
+            strings.add(value.getValue());
+        }
+    }
+
+    /**
+     * Helper method to remove case and accents for comparison.
+     *
+     * @param string - the string to normalize
+     * @return lower case string without accents
+     */
+    private static String normalize(String string) {
+        return Normalizer.normalize(string, Normalizer.Form.NFD)
+            .replaceAll("\\p{M}", "")
+            .toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,111 @@
+package org.mitre.hapifhir.criteria;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.PrimitiveType;
+
+/**
+ * Matcher for token search parameters, e.g. "code=http://loinc.org|1234-5".
+ * Supports the [code], [system]|[code], |[code] and [system]| forms and the
+ * :not modifier.
+ */
+class TokenMatcher extends PathMatcher {
+    private final List<String[]> tokens = new ArrayList<>();
+
+    /**
+     * Create a new matcher.
+     *
+     * @param paths - the compiled search parameter paths
+     * @param values - the parameter values
+     * @param modifier - the parameter modifier, only null and "not" are supported
+     */
+    TokenMatcher(List<ResourcePath> paths, List<String> values, String modifier) {
+        super(paths, "not".equals(modifier));
+        if (modifier != null && !modifier.equals("not")) {
+            throw new IllegalArgumentException("Unsupported token modifier " + modifier);
+        }
+
+        for (String value : values) {
+            int separator = value.indexOf('|');
+            if (separator < 0) {
+                // no system given, any system matches
+                this.tokens.add(new String[] { null, value });
+            } else {
+                this.tokens.add(new String[] { value.substring(0, separator), value.substring(separator + 1) });
+            }
+        }
+    }
+
+    @Override
+    protected MatchResult matchValue(Base value) {
+        if (value instanceof CodeableConcept) {
+            for (Coding coding : ((CodeableConcept) value).getCoding()) {
+                if (matchCode(coding.getSystem(), coding.getCode())) {
+                    return MatchResult.MATCH;
+                }
+            }
+            return MatchResult.NO_MATCH;
+        } else if (value instanceof Coding) {
+            Coding coding = (Coding) value;
+            return result(matchCode(coding.getSystem(), coding.getCode()));
+        } else if (value instanceof Identifier) {
+            Identifier identifier = (Identifier) value;
+            return result(matchCode(identifier.getSystem(), identifier.getValue()));
+        } else if (value instanceof ContactPoint) {
+            return result(matchCodeOnly(((ContactPoint) value).getValue()));
+        } else if (value instanceof IdType) {
+            return result(matchCodeOnly(((IdType) value).getIdPart()));
+        } else if (value instanceof PrimitiveType) {
+            // code, boolean, uri etc have an implicit system so only the code is compared
+            return result(matchCodeOnly(((PrimitiveType<?>) value).getValueAsString()));
+        }
+        return MatchResult.UNKNOWN;
+    }
+
+    /**
+     * Helper method to check a system and code against the parameter tokens.
+     *
+     * @param system - the system of the value
+     * @param code - the code of the value
+     * @return true if any token matches, false otherwise
+     */
+    private boolean matchCode(String system, String code) {
+        for (String[] token : this.tokens) {
+            String tokenSystem = token[0];
+            String tokenCode = token[1];
+            boolean systemMatches = tokenSystem == null
+                || (tokenSystem.isEmpty() ? system == null || system.isEmpty() : tokenSystem.equals(system));
+            boolean codeMatches = tokenCode.isEmpty() ? tokenSystem != null : tokenCode.equals(code);
+            if (systemMatches && codeMatches) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Helper method to check a code without a system against the parameter tokens.
+     *
+     * @param code - the code of the value
+     * @return true if any token code matches, false otherwise
+     */
+    private boolean matchCodeOnly(String code) {
+        for (String[] token : this.tokens) {
+            if (!token[1].isEmpty() && token[1].equals(code)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static MatchResult result(boolean matches) {
+        return matches ? MatchResult.MATCH : MatchResult.NO_MATCH;
+    }
+}
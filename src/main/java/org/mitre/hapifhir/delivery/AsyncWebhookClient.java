@@ -0,0 +1,142 @@
+package org.mitre.hapifhir.delivery;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+
+/**
+ * Non-blocking HTTP client used to deliver notifications to rest-hook endpoints.
+ * Requests are written and responses read by a few I/O reactor threads, so a
+ * delivery does not hold a thread while it waits for the endpoint and thousands
+ * of deliveries can be in flight at once. Connections are pooled per route and
+ * kept alive between notifications like with the WebhookClient.
+ *
+ * <p>The futures returned by send are completed on a reactor thread. Work which
+ * follows a delivery should be handed to another executor so the reactor is
+ * never blocked.
+ */
+public class AsyncWebhookClient implements IDeliveryClient {
+    public static final int DEFAULT_MAX_CONNECTIONS = 2000;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+    public static final int DEFAULT_IO_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private final CloseableHttpAsyncClient httpClient;
+    private final int maxConnections;
+
+    /**
+     * Create a new async webhook client with the default pool limits, timeouts and
+     * one I/O thread per processor.
+     */
+    public AsyncWebhookClient() {
+        this(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE, WebhookClient.DEFAULT_CONNECT_TIMEOUT_MS,
+          WebhookClient.DEFAULT_READ_TIMEOUT_MS, WebhookClient.DEFAULT_KEEP_ALIVE_MS, DEFAULT_IO_THREADS);
+    }
+
+    /**
+     * Create a new async webhook client.
+     *
+     * @param maxConnections - the maximum number of pooled connections across all endpoints, which is
+     *     also the maximum number of deliveries in flight
+     * @param maxConnectionsPerRoute - the maximum number of pooled connections to a single endpoint
+     * @param connectTimeoutMs - timeout establishing a connection, in milliseconds
+     * @param readTimeoutMs - timeout waiting for the endpoint to respond, in milliseconds
+     * @param keepAliveMs - how long to keep a connection alive when the endpoint does not say
+     * @param ioThreads - the number of I/O reactor threads
+     */
+    public AsyncWebhookClient(int maxConnections, int maxConnectionsPerRoute, int connectTimeoutMs,
+      int readTimeoutMs, long keepAliveMs, int ioThreads) {
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(connectTimeoutMs)
+            .setConnectionRequestTimeout(connectTimeoutMs)
+            .setSocketTimeout(readTimeoutMs)
+            .build();
+
+        // Honor the endpoint Keep-Alive header, otherwise fall back to the configured duration
+        ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? duration : keepAliveMs;
+        };
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.maxConnections = maxConnections;
+        this.httpClient = HttpAsyncClients.custom()
+            .setMaxConnTotal(maxConnections)
+            .setMaxConnPerRoute(maxConnectionsPerRoute)
+            .setDefaultRequestConfig(requestConfig)
+            .setKeepAliveStrategy(keepAliveStrategy)
+            .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                .setIoThreadCount(ioThreads)
+                .setSoKeepAlive(true)
+                .build())
+            .setThreadFactory(runnable -> {
+                Thread thread = new Thread(runnable, "subscription-webhook-io-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            })
+            .build();
+        this.httpClient.start();
+    }
+
+    /**
+     * POST a JSON payload to an endpoint without blocking. The response body is
+     * discarded once read so the connection is returned to the pool for reuse.
+     *
+     * @param endpoint - the url to post to
+     * @param headers - additional headers in the form "Name: value"
+     * @param payload - the JSON payload
+     * @param timeoutMs - the timeout for this request in milliseconds, 0 to use the client timeouts
+     * @return future completed with the HTTP status code of the response
+     */
+    @Override
+    public CompletableFuture<Integer> send(String endpoint, List<String> headers, String payload, int timeoutMs) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        this.httpClient.execute(WebhookClient.createPost(endpoint, headers, payload, timeoutMs),
+            new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse response) {
+                    future.complete(response.getStatusLine().getStatusCode());
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    future.completeExceptionally(e);
+                }
+
+                @Override
+                public void cancelled() {
+                    future.completeExceptionally(new IOException("Request to " + endpoint + " was cancelled"));
+                }
+            });
+        return future;
+    }
+
+    /**
+     * Get how many deliveries the client can keep in flight at once.
+     *
+     * @return the maximum number of pooled connections
+     */
+    @Override
+    public int getMaxInFlight() {
+        return this.maxConnections;
+    }
+
+    /**
+     * Stop the I/O reactor and close the pooled connections.
+     *
+     * @throws IOException when the connections cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        this.httpClient.close();
+    }
+}
@@ -0,0 +1,94 @@
+package org.mitre.hapifhir.delivery;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker for a single endpoint. The circuit opens after a number of
+ * consecutive failures and rejects requests until the open duration has passed.
+ * Then a single trial request is let through: success closes the circuit and
+ * failure opens it again.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN;
+    }
+
+    private final int failureThreshold;
+    private final long openDurationNanos;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long stateChangedAt;
+
+    /**
+     * Create a new closed circuit breaker.
+     *
+     * @param failureThreshold - the consecutive failures which open the circuit
+     * @param openDurationMs - how long the circuit stays open before a trial request, in milliseconds
+     */
+    public CircuitBreaker(int failureThreshold, long openDurationMs) {
+        this.failureThreshold = failureThreshold;
+        this.openDurationNanos = TimeUnit.MILLISECONDS.toNanos(openDurationMs);
+    }
+
+    /**
+     * Check if a request may be sent. Moves an open circuit whose open duration has
+     * passed to half open and lets the trial request through.
+     *
+     * @return true if the request may be sent, false if it should be short-circuited
+     */
+    public synchronized boolean allowRequest() {
+        switch (this.state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+            case HALF_OPEN:
+                // A half open circuit whose trial never reported back gets another trial
+                if (System.nanoTime() - this.stateChangedAt >= this.openDurationNanos) {
+                    this.state = State.HALF_OPEN;
+                    this.stateChangedAt = System.nanoTime();
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Record a successful request, closing the circuit.
+     */
+    public synchronized void recordSuccess() {
+        this.consecutiveFailures = 0;
+        this.state = State.CLOSED;
+    }
+
+    /**
+     * Record a failed request, opening the circuit when the failure threshold is
+     * reached or the trial request of a half open circuit failed.
+     */
+    public synchronized void recordFailure() {
+        this.consecutiveFailures++;
+        if (this.state == State.HALF_OPEN || this.consecutiveFailures >= this.failureThreshold) {
+            this.state = State.OPEN;
+            this.stateChangedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Get the time until an open circuit lets a trial request through.
+     *
+     * @return the remaining open time in milliseconds, 0 if the circuit is not open
+     */
+    public synchronized long getRemainingOpenMs() {
+        if (this.state != State.OPEN) {
+            return 0;
+        }
+        long remaining = this.openDurationNanos - (System.nanoTime() - this.stateChangedAt);
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(remaining));
+    }
+
+    public synchronized State getState() {
+        return this.state;
+    }
+}
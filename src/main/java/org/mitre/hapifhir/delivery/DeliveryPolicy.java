@@ -0,0 +1,93 @@
+package org.mitre.hapifhir.delivery;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How failed notifications are retried. Each retry waits an exponentially
+ * increasing backoff with jitter, and every endpoint has a circuit breaker
+ * which opens after consecutive failures so deliveries to an endpoint which
+ * is down are short-circuited until it has had time to recover.
+ */
+public class DeliveryPolicy {
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_INITIAL_BACKOFF_MS = 1000;
+    public static final long DEFAULT_MAX_BACKOFF_MS = 60000;
+    public static final double DEFAULT_BACKOFF_MULTIPLIER = 2.0;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_DURATION_MS = 30000;
+
+    private final int maxRetries;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+    private final double backoffMultiplier;
+    private final int failureThreshold;
+    private final long openDurationMs;
+
+    /**
+     * Create a new delivery policy with the default retries, backoff and circuit breaker settings.
+     */
+    public DeliveryPolicy() {
+        this(DEFAULT_MAX_RETRIES, DEFAULT_INITIAL_BACKOFF_MS, DEFAULT_MAX_BACKOFF_MS, DEFAULT_BACKOFF_MULTIPLIER,
+          DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION_MS);
+    }
+
+    /**
+     * Create a new delivery policy.
+     *
+     * @param maxRetries - the number of times a failed notification is retried, 0 to never retry
+     * @param initialBackoffMs - the backoff before the first retry, in milliseconds
+     * @param maxBackoffMs - the maximum backoff between retries, in milliseconds
+     * @param backoffMultiplier - the factor the backoff grows by after each retry
+     * @param failureThreshold - the consecutive failures which open the circuit for an endpoint
+     * @param openDurationMs - how long an open circuit short-circuits deliveries, in milliseconds
+     */
+    public DeliveryPolicy(int maxRetries, long initialBackoffMs, long maxBackoffMs, double backoffMultiplier,
+      int failureThreshold, long openDurationMs) {
+        if (maxRetries < 0 || initialBackoffMs < 0 || maxBackoffMs < initialBackoffMs || backoffMultiplier < 1
+            || failureThreshold < 1 || openDurationMs < 0) {
+            throw new IllegalArgumentException("invalid delivery policy");
+        }
+        this.maxRetries = maxRetries;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.backoffMultiplier = backoffMultiplier;
+        this.failureThreshold = failureThreshold;
+        this.openDurationMs = openDurationMs;
+    }
+
+    public int getMaxRetries() {
+        return this.maxRetries;
+    }
+
+    public int getFailureThreshold() {
+        return this.failureThreshold;
+    }
+
+    public long getOpenDurationMs() {
+        return this.openDurationMs;
+    }
+
+    /**
+     * Get the time to wait before a retry. The exponential backoff is capped at the
+     * max backoff and half of it is randomized so retries to the same endpoint from
+     * many subscriptions do not arrive together.
+     *
+     * @param retry - the retry number, starting at 1
+     * @return the backoff in milliseconds
+     */
+    public long getBackoffMs(int retry) {
+        double backoff = this.initialBackoffMs * Math.pow(this.backoffMultiplier, Math.max(0, retry - 1));
+        long capped = (long) Math.min(backoff, this.maxBackoffMs);
+        long half = capped / 2;
+        return half + ThreadLocalRandom.current().nextLong(capped - half + 1);
+    }
+
+    /**
+     * Create a circuit breaker for an endpoint using this policy.
+     *
+     * @return a new closed circuit breaker
+     */
+    public CircuitBreaker newCircuitBreaker() {
+        return new CircuitBreaker(this.failureThreshold, this.openDurationMs);
+    }
+}
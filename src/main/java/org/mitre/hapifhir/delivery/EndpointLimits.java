@@ -0,0 +1,52 @@
+package org.mitre.hapifhir.delivery;
+
+/**
+ * How the FairDeliveryScheduler shares delivery capacity with an endpoint. The
+ * weight is the endpoint's share of deliveries relative to other backlogged
+ * endpoints, the concurrency limit caps its deliveries in flight and the rate
+ * limit caps its deliveries per second.
+ */
+public class EndpointLimits {
+    public static final double DEFAULT_WEIGHT = 1.0;
+    public static final int DEFAULT_MAX_CONCURRENCY = 2;
+    public static final double DEFAULT_MAX_RATE_PER_SECOND = 0;
+
+    private final double weight;
+    private final int maxConcurrency;
+    private final double maxRatePerSecond;
+
+    /**
+     * Create new endpoint limits with the default weight, concurrency and no rate limit.
+     */
+    public EndpointLimits() {
+        this(DEFAULT_WEIGHT, DEFAULT_MAX_CONCURRENCY, DEFAULT_MAX_RATE_PER_SECOND);
+    }
+
+    /**
+     * Create new endpoint limits.
+     *
+     * @param weight - the share of deliveries relative to other endpoints, e.g. 2.0 for twice the default
+     * @param maxConcurrency - the maximum deliveries to the endpoint in flight at once
+     * @param maxRatePerSecond - the maximum deliveries to the endpoint per second, 0 for no limit
+     */
+    public EndpointLimits(double weight, int maxConcurrency, double maxRatePerSecond) {
+        if (!(weight > 0) || maxConcurrency < 1 || maxRatePerSecond < 0) {
+            throw new IllegalArgumentException("invalid endpoint limits");
+        }
+        this.weight = weight;
+        this.maxConcurrency = maxConcurrency;
+        this.maxRatePerSecond = maxRatePerSecond;
+    }
+
+    public double getWeight() {
+        return this.weight;
+    }
+
+    public int getMaxConcurrency() {
+        return this.maxConcurrency;
+    }
+
+    public double getMaxRatePerSecond() {
+        return this.maxRatePerSecond;
+    }
+}
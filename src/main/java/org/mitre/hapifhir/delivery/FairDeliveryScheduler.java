@@ -0,0 +1,539 @@
+package org.mitre.hapifhir.delivery;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.mitre.hapifhir.delivery.NotificationDispatcher.BackpressurePolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Schedules deliveries across endpoints with weighted fair queuing. Each
+ * endpoint has its own queue and deliveries are tagged with a virtual finish
+ * time which grows by the inverse of the endpoint's weight, so backlogged
+ * endpoints are served in proportion to their weights and an endpoint with a
+ * large backlog cannot starve the others. Endpoints at their concurrency or
+ * rate limit are skipped until they have capacity again.
+ *
+ * <p>A single scheduler thread hands deliveries to the scheduler's own workers,
+ * and only up to a total in flight limit, so the workers never hold a first come
+ * first served backlog that would defeat the fairness. A delivery is in flight
+ * until the stage it returns completes, so non-blocking deliveries hold their
+ * capacity until the response arrives rather than only while a worker runs them.
+ *
+ * <p>The queue of each endpoint and the total queued deliveries are capped. When
+ * a cap is reached the dispatcher's BackpressurePolicy applies: BLOCK waits for
+ * space for a limited time, DROP_OLDEST drops the oldest delivery of the full
+ * endpoint queue, or of the longest one when the total is reached, and REJECT
+ * rejects the new delivery. A dead endpoint therefore cannot grow its backlog
+ * without bound. The policy only applies when a delivery is submitted. Once
+ * scheduled a delivery is never blocked on, dropped or rejected, since the
+ * workers' queue never holds more than the in flight limit.
+ */
+public class FairDeliveryScheduler {
+    private final Logger myLogger = LoggerFactory.getLogger(FairDeliveryScheduler.class.getName());
+
+    public static final int DEFAULT_MAX_QUEUED_PER_ENDPOINT = 1000;
+    public static final int DEFAULT_MAX_QUEUED = 10000;
+
+    // BLOCK gives up after this long, dispatcher workers submit too and must not wait forever
+    private static final long BLOCK_TIMEOUT_MS = 10000;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    /**
+     * A delivery to schedule. Starts delivering the notification and returns a stage
+     * completed when it is done.
+     */
+    public interface DeliveryTask extends Supplier<CompletionStage<?>> {
+        /**
+         * Called instead of get when the queued delivery is dropped and will never be made.
+         */
+        default void discarded() {
+        }
+    }
+
+    private final NotificationDispatcher notificationDispatcher;
+    private final int maxInFlight;
+    private final EndpointLimits defaultLimits;
+    private final int maxQueuedPerEndpoint;
+    private final int maxQueued;
+    private final Map<String, EndpointLimits> endpointLimits = new ConcurrentHashMap<>();
+    private final Map<String, EndpointQueue> queues = new HashMap<>();
+    private final Thread schedulerThread;
+    private final ThreadPoolExecutor deliveryExecutor;
+    private int inFlight;
+    private int queuedCount;
+    private long droppedCount;
+    private double virtualTime;
+    private boolean shutdown;
+
+    /**
+     * Create a new scheduler with the default endpoint limits and as many deliveries
+     * in flight as the dispatcher has workers.
+     *
+     * @param notificationDispatcher - the dispatcher which runs the deliveries
+     */
+    public FairDeliveryScheduler(NotificationDispatcher notificationDispatcher) {
+        this(notificationDispatcher, notificationDispatcher.getWorkerCount(), new EndpointLimits());
+    }
+
+    /**
+     * Create a new scheduler with the default queue caps.
+     *
+     * @param notificationDispatcher - the dispatcher which runs the deliveries
+     * @param maxInFlight - the maximum deliveries to all endpoints in flight at once
+     * @param defaultLimits - the limits of endpoints without limits of their own
+     */
+    public FairDeliveryScheduler(NotificationDispatcher notificationDispatcher, int maxInFlight,
+      EndpointLimits defaultLimits) {
+        this(notificationDispatcher, maxInFlight, defaultLimits, DEFAULT_MAX_QUEUED_PER_ENDPOINT,
+            DEFAULT_MAX_QUEUED);
+    }
+
+    /**
+     * Create a new scheduler. It runs the deliveries on as many workers of its own as
+     * the dispatcher has, or fewer if fewer deliveries may be in flight.
+     *
+     * @param notificationDispatcher - the dispatcher whose policy applies to full queues
+     * @param maxInFlight - the maximum deliveries to all endpoints in flight at once
+     * @param defaultLimits - the limits of endpoints without limits of their own
+     * @param maxQueuedPerEndpoint - the maximum deliveries waiting for their turn per endpoint
+     * @param maxQueued - the maximum deliveries waiting for their turn across all endpoints
+     */
+    public FairDeliveryScheduler(NotificationDispatcher notificationDispatcher, int maxInFlight,
+      EndpointLimits defaultLimits, int maxQueuedPerEndpoint, int maxQueued) {
+        if (maxInFlight < 1 || maxQueuedPerEndpoint < 1 || maxQueued < 1) {
+            throw new IllegalArgumentException("maxInFlight, maxQueuedPerEndpoint and maxQueued must be positive");
+        }
+        this.notificationDispatcher = notificationDispatcher;
+        this.maxInFlight = maxInFlight;
+        this.defaultLimits = defaultLimits;
+        this.maxQueuedPerEndpoint = maxQueuedPerEndpoint;
+        this.maxQueued = maxQueued;
+        int workers = Math.min(maxInFlight, notificationDispatcher.getWorkerCount());
+        // Unbounded, but it never holds more deliveries than are in flight
+        this.deliveryExecutor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), new WorkerThreadFactory());
+        this.schedulerThread = new Thread(this::run, "subscription-delivery-scheduler");
+        this.schedulerThread.setDaemon(true);
+        this.schedulerThread.start();
+    }
+
+    /**
+     * Set the weight, concurrency and rate limits of an endpoint. The weight applies
+     * to deliveries queued from now on.
+     *
+     * @param endpoint - the endpoint url
+     * @param limits - the limits of the endpoint
+     */
+    public synchronized void setEndpointLimits(String endpoint, EndpointLimits limits) {
+        this.endpointLimits.put(endpoint, limits);
+        EndpointQueue queue = this.queues.get(endpoint);
+        if (queue != null) {
+            queue.limits = limits;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Queue a delivery to an endpoint. The delivery is run by a worker once it is
+     * the endpoint's turn and the endpoint has capacity. When the endpoint's
+     * queue or the total is full the dispatcher's BackpressurePolicy applies, and
+     * a delivery dropped to make space is told so through its discarded method.
+     *
+     * @param endpoint - the endpoint url the delivery posts to
+     * @param delivery - the delivery
+     * @return true if the delivery was queued, false if it was rejected and will never be made
+     */
+    public boolean submit(String endpoint, DeliveryTask delivery) {
+        BackpressurePolicy policy = this.notificationDispatcher.getBackpressurePolicy();
+        DeliveryTask dropped = null;
+        boolean queued = false;
+        synchronized (this) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BLOCK_TIMEOUT_MS);
+            while (!this.shutdown) {
+                EndpointQueue queue = this.queues.get(endpoint);
+                if (queue == null) {
+                    queue = new EndpointQueue(this.endpointLimits.getOrDefault(endpoint, this.defaultLimits));
+                    this.queues.put(endpoint, queue);
+                }
+                EndpointQueue fullQueue = getFullQueue(queue);
+                if (fullQueue != null && policy == BackpressurePolicy.DROP_OLDEST) {
+                    dropped = fullQueue.deliveries.poll().task;
+                    this.queuedCount--;
+                } else if (fullQueue != null) {
+                    if (policy != BackpressurePolicy.BLOCK || !awaitSpace(deadline)) {
+                        this.droppedCount++;
+                        myLogger.warn("Delivery queue for " + endpoint + " is full, notification rejected");
+                        return false;
+                    }
+                    // The endpoint queue may have been removed while waiting
+                    continue;
+                }
+
+                queue.add(delivery, this.virtualTime);
+                this.queuedCount++;
+                notifyAll();
+                queued = true;
+                break;
+            }
+            if (dropped != null) {
+                this.droppedCount++;
+            }
+        }
+
+        if (dropped != null) {
+            myLogger.warn("Delivery queue full, dropped oldest notification");
+            dropped.discarded();
+        }
+        if (!queued) {
+            // Once shut down the workers are draining and no longer accept work, deliveries
+            // submitted by the dispatcher's workers are made on the calling thread
+            delivery.get();
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of deliveries waiting for their turn.
+     *
+     * @return the number of queued deliveries
+     */
+    public synchronized int getQueuedCount() {
+        return this.queuedCount;
+    }
+
+    /**
+     * Get the number of deliveries dropped or rejected because a queue was full.
+     *
+     * @return the dropped delivery count
+     */
+    public synchronized long getDroppedCount() {
+        return this.droppedCount;
+    }
+
+    /**
+     * Get the dispatcher whose policy applies to full queues.
+     *
+     * @return the notification dispatcher
+     */
+    public NotificationDispatcher getNotificationDispatcher() {
+        return this.notificationDispatcher;
+    }
+
+    /**
+     * Stop scheduling and run every queued delivery regardless of limits, then wait
+     * for the workers to finish. Deliveries not started after the timeout are
+     * discarded.
+     */
+    public void shutdown() {
+        List<DeliveryTask> remaining = new ArrayList<>();
+        synchronized (this) {
+            this.shutdown = true;
+            for (EndpointQueue queue : this.queues.values()) {
+                for (Delivery delivery : queue.deliveries) {
+                    remaining.add(delivery.task);
+                }
+            }
+            this.queues.clear();
+            this.queuedCount = 0;
+            notifyAll();
+        }
+        try {
+            // The scheduler thread may still be handing deliveries to the workers
+            this.schedulerThread.join();
+            for (DeliveryTask delivery : remaining) {
+                this.deliveryExecutor.execute(new DrainedDelivery(delivery));
+            }
+            this.deliveryExecutor.shutdown();
+            if (this.deliveryExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<Runnable> undelivered = this.deliveryExecutor.shutdownNow();
+        for (Runnable delivery : undelivered) {
+            ((NotificationDispatcher.DiscardableTask) delivery).discarded();
+        }
+        synchronized (this) {
+            this.droppedCount += undelivered.size();
+        }
+        myLogger.warn("Delivery scheduler shut down with " + undelivered.size() + " undelivered notifications");
+    }
+
+    /**
+     * The scheduler thread, which dispatches deliveries as capacity becomes available.
+     */
+    private void run() {
+        List<ScheduledDelivery> ready = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                long waitNanos;
+                while (true) {
+                    if (this.shutdown) {
+                        return;
+                    }
+                    waitNanos = selectReady(ready);
+                    if (!ready.isEmpty()) {
+                        // Wake submitters waiting for queue space
+                        notifyAll();
+                        break;
+                    }
+                    try {
+                        if (waitNanos > 0) {
+                            TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+                        } else {
+                            wait();
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+
+            // The workers' queue is unbounded, so this never blocks or rejects
+            for (ScheduledDelivery delivery : ready) {
+                this.deliveryExecutor.execute(delivery);
+            }
+            ready.clear();
+        }
+    }
+
+    /**
+     * Select the deliveries which can run now, in order of virtual finish time.
+     *
+     * @param ready - filled with the selected deliveries
+     * @return nanoseconds until a rate limited endpoint has capacity again, 0 if none is waiting on its rate
+     */
+    private long selectReady(List<ScheduledDelivery> ready) {
+        long now = System.nanoTime();
+        long waitNanos = 0;
+        while (this.inFlight < this.maxInFlight) {
+            EndpointQueue next = null;
+            Iterator<EndpointQueue> iterator = this.queues.values().iterator();
+            while (iterator.hasNext()) {
+                EndpointQueue queue = iterator.next();
+                if (queue.deliveries.isEmpty()) {
+                    if (queue.inFlight == 0) {
+                        iterator.remove();
+                    }
+                    continue;
+                }
+                if (queue.inFlight >= queue.limits.getMaxConcurrency()) {
+                    continue;
+                }
+                long rateWait = queue.nanosUntilPermit(now);
+                if (rateWait > 0) {
+                    waitNanos = waitNanos == 0 ? rateWait : Math.min(waitNanos, rateWait);
+                    continue;
+                }
+                if (next == null || queue.deliveries.peek().finishTag < next.deliveries.peek().finishTag) {
+                    next = queue;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+
+            Delivery delivery = next.deliveries.poll();
+            this.queuedCount--;
+            next.takePermit();
+            next.inFlight++;
+            this.inFlight++;
+            this.virtualTime = Math.max(this.virtualTime, delivery.startTag);
+            ready.add(new ScheduledDelivery(next, delivery.task));
+        }
+        return waitNanos;
+    }
+
+    /**
+     * Get the queue which is full when a delivery to an endpoint is submitted.
+     *
+     * @param queue - the queue of the endpoint
+     * @return the endpoint's queue if it is full, the longest queue if the total is full, otherwise null
+     */
+    private EndpointQueue getFullQueue(EndpointQueue queue) {
+        if (queue.deliveries.size() >= this.maxQueuedPerEndpoint) {
+            return queue;
+        }
+        if (this.queuedCount < this.maxQueued) {
+            return null;
+        }
+        EndpointQueue longest = queue;
+        for (EndpointQueue other : this.queues.values()) {
+            if (other.deliveries.size() > longest.deliveries.size()) {
+                longest = other;
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * Wait until a submitted delivery may have space or the deadline passes.
+     *
+     * @param deadline - the System.nanoTime() to give up at
+     * @return true if space may be available now, false if the deadline passed or the wait was interrupted
+     */
+    private boolean awaitSpace(long deadline) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            return false;
+        }
+        try {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private synchronized void release(EndpointQueue queue) {
+        queue.inFlight--;
+        this.inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * A delivery handed to the workers, which releases the endpoint's capacity when
+     * the delivery completes or when it is discarded on shutdown.
+     */
+    private class ScheduledDelivery implements NotificationDispatcher.DiscardableTask {
+        private final EndpointQueue queue;
+        private final DeliveryTask task;
+
+        ScheduledDelivery(EndpointQueue queue, DeliveryTask task) {
+            this.queue = queue;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            CompletionStage<?> stage = null;
+            try {
+                stage = this.task.get();
+            } finally {
+                if (stage == null) {
+                    release(this.queue);
+                } else {
+                    stage.whenComplete((result, error) -> release(this.queue));
+                }
+            }
+        }
+
+        @Override
+        public void discarded() {
+            release(this.queue);
+            this.task.discarded();
+        }
+    }
+
+    /**
+     * A queued delivery run while shutting down, which holds no endpoint capacity.
+     */
+    private static class DrainedDelivery implements NotificationDispatcher.DiscardableTask {
+        private final DeliveryTask task;
+
+        DrainedDelivery(DeliveryTask task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            this.task.get();
+        }
+
+        @Override
+        public void discarded() {
+            this.task.discarded();
+        }
+    }
+
+    /**
+     * The queued deliveries to an endpoint, its deliveries in flight and its rate limit tokens.
+     */
+    private static class EndpointQueue {
+        private EndpointLimits limits;
+        private final Deque<Delivery> deliveries = new ArrayDeque<>();
+        private int inFlight;
+        private double lastFinishTag;
+        private double tokens;
+        private long lastRefillNanos;
+
+        EndpointQueue(EndpointLimits limits) {
+            this.limits = limits;
+            this.tokens = Math.max(1, limits.getMaxRatePerSecond());
+            this.lastRefillNanos = System.nanoTime();
+        }
+
+        void add(DeliveryTask task, double virtualTime) {
+            double startTag = Math.max(virtualTime, this.lastFinishTag);
+            this.lastFinishTag = startTag + 1.0 / this.limits.getWeight();
+            this.deliveries.add(new Delivery(task, startTag, this.lastFinishTag));
+        }
+
+        /**
+         * Refill the token bucket and get how long until a delivery is permitted.
+         *
+         * @param now - the current System.nanoTime()
+         * @return 0 if a delivery is permitted now, otherwise the nanoseconds to wait
+         */
+        long nanosUntilPermit(long now) {
+            double rate = this.limits.getMaxRatePerSecond();
+            if (rate <= 0) {
+                return 0;
+            }
+            // Allow bursts of up to one second of deliveries
+            this.tokens = Math.min(Math.max(1, rate), this.tokens + (now - this.lastRefillNanos) * rate / 1e9);
+            this.lastRefillNanos = now;
+            return this.tokens >= 1 ? 0 : (long) Math.ceil((1 - this.tokens) * 1e9 / rate);
+        }
+
+        void takePermit() {
+            if (this.limits.getMaxRatePerSecond() > 0) {
+                this.tokens -= 1;
+            }
+        }
+    }
+
+    /**
+     * A queued delivery and its virtual start and finish times.
+     */
+    private static class Delivery {
+        private final DeliveryTask task;
+        private final double startTag;
+        private final double finishTag;
+
+        Delivery(DeliveryTask task, double startTag, double finishTag) {
+            this.task = task;
+            this.startTag = startTag;
+            this.finishTag = finishTag;
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "subscription-delivery-" + this.threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
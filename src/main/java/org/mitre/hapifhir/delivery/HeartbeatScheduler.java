@@ -0,0 +1,196 @@
+package org.mitre.hapifhir.delivery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Schedules periodic heartbeats for subscriptions on a hashed timing wheel.
+ * The wheel is a ring of buckets advanced one bucket per tick. A heartbeat is
+ * placed in the bucket of the tick it is due on, so scheduling, resetting and
+ * cancelling are constant time and each tick only looks at a single bucket no
+ * matter how many subscriptions have a heartbeat.
+ */
+public class HeartbeatScheduler {
+    private final Logger myLogger = LoggerFactory.getLogger(HeartbeatScheduler.class.getName());
+
+    /**
+     * Sends the heartbeat for a subscription when it is due.
+     */
+    public interface HeartbeatHandler {
+        /**
+         * Send a heartbeat.
+         *
+         * @param subscriptionId - the id of the subscription
+         */
+        void heartbeat(String subscriptionId);
+    }
+
+    public static final long DEFAULT_TICK_MS = 1000;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final HeartbeatHandler handler;
+    private final long tickMs;
+    private final List<Set<Timeout>> wheel;
+    private final Map<String, Timeout> timeouts = new HashMap<>();
+    private final ScheduledExecutorService ticker;
+    private long currentTick;
+
+    /**
+     * Create a new heartbeat scheduler with the default tick and wheel size.
+     *
+     * @param handler - sends the heartbeats
+     */
+    public HeartbeatScheduler(HeartbeatHandler handler) {
+        this(handler, DEFAULT_TICK_MS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Create a new heartbeat scheduler.
+     *
+     * @param handler - sends the heartbeats
+     * @param tickMs - the resolution of the wheel, in milliseconds
+     * @param wheelSize - the number of buckets in the wheel
+     */
+    public HeartbeatScheduler(HeartbeatHandler handler, long tickMs, int wheelSize) {
+        if (tickMs < 1 || wheelSize < 1) {
+            throw new IllegalArgumentException("tickMs and wheelSize must be positive");
+        }
+        this.handler = handler;
+        this.tickMs = tickMs;
+        this.wheel = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            this.wheel.add(new HashSet<>());
+        }
+        this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "subscription-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ticker.scheduleAtFixedRate(this::tick, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedule heartbeats for a subscription, replacing any existing schedule.
+     *
+     * @param subscriptionId - the id of the subscription
+     * @param periodMs - the heartbeat period in milliseconds, 0 or less to cancel heartbeats
+     */
+    public synchronized void schedule(String subscriptionId, long periodMs) {
+        cancel(subscriptionId);
+        if (periodMs <= 0) {
+            return;
+        }
+        Timeout timeout = new Timeout(subscriptionId, Math.max(1, (periodMs + this.tickMs - 1) / this.tickMs));
+        this.timeouts.put(subscriptionId, timeout);
+        insert(timeout);
+    }
+
+    /**
+     * Restart the heartbeat period of a subscription, e.g. after a notification was
+     * delivered to it. Does nothing if the subscription has no heartbeat.
+     *
+     * @param subscriptionId - the id of the subscription
+     */
+    public synchronized void reset(String subscriptionId) {
+        Timeout timeout = this.timeouts.get(subscriptionId);
+        if (timeout != null) {
+            bucket(timeout.deadlineTick).remove(timeout);
+            insert(timeout);
+        }
+    }
+
+    /**
+     * Stop heartbeats for a subscription.
+     *
+     * @param subscriptionId - the id of the subscription
+     */
+    public synchronized void cancel(String subscriptionId) {
+        Timeout timeout = this.timeouts.remove(subscriptionId);
+        if (timeout != null) {
+            bucket(timeout.deadlineTick).remove(timeout);
+        }
+    }
+
+    /**
+     * Get the number of subscriptions with a heartbeat.
+     *
+     * @return the scheduled heartbeat count
+     */
+    public synchronized int size() {
+        return this.timeouts.size();
+    }
+
+    /**
+     * Stop sending heartbeats.
+     */
+    public void shutdown() {
+        this.ticker.shutdownNow();
+    }
+
+    /**
+     * Advance the wheel one bucket and send the heartbeats which are due. Called by
+     * the ticker thread every tick.
+     */
+    void tick() {
+        List<String> due = new ArrayList<>();
+        synchronized (this) {
+            this.currentTick++;
+            List<Timeout> expired = new ArrayList<>();
+            Iterator<Timeout> iterator = bucket(this.currentTick).iterator();
+            while (iterator.hasNext()) {
+                Timeout timeout = iterator.next();
+                // Timeouts more than a full turn of the wheel away share the bucket
+                if (timeout.deadlineTick <= this.currentTick) {
+                    iterator.remove();
+                    expired.add(timeout);
+                }
+            }
+            for (Timeout timeout : expired) {
+                due.add(timeout.subscriptionId);
+                insert(timeout);
+            }
+        }
+
+        for (String subscriptionId : due) {
+            try {
+                this.handler.heartbeat(subscriptionId);
+            } catch (Exception e) {
+                myLogger.error("Error sending heartbeat for Subscription/" + subscriptionId, e);
+            }
+        }
+    }
+
+    private void insert(Timeout timeout) {
+        timeout.deadlineTick = this.currentTick + timeout.periodTicks;
+        bucket(timeout.deadlineTick).add(timeout);
+    }
+
+    private Set<Timeout> bucket(long tick) {
+        return this.wheel.get((int) (tick % this.wheel.size()));
+    }
+
+    /**
+     * The heartbeat of a subscription and the tick it is next due on.
+     */
+    private static class Timeout {
+        private final String subscriptionId;
+        private final long periodTicks;
+        private long deadlineTick;
+
+        Timeout(String subscriptionId, long periodTicks) {
+            this.subscriptionId = subscriptionId;
+            this.periodTicks = periodTicks;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.mitre.hapifhir.delivery;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * IDeliveryClient posts notifications to rest-hook endpoints. Implementations
+ * either block the calling thread until the endpoint responds, like the pooled
+ * WebhookClient, or return immediately and complete the future from an event
+ * loop, like the AsyncWebhookClient, which keeps many deliveries in flight
+ * without a thread for each.
+ */
+public interface IDeliveryClient extends Closeable {
+
+    /**
+     * POST a JSON payload to an endpoint.
+     *
+     * @param endpoint - the url to post to
+     * @param headers - additional headers in the form "Name: value"
+     * @param payload - the JSON payload
+     * @param timeoutMs - the timeout for this request in milliseconds, 0 to use the client timeouts
+     * @return future completed with the HTTP status code of the response, or exceptionally with an
+     *     IOException when the endpoint cannot be reached or does not respond in time
+     */
+    public CompletableFuture<Integer> send(String endpoint, List<String> headers, String payload, int timeoutMs);
+
+    /**
+     * Get how many deliveries the client can keep in flight at once.
+     *
+     * @return the maximum deliveries in flight, 0 if the client blocks and is limited by the calling threads
+     */
+    public default int getMaxInFlight() {
+        return 0;
+    }
+}
@@ -0,0 +1,170 @@
+package org.mitre.hapifhir.delivery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.Subscription;
+import org.mitre.hapifhir.utils.EncodedResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces events for a subscription into a single notification. A batch is
+ * flushed when it reaches the subscription max events or when the max delay
+ * has passed since the first event in the batch, whichever comes first.
+ */
+public class NotificationBatcher {
+    private final Logger myLogger = LoggerFactory.getLogger(NotificationBatcher.class.getName());
+
+    /**
+     * Receives the events of a batch when it is flushed.
+     */
+    public interface BatchHandler {
+        /**
+         * Handle a flushed batch.
+         *
+         * @param subscription - the subscription to notify
+         * @param topicUrl - the canonical url of the topic
+         * @param resources - the resources of every event in the batch, in order
+         */
+        void flush(Subscription subscription, String topicUrl, List<EncodedResource> resources);
+    }
+
+    public static final long DEFAULT_MAX_DELAY_MS = 1000;
+
+    private final BatchHandler handler;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, Batch> batches = new ConcurrentHashMap<>();
+    private volatile long maxDelayMs = DEFAULT_MAX_DELAY_MS;
+
+    /**
+     * Create a new batcher.
+     *
+     * @param handler - receives each batch when it is flushed
+     */
+    public NotificationBatcher(BatchHandler handler) {
+        this.handler = handler;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "subscription-notification-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Set the maximum time an event waits in a batch before the batch is flushed.
+     *
+     * @param maxDelay - the maximum delay
+     * @param unit - the unit of the delay
+     */
+    public void setMaxDelay(long maxDelay, TimeUnit unit) {
+        this.maxDelayMs = unit.toMillis(maxDelay);
+    }
+
+    /**
+     * Add an event to the batch for a subscription.
+     *
+     * @param subscription - the subscription to notify
+     * @param topicUrl - the canonical url of the topic
+     * @param resource - the triggering resource
+     * @param maxEvents - flush the batch once it holds this many events
+     */
+    public void add(Subscription subscription, String topicUrl, EncodedResource resource, int maxEvents) {
+        String key = subscription.getIdElement().getIdPart() + "|" + topicUrl;
+        while (true) {
+            Batch batch = this.batches.computeIfAbsent(key, k -> new Batch(subscription, topicUrl));
+            boolean full;
+            synchronized (batch) {
+                if (batch.closed) {
+                    // flushed after we looked it up, start a new batch
+                    this.batches.remove(key, batch);
+                    continue;
+                }
+                batch.subscription = subscription;
+                batch.resources.add(resource);
+                full = batch.resources.size() >= maxEvents;
+                if (!full && batch.timer == null) {
+                    try {
+                        batch.timer = this.scheduler.schedule(() -> flush(key, batch), this.maxDelayMs,
+                          TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException e) {
+                        // shutting down, send the event right away
+                        full = true;
+                    }
+                }
+            }
+            if (full) {
+                flush(key, batch);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Get the number of batches waiting to be flushed.
+     *
+     * @return the number of open batches
+     */
+    public int getPendingBatches() {
+        return this.batches.size();
+    }
+
+    /**
+     * Flush every open batch and stop the flush timer.
+     */
+    public void shutdown() {
+        this.scheduler.shutdownNow();
+        for (Map.Entry<String, Batch> entry : this.batches.entrySet()) {
+            flush(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Close a batch and hand its events to the handler. A batch is only flushed once.
+     *
+     * @param key - the batch key
+     * @param batch - the batch to flush
+     */
+    private void flush(String key, Batch batch) {
+        List<EncodedResource> resources;
+        synchronized (batch) {
+            if (batch.closed) {
+                return;
+            }
+            batch.closed = true;
+            this.batches.remove(key, batch);
+            resources = batch.resources;
+        }
+
+        if (batch.timer != null) {
+            batch.timer.cancel(false);
+        }
+
+        try {
+            this.handler.flush(batch.subscription, batch.topicUrl, resources);
+        } catch (Exception e) {
+            myLogger.error("Error flushing notification batch for Subscription/"
+                + batch.subscription.getIdElement().getIdPart(), e);
+        }
+    }
+
+    private static class Batch {
+        private final String topicUrl;
+        private final List<EncodedResource> resources = new ArrayList<>();
+        private Subscription subscription;
+        private ScheduledFuture<?> timer;
+        private boolean closed;
+
+        Batch(Subscription subscription, String topicUrl) {
+            this.subscription = subscription;
+            this.topicUrl = topicUrl;
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package org.mitre.hapifhir.delivery;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.mitre.hapifhir.metrics.IMetricsListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers notifications to rest-hook endpoints according to a DeliveryPolicy.
+ * Every attempt is queued on a FairDeliveryScheduler, which runs it on its
+ * workers when it is the endpoint's turn, so a slow or backlogged endpoint
+ * cannot delay the others. Failed deliveries are retried with backoff. Retries
+ * wait on a scheduler and are queued again when due, so no worker thread sleeps
+ * between attempts. While the circuit for an endpoint is open, deliveries to it
+ * are short-circuited without a request and retried once the circuit half opens.
+ *
+ * <p>Attempts are asynchronous. With a non-blocking IDeliveryClient a worker
+ * only starts the request, and the outcome is handled on the dispatcher when
+ * the response arrives, so the number of deliveries in flight is bounded by the
+ * client rather than by the number of workers. The client's I/O thread never
+ * waits for the dispatcher: when its queue is full the outcome is handled on a
+ * dedicated outcome thread instead.
+ */
+public class NotificationDelivery {
+    private final Logger myLogger = LoggerFactory.getLogger(NotificationDelivery.class.getName());
+
+    /**
+     * Receives the outcome of a delivery.
+     */
+    public interface DeliveryCallback {
+        /**
+         * Called when the endpoint accepted the notification.
+         */
+        default void onSuccess() {
+        }
+
+        /**
+         * Called when the notification could not be delivered and the policy is exhausted.
+         *
+         * @param reason - the last failure
+         */
+        void onExhausted(String reason);
+
+        /**
+         * Called when the endpoint permanently rejected the notification, i.e. it
+         * responded with a 4xx status other than 408 or 429, or the notification can
+         * never be sent, e.g. because the endpoint url is invalid. It is not retried.
+         * Treated as exhausted by default.
+         *
+         * @param reason - why the notification was rejected
+         */
+        default void onRejected(String reason) {
+            onExhausted(reason);
+        }
+
+        /**
+         * Called when the notification was dropped or rejected because the delivery
+         * queue was full, so it will never be delivered. Treated as exhausted by default.
+         *
+         * @param reason - why the notification was dropped
+         */
+        default void onDropped(String reason) {
+            onExhausted(reason);
+        }
+    }
+
+    private final IDeliveryClient deliveryClient;
+    private final FairDeliveryScheduler deliveryScheduler;
+    private final DeliveryPolicy deliveryPolicy;
+    private final ScheduledExecutorService retryScheduler;
+    private final ExecutorService outcomeExecutor;
+    private final Map<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+    private volatile IMetricsListener metricsListener = IMetricsListener.NOOP;
+
+    /**
+     * Create a new delivery. As many deliveries are kept in flight as the client
+     * allows, or as the dispatcher has workers if the client blocks.
+     *
+     * @param deliveryClient - the http client used to post notifications
+     * @param notificationDispatcher - the dispatcher which runs the delivery attempts
+     * @param deliveryPolicy - the retry and circuit breaker policy
+     */
+    public NotificationDelivery(IDeliveryClient deliveryClient, NotificationDispatcher notificationDispatcher,
+      DeliveryPolicy deliveryPolicy) {
+        this(deliveryClient, new FairDeliveryScheduler(notificationDispatcher,
+            deliveryClient.getMaxInFlight() > 0 ? deliveryClient.getMaxInFlight()
+                : notificationDispatcher.getWorkerCount(),
+            new EndpointLimits()), deliveryPolicy);
+    }
+
+    /**
+     * Create a new delivery.
+     *
+     * @param deliveryClient - the http client used to post notifications
+     * @param deliveryScheduler - schedules the delivery attempts fairly across endpoints
+     * @param deliveryPolicy - the retry and circuit breaker policy
+     */
+    public NotificationDelivery(IDeliveryClient deliveryClient, FairDeliveryScheduler deliveryScheduler,
+      DeliveryPolicy deliveryPolicy) {
+        this.deliveryClient = deliveryClient;
+        this.deliveryScheduler = deliveryScheduler;
+        this.deliveryPolicy = deliveryPolicy;
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "subscription-notification-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Unbounded, but it never holds more outcomes than there are deliveries in flight
+        this.outcomeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "subscription-delivery-outcome");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Deliver a notification. The attempt is queued for the endpoint and made by the
+     * scheduler when it is the endpoint's turn. If the queue is full the callback
+     * is told the notification was dropped.
+     *
+     * @param endpoint - the url to post to
+     * @param headers - additional headers in the form "Name: value"
+     * @param payload - the JSON notification
+     * @param callback - receives the outcome of the delivery
+     */
+    public void deliver(String endpoint, List<String> headers, String payload, DeliveryCallback callback) {
+        deliver(endpoint, headers, payload, 0, callback);
+    }
+
+    /**
+     * Deliver a notification with a timeout of its own, e.g. a handshake.
+     *
+     * @param endpoint - the url to post to
+     * @param headers - additional headers in the form "Name: value"
+     * @param payload - the JSON notification
+     * @param timeoutMs - the timeout of each attempt in milliseconds, 0 to use the client timeouts
+     * @param callback - receives the outcome of the delivery
+     */
+    public void deliver(String endpoint, List<String> headers, String payload, int timeoutMs,
+      DeliveryCallback callback) {
+        submit(new Delivery(endpoint, headers, payload, timeoutMs, callback));
+    }
+
+    /**
+     * Set the listener which records the latency of every delivery attempt per endpoint.
+     *
+     * @param metricsListener - the metrics listener
+     */
+    public void setMetricsListener(IMetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+    }
+
+    /**
+     * Get the scheduler which shares delivery capacity between endpoints, e.g. to set
+     * the weight, concurrency and rate limits of an endpoint.
+     *
+     * @return the delivery scheduler
+     */
+    public FairDeliveryScheduler getDeliveryScheduler() {
+        return this.deliveryScheduler;
+    }
+
+    /**
+     * Get the circuit state of an endpoint.
+     *
+     * @param endpoint - the endpoint url
+     * @return the circuit state, CLOSED if nothing has been delivered to the endpoint
+     */
+    public CircuitBreaker.State getCircuitState(String endpoint) {
+        CircuitBreaker circuitBreaker = this.circuitBreakers.get(endpoint);
+        return circuitBreaker == null ? CircuitBreaker.State.CLOSED : circuitBreaker.getState();
+    }
+
+    /**
+     * Stop scheduling retries and drain the queued deliveries. Retries which are not
+     * yet due are discarded.
+     */
+    public void shutdown() {
+        int pending = this.retryScheduler.shutdownNow().size();
+        if (pending > 0) {
+            myLogger.warn("Notification delivery shut down with " + pending + " pending retries");
+        }
+        this.deliveryScheduler.shutdown();
+        this.outcomeExecutor.shutdown();
+    }
+
+    /**
+     * Queue an attempt of a delivery on the scheduler, and tell the callback if the
+     * attempt is rejected or later dropped because the queue is full.
+     *
+     * @param delivery - the delivery to attempt
+     */
+    private void submit(Delivery delivery) {
+        FairDeliveryScheduler.DeliveryTask task = new FairDeliveryScheduler.DeliveryTask() {
+            @Override
+            public CompletableFuture<?> get() {
+                return attempt(delivery);
+            }
+
+            @Override
+            public void discarded() {
+                delivery.callback.onDropped("dropped from the full delivery queue of " + delivery.endpoint);
+            }
+        };
+        if (!this.deliveryScheduler.submit(delivery.endpoint, task)) {
+            delivery.callback.onDropped("delivery queue of " + delivery.endpoint + " is full");
+        }
+    }
+
+    /**
+     * Make a single delivery attempt and schedule a retry if it fails.
+     *
+     * @param delivery - the delivery to attempt
+     * @return future completed once the outcome of the attempt has been handled
+     */
+    private CompletableFuture<?> attempt(Delivery delivery) {
+        CircuitBreaker circuitBreaker =
+            this.circuitBreakers.computeIfAbsent(delivery.endpoint, k -> this.deliveryPolicy.newCircuitBreaker());
+        if (!circuitBreaker.allowRequest()) {
+            retryOrExhaust(delivery, circuitBreaker, "circuit open for " + delivery.endpoint);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        long start = System.nanoTime();
+        CompletableFuture<Integer> response = send(delivery);
+
+        if (response.isDone()) {
+            // Blocking clients have already responded, handle the outcome on this worker
+            handleResponse(delivery, circuitBreaker, start, response);
+            return response;
+        }
+        // Hand the outcome back to the dispatcher rather than run it on the client's I/O thread
+        return response.handleAsync((status, error) -> {
+            handleResponse(delivery, circuitBreaker, start, response);
+            return null;
+        }, this::runOnDispatcher);
+    }
+
+    /**
+     * Helper method to send a delivery, turning an exception thrown by the client into a
+     * failed response.
+     *
+     * @param delivery - the delivery to send
+     * @return the response status future
+     */
+    private CompletableFuture<Integer> send(Delivery delivery) {
+        try {
+            return this.deliveryClient.send(delivery.endpoint, delivery.headers, delivery.payload,
+                delivery.timeoutMs);
+        } catch (RuntimeException e) {
+            CompletableFuture<Integer> response = new CompletableFuture<>();
+            response.completeExceptionally(e);
+            return response;
+        }
+    }
+
+    /**
+     * Handle the outcome of a delivery attempt.
+     *
+     * @param delivery - the attempted delivery
+     * @param circuitBreaker - the circuit breaker of the endpoint
+     * @param start - the System.nanoTime() the attempt started at
+     * @param response - the completed response future
+     */
+    private void handleResponse(Delivery delivery, CircuitBreaker circuitBreaker, long start,
+      CompletableFuture<Integer> response) {
+        long latency = System.nanoTime() - start;
+        String failure;
+        try {
+            int status = response.get();
+            boolean success = status >= 200 && status < 300;
+            this.metricsListener.recordDelivery(delivery.endpoint, latency, success);
+            if (success) {
+                circuitBreaker.recordSuccess();
+                delivery.callback.onSuccess();
+                return;
+            } else if (isPermanentRejection(status)) {
+                // The endpoint is up but will never accept this notification
+                circuitBreaker.recordSuccess();
+                delivery.callback.onRejected("endpoint responded " + status);
+                return;
+            }
+            failure = "endpoint responded " + status;
+        } catch (ExecutionException | CompletionException | InterruptedException e) {
+            this.metricsListener.recordDelivery(delivery.endpoint, latency, false);
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (!(cause instanceof IOException)) {
+                // e.g. an invalid endpoint url, retrying will not help
+                delivery.callback.onRejected(cause.getClass().getSimpleName() + ": " + cause.getMessage());
+                return;
+            }
+            failure = cause.getClass().getSimpleName() + ": " + cause.getMessage();
+        }
+        circuitBreaker.recordFailure();
+        retryOrExhaust(delivery, circuitBreaker, failure);
+    }
+
+    /**
+     * Helper method to check if a response status rejects a notification for good.
+     * Request timeouts and rate limiting are worth retrying like server errors.
+     *
+     * @param status - the response status
+     * @return true for a 4xx status other than 408 and 429, false otherwise
+     */
+    private static boolean isPermanentRejection(int status) {
+        return status >= 400 && status < 500 && status != 408 && status != 429;
+    }
+
+    /**
+     * Schedule a retry of a failed delivery, or report it as exhausted once it is out of retries.
+     *
+     * @param delivery - the failed delivery
+     * @param circuitBreaker - the circuit breaker of the endpoint
+     * @param failure - the reason the attempt failed
+     */
+    private void retryOrExhaust(Delivery delivery, CircuitBreaker circuitBreaker, String failure) {
+        delivery.attempts++;
+        if (delivery.attempts > this.deliveryPolicy.getMaxRetries()) {
+            delivery.callback.onExhausted(failure);
+            return;
+        }
+
+        long delay = Math.max(this.deliveryPolicy.getBackoffMs(delivery.attempts),
+            circuitBreaker.getRemainingOpenMs());
+        myLogger.warn("Notification to " + delivery.endpoint + " failed (" + failure + "), retry "
+            + delivery.attempts + " in " + delay + "ms");
+        try {
+            this.retryScheduler.schedule(() -> submit(delivery), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            myLogger.warn("Notification to " + delivery.endpoint + " not retried, delivery is shut down");
+        }
+    }
+
+    /**
+     * Run a task on the dispatcher without waiting for queue space. If the dispatcher
+     * is full the task runs on the outcome thread, so the client's I/O thread calling
+     * this is never blocked and the outcome of a delivery is never lost.
+     *
+     * @param task - the task to run
+     */
+    private void runOnDispatcher(Runnable task) {
+        NotificationDispatcher.DiscardableTask outcome = new NotificationDispatcher.DiscardableTask() {
+            @Override
+            public void run() {
+                task.run();
+            }
+
+            @Override
+            public void discarded() {
+                task.run();
+            }
+        };
+        if (this.deliveryScheduler.getNotificationDispatcher().tryDispatch(outcome)) {
+            return;
+        }
+        try {
+            this.outcomeExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shut down, the client is closing too
+            task.run();
+        }
+    }
+
+    /**
+     * A notification being delivered and the number of failed attempts so far.
+     */
+    private static class Delivery {
+        private final String endpoint;
+        private final List<String> headers;
+        private final String payload;
+        private final int timeoutMs;
+        private final DeliveryCallback callback;
+        private int attempts;
+
+        Delivery(String endpoint, List<String> headers, String payload, int timeoutMs, DeliveryCallback callback) {
+            this.endpoint = endpoint;
+            this.headers = headers;
+            this.payload = payload;
+            this.timeoutMs = timeoutMs;
+            this.callback = callback;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package org.mitre.hapifhir.delivery;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dispatches notification work to a pool of worker threads through a bounded
+ * queue so notifications are delivered off the request thread. When the queue
+ * is full the BackpressurePolicy decides whether the caller blocks, the oldest
+ * queued notification is dropped, or the new notification is rejected.
+ */
+public class NotificationDispatcher {
+    private final Logger myLogger = LoggerFactory.getLogger(NotificationDispatcher.class.getName());
+
+    public enum BackpressurePolicy {
+        BLOCK, DROP_OLDEST, REJECT;
+    }
+
+    /**
+     * A task which is told when it was queued but is never going to run, because
+     * it was dropped from a full queue or the dispatcher shut down before running it.
+     */
+    public interface DiscardableTask extends Runnable {
+        /**
+         * Called instead of run when the queued task is discarded.
+         */
+        void discarded();
+    }
+
+    public static final int DEFAULT_WORKERS = 4;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    private final ThreadPoolExecutor executor;
+    private final BackpressurePolicy backpressurePolicy;
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * Create a new dispatcher with the default number of workers, default queue
+     * capacity and the BLOCK backpressure policy.
+     */
+    public NotificationDispatcher() {
+        this(DEFAULT_WORKERS, DEFAULT_QUEUE_CAPACITY, BackpressurePolicy.BLOCK);
+    }
+
+    /**
+     * Create a new dispatcher.
+     *
+     * @param workers - the number of worker threads delivering notifications
+     * @param queueCapacity - the maximum number of notifications waiting for a worker
+     * @param backpressurePolicy - what to do when the queue is full
+     */
+    public NotificationDispatcher(int workers, int queueCapacity, BackpressurePolicy backpressurePolicy) {
+        if (workers < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("workers and queueCapacity must be positive");
+        }
+        this.backpressurePolicy = backpressurePolicy;
+        BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS, queue,
+          new WorkerThreadFactory(), rejectionHandler(backpressurePolicy));
+        // Started up front so tryDispatch only has to offer to the queue
+        this.executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * Queue a notification task to be run by a worker.
+     *
+     * @param task - the work to deliver the notification
+     * @return true if the task was queued, false if it was rejected
+     */
+    public boolean dispatch(Runnable task) {
+        try {
+            this.executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            this.droppedCount.incrementAndGet();
+            myLogger.warn("Notification rejected: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Queue a notification task to be run by a worker if there is space right now.
+     * Unlike dispatch this never blocks or drops another task, whatever the
+     * BackpressurePolicy, so it is safe to call from threads which must not wait.
+     *
+     * @param task - the work to deliver the notification
+     * @return true if the task was queued, false if the queue is full or the dispatcher is shut down
+     */
+    public boolean tryDispatch(Runnable task) {
+        if (this.executor.isShutdown() || !this.executor.getQueue().offer(task)) {
+            return false;
+        }
+        // Shut down while offering, the task may never be taken
+        if (this.executor.isShutdown() && this.executor.getQueue().remove(task)) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of worker threads delivering notifications.
+     *
+     * @return the worker count
+     */
+    public int getWorkerCount() {
+        return this.executor.getCorePoolSize();
+    }
+
+    /**
+     * Get what is done when the queue is full.
+     *
+     * @return the backpressure policy
+     */
+    public BackpressurePolicy getBackpressurePolicy() {
+        return this.backpressurePolicy;
+    }
+
+    /**
+     * Get the number of notifications waiting for a worker.
+     *
+     * @return the queue depth
+     */
+    public int getQueueSize() {
+        return this.executor.getQueue().size();
+    }
+
+    /**
+     * Get the number of notifications dropped or rejected because the queue was full
+     * or the dispatcher was shut down.
+     *
+     * @return the dropped notification count
+     */
+    public long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+
+    /**
+     * Stop accepting new notifications and wait for the queued notifications to
+     * be delivered. Notifications still queued after the timeout are discarded.
+     *
+     * @param timeout - the maximum time to wait for the queue to drain
+     * @param unit - the unit of the timeout
+     * @return true if every queued notification was delivered, false otherwise
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        this.executor.shutdown();
+        try {
+            if (this.executor.awaitTermination(timeout, unit)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<Runnable> undelivered = this.executor.shutdownNow();
+        this.droppedCount.addAndGet(undelivered.size());
+        undelivered.forEach(NotificationDispatcher::discard);
+        myLogger.warn("Notification dispatcher shut down with " + undelivered.size()
+            + " undelivered notifications");
+        return false;
+    }
+
+    /**
+     * Helper method to create the handler used when the queue is full.
+     *
+     * @param backpressurePolicy - the configured policy
+     * @return the rejected execution handler
+     */
+    private RejectedExecutionHandler rejectionHandler(BackpressurePolicy backpressurePolicy) {
+        switch (backpressurePolicy) {
+            case BLOCK:
+                return (task, executor) -> {
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException("dispatcher is shut down");
+                    }
+                    try {
+                        executor.getQueue().put(task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("interrupted waiting for queue space");
+                    }
+                };
+            case DROP_OLDEST:
+                return (task, executor) -> {
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException("dispatcher is shut down");
+                    }
+                    while (!executor.getQueue().offer(task)) {
+                        Runnable dropped = executor.getQueue().poll();
+                        if (dropped != null) {
+                            discard(dropped);
+                            this.droppedCount.incrementAndGet();
+                            myLogger.warn("Notification queue full, dropped oldest notification");
+                        }
+                    }
+                };
+            case REJECT:
+            default:
+                return (task, executor) -> {
+                    throw new RejectedExecutionException(executor.isShutdown()
+                        ? "dispatcher is shut down" : "notification queue is full");
+                };
+        }
+    }
+
+    private static void discard(Runnable task) {
+        if (task instanceof DiscardableTask) {
+            ((DiscardableTask) task).discarded();
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            String name = "subscription-notification-" + this.threadCount.incrementAndGet();
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
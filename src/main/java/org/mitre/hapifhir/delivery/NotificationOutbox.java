@@ -0,0 +1,474 @@
+package org.mitre.hapifhir.delivery;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local append-only journal of notifications which have not been delivered yet.
+ * Notifications are appended before they are dispatched and acknowledged once
+ * delivered (or given up on), so notifications still pending when the process
+ * stops are replayed on the next start, giving at-least-once delivery.
+ *
+ * <p>The journal is a directory of segment files. Records are only ever appended
+ * to the newest segment, which rolls over to a new segment once it reaches the
+ * maximum size. The oldest segments are deleted once every notification in them
+ * has been acknowledged. When only a few notifications in the oldest segment are
+ * still pending they are copied to the newest segment so the oldest can be
+ * deleted anyway, and one slow notification cannot keep the whole journal. Each
+ * record is checksummed and a torn record at the end of the newest segment is
+ * truncated when the journal is opened.
+ */
+public class NotificationOutbox implements Closeable {
+    private final Logger myLogger = LoggerFactory.getLogger(NotificationOutbox.class.getName());
+
+    public static final long DEFAULT_MAX_SEGMENT_BYTES = 16 * 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "outbox-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final byte APPEND = 1;
+    private static final byte ACK = 2;
+    private static final int HEADER_BYTES = 8;
+    // Pending notifications are copied out of the oldest segment once at most 1 in this many is pending
+    private static final int RELOCATE_RATIO = 4;
+
+    /**
+     * A journaled notification.
+     */
+    public static class Entry {
+        private final long id;
+        private final String subscriptionId;
+        private final String endpoint;
+        private final List<String> headers;
+        private final String payload;
+
+        Entry(long id, String subscriptionId, String endpoint, List<String> headers, String payload) {
+            this.id = id;
+            this.subscriptionId = subscriptionId;
+            this.endpoint = endpoint;
+            this.headers = headers;
+            this.payload = payload;
+        }
+
+        public long getId() {
+            return this.id;
+        }
+
+        public String getSubscriptionId() {
+            return this.subscriptionId;
+        }
+
+        public String getEndpoint() {
+            return this.endpoint;
+        }
+
+        public List<String> getHeaders() {
+            return this.headers;
+        }
+
+        public String getPayload() {
+            return this.payload;
+        }
+    }
+
+    private final Path directory;
+    private final long maxSegmentBytes;
+    private final boolean syncOnWrite;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final Map<Long, Segment> pendingSegments = new HashMap<>();
+    private List<Entry> recovered;
+    private Segment activeSegment;
+    private FileChannel activeChannel;
+    private long nextId = 1;
+
+    /**
+     * Open the outbox in a directory with the default segment size, without forcing
+     * writes to disk. Notifications survive a process restart but may be lost if the
+     * machine itself fails.
+     *
+     * @param directory - the directory holding the segment files, created if missing
+     * @throws IOException when the journal cannot be read or created
+     */
+    public NotificationOutbox(Path directory) throws IOException {
+        this(directory, DEFAULT_MAX_SEGMENT_BYTES, false);
+    }
+
+    /**
+     * Open the outbox in a directory. Pending notifications found in the journal are
+     * available from replay().
+     *
+     * @param directory - the directory holding the segment files, created if missing
+     * @param maxSegmentBytes - the size at which the newest segment rolls over to a new one
+     * @param syncOnWrite - true to force every record to disk before returning
+     * @throws IOException when the journal cannot be read or created
+     */
+    public NotificationOutbox(Path directory, long maxSegmentBytes, boolean syncOnWrite) throws IOException {
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.syncOnWrite = syncOnWrite;
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * Append a notification to the journal.
+     *
+     * @param subscriptionId - the id of the subscription being notified
+     * @param endpoint - the url the notification is posted to
+     * @param headers - additional headers in the form "Name: value"
+     * @param payload - the JSON notification
+     * @return the journaled entry, to be acknowledged once delivered
+     * @throws IOException when the entry cannot be written
+     */
+    public synchronized Entry append(String subscriptionId, String endpoint, List<String> headers,
+      String payload) throws IOException {
+        Entry entry = new Entry(this.nextId++, subscriptionId, endpoint, headers, payload);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(payload.length() + 256);
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeByte(APPEND);
+        out.writeLong(entry.id);
+        writeString(out, subscriptionId);
+        writeString(out, endpoint);
+        out.writeInt(headers.size());
+        for (String header : headers) {
+            writeString(out, header);
+        }
+        writeString(out, payload);
+        out.flush();
+
+        if (this.activeSegment.size > 0 && this.activeSegment.size + HEADER_BYTES + body.size()
+            > this.maxSegmentBytes) {
+            roll();
+        }
+        write(body.toByteArray());
+        this.activeSegment.appended++;
+        this.activeSegment.pending++;
+        this.pendingSegments.put(entry.id, this.activeSegment);
+        return entry;
+    }
+
+    /**
+     * Acknowledge a notification so it is not replayed. Segments are deleted once
+     * every notification in them has been acknowledged.
+     *
+     * @param entry - the delivered entry
+     * @throws IOException when the acknowledgement cannot be written
+     */
+    public synchronized void ack(Entry entry) throws IOException {
+        Segment segment = this.pendingSegments.remove(entry.id);
+        if (segment == null) {
+            return;
+        }
+        segment.pending--;
+
+        if (this.pendingSegments.isEmpty() && this.segments.size() == 1) {
+            // Nothing is pending, start the only segment over instead of recording the ack
+            this.activeChannel.truncate(0);
+            this.activeSegment.size = 0;
+            return;
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(9);
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeByte(ACK);
+        out.writeLong(entry.id);
+        out.flush();
+        write(body.toByteArray());
+        compact();
+    }
+
+    /**
+     * Get the notifications which were pending when the outbox was opened. They are
+     * only returned once and must be acknowledged like any other entry.
+     *
+     * @return list of pending entries, oldest first
+     */
+    public synchronized List<Entry> replay() {
+        List<Entry> entries = this.recovered;
+        this.recovered = Collections.emptyList();
+        return entries;
+    }
+
+    /**
+     * Get the number of notifications appended but not yet acknowledged.
+     *
+     * @return the pending count
+     */
+    public synchronized int getPendingCount() {
+        return this.pendingSegments.size();
+    }
+
+    /**
+     * Get the number of segment files in the journal.
+     *
+     * @return the segment count
+     */
+    public synchronized int getSegmentCount() {
+        return this.segments.size();
+    }
+
+    /**
+     * Close the active segment. Pending notifications stay in the journal.
+     *
+     * @throws IOException when the segment cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        this.activeChannel.close();
+    }
+
+    /**
+     * Read every segment to find the pending notifications, then open the newest
+     * segment for appending.
+     *
+     * @throws IOException when the journal cannot be read
+     */
+    private void recover() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory,
+          SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    long number = Long.parseLong(
+                        name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    this.segments.put(number, new Segment(number, path));
+                } catch (NumberFormatException e) {
+                    myLogger.warn("Ignoring unexpected file in outbox: " + path);
+                }
+            }
+        }
+
+        Map<Long, Entry> pendingEntries = new LinkedHashMap<>();
+        for (Segment segment : this.segments.values()) {
+            segment.size = readSegment(segment, pendingEntries);
+        }
+        this.recovered = new ArrayList<>(pendingEntries.values());
+
+        if (this.segments.isEmpty()) {
+            Segment segment = new Segment(1, segmentPath(1));
+            this.segments.put(segment.number, segment);
+        }
+        this.activeSegment = this.segments.lastEntry().getValue();
+        this.activeChannel = FileChannel.open(this.activeSegment.path, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE);
+        // Drop a torn record left by a crash mid write
+        this.activeChannel.truncate(this.activeSegment.size);
+        this.activeChannel.position(this.activeSegment.size);
+        compact();
+
+        if (!this.recovered.isEmpty()) {
+            myLogger.info("Outbox recovered " + this.recovered.size() + " pending notifications");
+        }
+    }
+
+    /**
+     * Read the records of a segment.
+     *
+     * @param segment - the segment to read
+     * @param pendingEntries - the entries appended and not yet acknowledged so far, updated in place
+     * @return the length of the valid records in the segment
+     * @throws IOException when the segment cannot be read
+     */
+    private long readSegment(Segment segment, Map<Long, Entry> pendingEntries) throws IOException {
+        ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(segment.path));
+        long validLength = 0;
+        while (contents.remaining() >= HEADER_BYTES) {
+            int length = contents.getInt();
+            int checksum = contents.getInt();
+            if (length <= 0 || length > contents.remaining()) {
+                break;
+            }
+            byte[] body = new byte[length];
+            contents.get(body);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            validLength = contents.position();
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            byte type = in.readByte();
+            long id = in.readLong();
+            this.nextId = Math.max(this.nextId, id + 1);
+            if (type == APPEND) {
+                String subscriptionId = readString(in);
+                String endpoint = readString(in);
+                int headerCount = in.readInt();
+                List<String> headers = new ArrayList<>(headerCount);
+                for (int i = 0; i < headerCount; i++) {
+                    headers.add(readString(in));
+                }
+                String payload = readString(in);
+                pendingEntries.put(id, new Entry(id, subscriptionId, endpoint, headers, payload));
+                Segment copiedFrom = this.pendingSegments.put(id, segment);
+                if (copiedFrom != null) {
+                    // Copied by compaction, which stopped before the older segment was deleted
+                    copiedFrom.pending--;
+                }
+                segment.appended++;
+                segment.pending++;
+            } else if (type == ACK) {
+                Segment appendedIn = this.pendingSegments.remove(id);
+                if (appendedIn != null) {
+                    appendedIn.pending--;
+                    pendingEntries.remove(id);
+                }
+            }
+        }
+
+        if (validLength < contents.capacity()) {
+            myLogger.warn("Outbox segment " + segment.path + " has a damaged record at " + validLength
+                + ", ignoring the rest of the segment");
+        }
+        return validLength;
+    }
+
+    /**
+     * Delete the oldest segments once every notification in them has been acknowledged,
+     * copying the few still pending to the active segment first. Segments are only
+     * deleted oldest first so an acknowledgement is never lost while the notification
+     * it acknowledges is still in the journal.
+     *
+     * @throws IOException when a segment cannot be read or deleted
+     */
+    private void compact() throws IOException {
+        while (this.segments.size() > 1) {
+            Segment oldest = this.segments.firstEntry().getValue();
+            if (oldest.pending > 0) {
+                if ((long) oldest.pending * RELOCATE_RATIO > oldest.appended) {
+                    return;
+                }
+                relocate(oldest);
+            }
+            Files.deleteIfExists(oldest.path);
+            this.segments.remove(oldest.number);
+        }
+    }
+
+    /**
+     * Copy the pending notifications of a segment to the active segment. The records
+     * are copied as they are, so they keep their ids and later acknowledgements apply
+     * to the copies.
+     *
+     * @param segment - the segment to copy from, not the active one
+     * @throws IOException when the segment cannot be read or the copies cannot be written
+     */
+    private void relocate(Segment segment) throws IOException {
+        // Only the valid records, which were checksummed when recovered or written
+        ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(segment.path), 0, (int) segment.size);
+        while (contents.remaining() >= HEADER_BYTES) {
+            int length = contents.getInt();
+            contents.getInt();
+            byte[] body = new byte[length];
+            contents.get(body);
+            if (body[0] != APPEND) {
+                continue;
+            }
+            long id = ByteBuffer.wrap(body, 1, 8).getLong();
+            if (this.pendingSegments.get(id) == segment) {
+                write(body);
+                segment.pending--;
+                this.activeSegment.appended++;
+                this.activeSegment.pending++;
+                this.pendingSegments.put(id, this.activeSegment);
+            }
+        }
+        if (segment.pending > 0) {
+            throw new IOException("Outbox segment " + segment.path + " is missing pending notifications");
+        }
+        myLogger.info("Outbox copied pending notifications out of " + segment.path);
+    }
+
+    /**
+     * Start a new segment and make it the active one.
+     *
+     * @throws IOException when the segment cannot be created
+     */
+    private void roll() throws IOException {
+        this.activeChannel.close();
+        long number = this.activeSegment.number + 1;
+        this.activeSegment = new Segment(number, segmentPath(number));
+        this.segments.put(number, this.activeSegment);
+        this.activeChannel = FileChannel.open(this.activeSegment.path, StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE);
+        compact();
+    }
+
+    /**
+     * Append a record to the active segment.
+     *
+     * @param body - the record body
+     * @throws IOException when the record cannot be written
+     */
+    private void write(byte[] body) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + body.length);
+        record.putInt(body.length);
+        record.putInt((int) crc.getValue());
+        record.put(body);
+        record.flip();
+        while (record.hasRemaining()) {
+            this.activeChannel.write(record);
+        }
+        if (this.syncOnWrite) {
+            this.activeChannel.force(false);
+        }
+        this.activeSegment.size += HEADER_BYTES + body.length;
+    }
+
+    private Path segmentPath(long number) {
+        return this.directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A segment file, the number of notifications appended to it and the number of
+     * them not yet acknowledged.
+     */
+    private static class Segment {
+        private final long number;
+        private final Path path;
+        private long size;
+        private int appended;
+        private int pending;
+
+        Segment(long number, Path path) {
+            this.number = number;
+            this.path = path;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package org.mitre.hapifhir.delivery;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Long lived HTTP client used to deliver notifications to rest-hook endpoints.
+ * Connections are pooled per route and kept alive between notifications so
+ * frequent subscribers do not pay for a new TCP and TLS handshake on every
+ * notification. Idle and expired connections are evicted in the background.
+ * Requests block the calling thread until the endpoint responds.
+ */
+public class WebhookClient implements IDeliveryClient {
+    public static final int DEFAULT_MAX_CONNECTIONS = 200;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 10000;
+    public static final long DEFAULT_KEEP_ALIVE_MS = 60000;
+    public static final long DEFAULT_MAX_IDLE_MS = 30000;
+
+    private final CloseableHttpClient httpClient;
+
+    /**
+     * Create a new webhook client with the default pool limits and timeouts.
+     */
+    public WebhookClient() {
+        this(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_CONNECT_TIMEOUT_MS,
+          DEFAULT_READ_TIMEOUT_MS, DEFAULT_KEEP_ALIVE_MS, DEFAULT_MAX_IDLE_MS);
+    }
+
+    /**
+     * Create a new webhook client.
+     *
+     * @param maxConnections - the maximum number of pooled connections across all endpoints
+     * @param maxConnectionsPerRoute - the maximum number of pooled connections to a single endpoint
+     * @param connectTimeoutMs - timeout establishing a connection, in milliseconds
+     * @param readTimeoutMs - timeout waiting for the endpoint to respond, in milliseconds
+     * @param keepAliveMs - how long to keep a connection alive when the endpoint does not say
+     * @param maxIdleMs - idle connections older than this are evicted from the pool
+     */
+    public WebhookClient(int maxConnections, int maxConnectionsPerRoute, int connectTimeoutMs,
+      int readTimeoutMs, long keepAliveMs, long maxIdleMs) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(connectTimeoutMs)
+            .setConnectionRequestTimeout(connectTimeoutMs)
+            .setSocketTimeout(readTimeoutMs)
+            .build();
+
+        // Honor the endpoint Keep-Alive header, otherwise fall back to the configured duration
+        ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? duration : keepAliveMs;
+        };
+
+        this.httpClient = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .setKeepAliveStrategy(keepAliveStrategy)
+            .evictExpiredConnections()
+            .evictIdleConnections(maxIdleMs, TimeUnit.MILLISECONDS)
+            .build();
+    }
+
+    /**
+     * POST a JSON payload to an endpoint. The response body is consumed so the
+     * connection is returned to the pool for reuse.
+     *
+     * @param endpoint - the url to post to
+     * @param headers - additional headers in the form "Name: value"
+     * @param payload - the JSON payload
+     * @return the HTTP status code of the response
+     * @throws IOException when the endpoint cannot be reached
+     */
+    public int post(String endpoint, List<String> headers, String payload) throws IOException {
+        return post(endpoint, headers, payload, 0);
+    }
+
+    /**
+     * POST a JSON payload to an endpoint with a timeout for this request only,
+     * which applies to connecting and to waiting for the response.
+     *
+     * @param endpoint - the url to post to
+     * @param headers - additional headers in the form "Name: value"
+     * @param payload - the JSON payload
+     * @param timeoutMs - the timeout in milliseconds, 0 to use the client timeouts
+     * @return the HTTP status code of the response
+     * @throws IOException when the endpoint cannot be reached or does not respond in time
+     */
+    public int post(String endpoint, List<String> headers, String payload, int timeoutMs) throws IOException {
+        try (CloseableHttpResponse response =
+            this.httpClient.execute(createPost(endpoint, headers, payload, timeoutMs))) {
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+
+    /**
+     * POST a JSON payload to an endpoint on the calling thread.
+     *
+     * @param endpoint - the url to post to
+     * @param headers - additional headers in the form "Name: value"
+     * @param payload - the JSON payload
+     * @param timeoutMs - the timeout in milliseconds, 0 to use the client timeouts
+     * @return future which is already completed with the HTTP status code of the response
+     */
+    @Override
+    public CompletableFuture<Integer> send(String endpoint, List<String> headers, String payload, int timeoutMs) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        try {
+            future.complete(post(endpoint, headers, payload, timeoutMs));
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Helper method to create the POST request of a notification.
+     *
+     * @param endpoint - the url to post to
+     * @param headers - additional headers in the form "Name: value"
+     * @param payload - the JSON payload
+     * @param timeoutMs - the timeout in milliseconds, 0 to use the client timeouts
+     * @return the request
+     */
+    static HttpPost createPost(String endpoint, List<String> headers, String payload, int timeoutMs) {
+        HttpPost httpPost = new HttpPost(endpoint);
+        if (timeoutMs > 0) {
+            httpPost.setConfig(RequestConfig.custom()
+                .setConnectTimeout(timeoutMs)
+                .setConnectionRequestTimeout(timeoutMs)
+                .setSocketTimeout(timeoutMs)
+                .build());
+        }
+        httpPost.setEntity(new StringEntity(payload, ContentType.APPLICATION_JSON));
+        for (String header : headers) {
+            String[] headerParts = header.split(": ", 2);
+            if (headerParts.length == 2) {
+                httpPost.addHeader(headerParts[0], headerParts[1]);
+            }
+        }
+        return httpPost;
+    }
+
+    /**
+     * Close the client and all pooled connections.
+     *
+     * @throws IOException when the connections cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        this.httpClient.close();
+    }
+}
@@ -0,0 +1,90 @@
+package org.mitre.hapifhir.metrics;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Default metrics listener which keeps a LatencyHistogram per stage and per
+ * delivery endpoint in memory. Recording does not allocate, apart from the
+ * first delivery to a new endpoint.
+ */
+public class HistogramMetricsListener implements IMetricsListener {
+    private final Map<Stage, LatencyHistogram> stageHistograms = new EnumMap<>(Stage.class);
+    private final Map<String, EndpointMetrics> endpointMetrics = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new listener with empty histograms.
+     */
+    public HistogramMetricsListener() {
+        for (Stage stage : Stage.values()) {
+            this.stageHistograms.put(stage, new LatencyHistogram());
+        }
+    }
+
+    @Override
+    public void recordStage(Stage stage, long nanos) {
+        this.stageHistograms.get(stage).record(nanos);
+    }
+
+    @Override
+    public void recordDelivery(String endpoint, long nanos, boolean success) {
+        EndpointMetrics metrics = this.endpointMetrics.get(endpoint);
+        if (metrics == null) {
+            metrics = this.endpointMetrics.computeIfAbsent(endpoint, k -> new EndpointMetrics());
+        }
+        metrics.latency.record(nanos);
+        if (!success) {
+            metrics.failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get the latency histogram of a stage.
+     *
+     * @param stage - the stage
+     * @return the histogram
+     */
+    public LatencyHistogram getStageHistogram(Stage stage) {
+        return this.stageHistograms.get(stage);
+    }
+
+    /**
+     * Get the endpoints notifications have been delivered to.
+     *
+     * @return unmodifiable view of the endpoint urls
+     */
+    public Set<String> getEndpoints() {
+        return Collections.unmodifiableSet(this.endpointMetrics.keySet());
+    }
+
+    /**
+     * Get the delivery latency histogram of an endpoint, covering every attempt.
+     *
+     * @param endpoint - the endpoint url
+     * @return the histogram, or null if nothing was delivered to the endpoint
+     */
+    public LatencyHistogram getDeliveryHistogram(String endpoint) {
+        EndpointMetrics metrics = this.endpointMetrics.get(endpoint);
+        return metrics == null ? null : metrics.latency;
+    }
+
+    /**
+     * Get the number of failed delivery attempts to an endpoint.
+     *
+     * @param endpoint - the endpoint url
+     * @return the failure count
+     */
+    public long getDeliveryFailures(String endpoint) {
+        EndpointMetrics metrics = this.endpointMetrics.get(endpoint);
+        return metrics == null ? 0 : metrics.failures.get();
+    }
+
+    private static class EndpointMetrics {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong failures = new AtomicLong();
+    }
+}
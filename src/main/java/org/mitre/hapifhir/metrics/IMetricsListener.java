@@ -0,0 +1,43 @@
+package org.mitre.hapifhir.metrics;
+
+/**
+ * IMetricsListener receives the latency of each stage of processing a write
+ * and of each notification delivery. Implementations are called on the request
+ * and delivery threads so they must be thread safe and cheap.
+ */
+public interface IMetricsListener {
+
+    public enum Stage {
+        TOPIC_MATCHING, SUBSCRIPTION_LOOKUP, CRITERIA_EVALUATION, NOTIFICATION_BUILD, SERIALIZATION;
+    }
+
+    /**
+     * A listener which ignores everything.
+     */
+    public static final IMetricsListener NOOP = new IMetricsListener() {
+        @Override
+        public void recordStage(Stage stage, long nanos) {
+        }
+
+        @Override
+        public void recordDelivery(String endpoint, long nanos, boolean success) {
+        }
+    };
+
+    /**
+     * Record the time spent in a stage.
+     *
+     * @param stage - the stage
+     * @param nanos - the elapsed time in nanoseconds
+     */
+    public void recordStage(Stage stage, long nanos);
+
+    /**
+     * Record a notification delivery attempt.
+     *
+     * @param endpoint - the endpoint the notification was posted to
+     * @param nanos - the elapsed time of the request in nanoseconds
+     * @param success - true if the endpoint accepted the notification
+     */
+    public void recordDelivery(String endpoint, long nanos, boolean success);
+}
@@ -0,0 +1,54 @@
+package org.mitre.hapifhir.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics listener which records to a Micrometer MeterRegistry, so the metrics
+ * can be exported to any monitoring system Micrometer supports. Stages are
+ * recorded to the subscription.stage timer tagged with the stage, and deliveries
+ * to the subscription.delivery timer tagged with the endpoint and outcome.
+ * Micrometer is not a dependency of this library, add micrometer-core to use it.
+ */
+public class MicrometerMetricsListener implements IMetricsListener {
+    private final MeterRegistry meterRegistry;
+    private final Map<Stage, Timer> stageTimers = new EnumMap<>(Stage.class);
+    private final Map<String, Timer> deliveryTimers = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new listener.
+     *
+     * @param meterRegistry - the registry to record to
+     */
+    public MicrometerMetricsListener(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        for (Stage stage : Stage.values()) {
+            this.stageTimers.put(stage, Timer.builder("subscription.stage")
+                .tag("stage", stage.name().toLowerCase())
+                .publishPercentileHistogram()
+                .register(meterRegistry));
+        }
+    }
+
+    @Override
+    public void recordStage(Stage stage, long nanos) {
+        this.stageTimers.get(stage).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordDelivery(String endpoint, long nanos, boolean success) {
+        String outcome = success ? "success" : "failure";
+        Timer timer = this.deliveryTimers.computeIfAbsent(endpoint + "|" + outcome,
+            k -> Timer.builder("subscription.delivery")
+                .tag("endpoint", endpoint)
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(this.meterRegistry));
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,34 @@
+package org.mitre.hapifhir.model;
+
+/**
+ * How much of the triggering resources a notification contains, from the
+ * backport-payload-content extension on Subscription.channel.payload.
+ */
+public enum PayloadContent {
+    EMPTY("empty"), ID_ONLY("id-only"), FULL_RESOURCE("full-resource");
+
+    private final String code;
+
+    PayloadContent(String code) {
+        this.code = code;
+    }
+
+    public String toCode() {
+        return this.code;
+    }
+
+    /**
+     * Get the payload content for a code.
+     *
+     * @param code - the code, e.g. "id-only"
+     * @return the matching payload content, or null if the code is unknown
+     */
+    public static PayloadContent fromCode(String code) {
+        for (PayloadContent payloadContent : values()) {
+            if (payloadContent.code.equals(code)) {
+                return payloadContent;
+            }
+        }
+        return null;
+    }
+}
@@ -9,7 +9,19 @@ public class ResourceTrigger {
         CREATE, UPDATE, DELETE;
     }    
 
+    /**
+     * The result to use for a criteria which cannot be evaluated because there is
+     * no previous version (create) or no current version (delete).
+     */
+    public enum CriteriaResult {
+        TEST_PASSES, TEST_FAILS;
+    }
+
     private String currentCriteria;
+    private String previousCriteria;
+    private CriteriaResult resultForCreate;
+    private CriteriaResult resultForDelete;
+    private boolean requireBoth;
     private ResourceType resourceType;
     private List<MethodCriteria> methodCriteria;
 
@@ -26,7 +38,8 @@ public class ResourceTrigger {
 
     /**
      * Create a new ResourceTrigger backbone element. Contains basic properties of the 
-     * SubscriptionTopic.resourceTrigger element.
+     * SubscriptionTopic.resourceTrigger element. The current criteria passes on
+     * delete, since there is no current version to test, so a delete trigger fires.
      * 
      * @param resourceType - allowed resource type (resourceTrigger.resourceType)
      * @param methodCriteria - create, update, delete (resourceTrigger.methodCriteria)
@@ -34,15 +47,57 @@ public class ResourceTrigger {
      */
     public ResourceTrigger(ResourceType resourceType, List<MethodCriteria> methodCriteria, 
       String currentCriteria) {
+        this(resourceType, methodCriteria, null, CriteriaResult.TEST_FAILS, currentCriteria,
+            CriteriaResult.TEST_PASSES, false);
+    }
+
+    /**
+     * Create a new ResourceTrigger backbone element with criteria on both the
+     * previous and the current version of the resource, e.g. previous
+     * "status=preliminary" and current "status=final" with requireBoth to trigger
+     * when an Observation becomes final.
+     * 
+     * @param resourceType - allowed resource type (resourceTrigger.resourceType)
+     * @param methodCriteria - create, update, delete (resourceTrigger.methodCriteria)
+     * @param previousCriteria - rule applied to the previous version (resourceTrigger.queryCriteria.previous)
+     * @param resultForCreate - previous result on create (resourceTrigger.queryCriteria.resultForCreate)
+     * @param currentCriteria - rule applied to the current version (resourceTrigger.queryCriteria.current)
+     * @param resultForDelete - current result on delete (resourceTrigger.queryCriteria.resultForDelete)
+     * @param requireBoth - true if both criteria must pass, false if either may
+     *     (resourceTrigger.queryCriteria.requireBoth)
+     */
+    public ResourceTrigger(ResourceType resourceType, List<MethodCriteria> methodCriteria,
+      String previousCriteria, CriteriaResult resultForCreate, String currentCriteria,
+      CriteriaResult resultForDelete, boolean requireBoth) {
         this.resourceType = resourceType;
         this.methodCriteria = methodCriteria;
+        this.previousCriteria = previousCriteria;
+        this.resultForCreate = resultForCreate;
         this.currentCriteria = currentCriteria;
+        this.resultForDelete = resultForDelete;
+        this.requireBoth = requireBoth;
     }
 
     public String getCurrentCriteria() {
         return this.currentCriteria;
     }
 
+    public String getPreviousCriteria() {
+        return this.previousCriteria;
+    }
+
+    public CriteriaResult getResultForCreate() {
+        return this.resultForCreate;
+    }
+
+    public CriteriaResult getResultForDelete() {
+        return this.resultForDelete;
+    }
+
+    public boolean isRequireBoth() {
+        return this.requireBoth;
+    }
+
     public ResourceType getResourceType() {
         return this.resourceType;
     }
@@ -1,5 +1,7 @@
 package org.mitre.hapifhir.utils;
 
+import ca.uhn.fhir.context.FhirContext;
+
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
@@ -15,12 +17,13 @@ import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.Subscription;
+import org.mitre.hapifhir.model.PayloadContent;
 import org.mitre.hapifhir.model.SubscriptionTopic.NotificationType;
 
 public class CreateNotification {
 
     /**
-     * Create an R5 Backport Notification.
+     * Create an R5 Backport Notification with the full resources.
      * 
      * @param subscription - the subscription to notify
      * @param resources - list of resources to include (empty or null for empty notification)
@@ -31,6 +34,23 @@ public class CreateNotification {
      */
     public static Bundle createResourceNotification(Subscription subscription, List<Resource> resources,
       String baseUrl, String topicUrl, NotificationType notificationType) {
+        return createResourceNotification(subscription, resources, baseUrl, topicUrl, notificationType,
+          PayloadContent.FULL_RESOURCE);
+    }
+
+    /**
+     * Create an R5 Backport Notification.
+     * 
+     * @param subscription - the subscription to notify
+     * @param resources - list of resources to include (empty or null for empty notification)
+     * @param baseUrl - the server base url
+     * @param topicUrl - the canonical url of the topic
+     * @param notificationType - R5 Subscription Notification Type Value Set
+     * @param payloadContent - whether to include the resources, only their fullUrl or nothing
+     * @return the notification Bundle
+     */
+    public static Bundle createResourceNotification(Subscription subscription, List<Resource> resources,
+      String baseUrl, String topicUrl, NotificationType notificationType, PayloadContent payloadContent) {
         Meta meta = new Meta();
         meta.addProfile("http://hl7.org/fhir/uv/subscriptions-backport/StructureDefinition/backport-subscription-notification");
 
@@ -54,17 +74,87 @@ public class CreateNotification {
         notificationBundle.setTimestamp(new Date());
         notificationBundle.addEntry(subscriptionStatusComponent);
 
-        // TODO: support id-only notifications
-        if (resources != null && !resources.isEmpty()) {
+        if (resources != null && payloadContent != PayloadContent.EMPTY) {
             for (Resource r : resources) {
                 BundleEntryComponent bec = new BundleEntryComponent();
-                bec.setResource(r);
-                bec.setFullUrl(baseUrl + "/" + r.fhirType() + "/" + r.getId());
+                if (payloadContent == PayloadContent.FULL_RESOURCE) {
+                    bec.setResource(r);
+                }
+                bec.setFullUrl(baseUrl + "/" + r.fhirType() + "/" + r.getIdElement().getIdPart());
                 notificationBundle.addEntry(bec);
             }
         }
 
         return notificationBundle;
     }
-}
 
+    /**
+     * Create an R5 Backport Notification encoded as JSON. The resource entries are
+     * encoded once per event and shared between subscriptions, so only the
+     * subscription status Parameters is encoded for each notification and the
+     * shared entries are spliced in after it. Pretty printed notifications are
+     * encoded in full. Id-only and empty notifications never encode the resources.
+     *
+     * @param ctx - the fhir context used to encode the notification
+     * @param subscription - the subscription to notify
+     * @param resources - list of encoded resources to include (empty or null for empty notification)
+     * @param baseUrl - the server base url
+     * @param topicUrl - the canonical url of the topic
+     * @param notificationType - R5 Subscription Notification Type Value Set
+     * @param payloadContent - whether to include the resources, only their fullUrl or nothing
+     * @param prettyPrint - true to pretty print the notification, false for compact output
+     * @return the notification Bundle as JSON
+     */
+    public static String encodeNotification(FhirContext ctx, Subscription subscription,
+      List<EncodedResource> resources, String baseUrl, String topicUrl, NotificationType notificationType,
+      PayloadContent payloadContent, boolean prettyPrint) {
+        Bundle notification = createResourceNotification(subscription, null, baseUrl, topicUrl, notificationType);
+        return encodeNotification(ctx, notification, resources, payloadContent, prettyPrint);
+    }
+
+    /**
+     * Encode a notification Bundle holding only the subscription status Parameters
+     * as JSON, adding the resource entries. Compact notifications splice in the
+     * shared encoded entries, pretty printed notifications are encoded in full.
+     *
+     * @param ctx - the fhir context used to encode the notification
+     * @param notification - the notification Bundle from createResourceNotification without resources
+     * @param resources - list of encoded resources to include (empty or null for empty notification)
+     * @param payloadContent - whether to include the resources, only their fullUrl or nothing
+     * @param prettyPrint - true to pretty print the notification, false for compact output
+     * @return the notification Bundle as JSON
+     */
+    public static String encodeNotification(FhirContext ctx, Bundle notification, List<EncodedResource> resources,
+      PayloadContent payloadContent, boolean prettyPrint) {
+        boolean hasEntries = resources != null && !resources.isEmpty() && payloadContent != PayloadContent.EMPTY;
+        if (prettyPrint) {
+            if (hasEntries) {
+                for (EncodedResource r : resources) {
+                    BundleEntryComponent bec = notification.addEntry();
+                    if (payloadContent == PayloadContent.FULL_RESOURCE) {
+                        bec.setResource(r.getResource());
+                    }
+                    bec.setFullUrl(r.getFullUrl());
+                }
+            }
+            return ctx.newJsonParser().setPrettyPrint(true).encodeResourceToString(notification);
+        }
+
+        String encodedShell = ctx.newJsonParser().encodeResourceToString(notification);
+        if (!hasEntries) {
+            return encodedShell;
+        }
+
+        // The status Parameters is the only entry and entry is the last element of the
+        // compact Bundle, so the shared entries go right before the closing "]}"
+        int entryEnd = encodedShell.length() - 2;
+        StringBuilder encoded = new StringBuilder(encodedShell.length() + 1024 * resources.size());
+        encoded.append(encodedShell, 0, entryEnd);
+        for (EncodedResource r : resources) {
+            encoded.append(',').append(payloadContent == PayloadContent.FULL_RESOURCE
+                ? r.getEntryJson(ctx) : r.getIdOnlyEntryJson());
+        }
+        encoded.append("]}");
+        return encoded.toString();
+    }
+}
@@ -0,0 +1,71 @@
+package org.mitre.hapifhir.utils;
+
+import ca.uhn.fhir.context.FhirContext;
+
+import org.hl7.fhir.r4.model.Resource;
+import org.json.JSONObject;
+
+/**
+ * A resource to include in notifications along with its notification Bundle
+ * entry encoded as JSON. The entry is encoded once, on first use, and then
+ * shared by every notification for the same event regardless of how many
+ * subscriptions are notified.
+ */
+public class EncodedResource {
+    private final Resource resource;
+    private final String fullUrl;
+    private volatile String entryJson;
+
+    /**
+     * Create a new encoded resource. Nothing is encoded until the entry is first requested.
+     *
+     * @param resource - the resource
+     * @param baseUrl - the server base url used for the entry fullUrl
+     */
+    public EncodedResource(Resource resource, String baseUrl) {
+        this.resource = resource;
+        this.fullUrl = baseUrl + "/" + resource.fhirType() + "/" + resource.getIdElement().getIdPart();
+    }
+
+    public Resource getResource() {
+        return this.resource;
+    }
+
+    public String getFullUrl() {
+        return this.fullUrl;
+    }
+
+    /**
+     * Get the id-only Bundle entry for the resource as compact JSON, i.e.
+     * {"fullUrl":"..."}. The resource itself is not encoded.
+     *
+     * @return the JSON entry
+     */
+    public String getIdOnlyEntryJson() {
+        return "{\"fullUrl\":" + JSONObject.quote(this.fullUrl) + "}";
+    }
+
+    /**
+     * Get the Bundle entry for the resource as compact JSON, i.e.
+     * {"fullUrl":"...","resource":{...}}, encoding it on first use.
+     *
+     * @param ctx - the fhir context used to encode the resource
+     * @return the JSON entry
+     */
+    public String getEntryJson(FhirContext ctx) {
+        String entry = this.entryJson;
+        if (entry == null) {
+            synchronized (this) {
+                entry = this.entryJson;
+                if (entry == null) {
+                    // Parsers are not thread safe so a new one is used each time
+                    String encodedResource = ctx.newJsonParser().encodeResourceToString(this.resource);
+                    entry = "{\"fullUrl\":" + JSONObject.quote(this.fullUrl)
+                        + ",\"resource\":" + encodedResource + "}";
+                    this.entryJson = entry;
+                }
+            }
+        }
+        return entry;
+    }
+}
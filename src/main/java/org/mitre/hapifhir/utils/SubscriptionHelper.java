@@ -1,25 +1,37 @@
 package org.mitre.hapifhir.utils;
 
+import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.api.RequestTypeEnum;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.Subscription;
 import org.hl7.fhir.r4.model.Subscription.SubscriptionStatus;
 import org.hl7.fhir.r4.model.UriType;
 import org.mitre.hapifhir.client.IServerClient;
+import org.mitre.hapifhir.model.PayloadContent;
 import org.mitre.hapifhir.model.ResourceTrigger.MethodCriteria;
 
 public class SubscriptionHelper {
 
     private static final String TOPIC_CANONICAL_EXT_URL = 
       "http://hl7.org/fhir/uv/subscriptions-backport/StructureDefinition/backport-topic-canonical";
+    private static final String MAX_COUNT_EXT_URL =
+      "http://hl7.org/fhir/uv/subscriptions-backport/StructureDefinition/backport-max-count";
+    private static final String HEARTBEAT_PERIOD_EXT_URL =
+      "http://hl7.org/fhir/uv/subscriptions-backport/StructureDefinition/backport-heartbeat-period";
+    private static final String PAYLOAD_CONTENT_EXT_URL =
+      "http://hl7.org/fhir/uv/subscriptions-backport/StructureDefinition/backport-payload-content";
     
     /**
      * Helper method to get the backport-topic-canonical url from the subscription.
@@ -52,6 +64,73 @@ public class SubscriptionHelper {
         return criteria;
     }
 
+    /**
+     * Helper method to get the backport-max-count from the subscription channel, the
+     * maximum number of events to include in a single notification.
+     *
+     * @param subscription - the subscription
+     * @return the max count if found, otherwise 0 meaning the subscription sets no limit
+     */
+    public static int getMaxCount(Subscription subscription) {
+        Extension maxCountExtension = subscription.getChannel().getExtensionByUrl(MAX_COUNT_EXT_URL);
+        if (maxCountExtension == null || !(maxCountExtension.getValue() instanceof IntegerType)) {
+            return 0;
+        }
+        Integer maxCount = ((IntegerType) maxCountExtension.getValue()).getValue();
+        return maxCount == null || maxCount < 1 ? 0 : maxCount;
+    }
+
+    /**
+     * Helper method to get the backport-heartbeat-period from the subscription channel, the
+     * interval at which to send heartbeats when no events have been sent.
+     *
+     * @param subscription - the subscription
+     * @return the heartbeat period in seconds if found, otherwise 0 meaning no heartbeats
+     */
+    public static int getHeartbeatPeriod(Subscription subscription) {
+        Extension heartbeatExtension = subscription.getChannel().getExtensionByUrl(HEARTBEAT_PERIOD_EXT_URL);
+        if (heartbeatExtension == null || !(heartbeatExtension.getValue() instanceof IntegerType)) {
+            return 0;
+        }
+        Integer heartbeatPeriod = ((IntegerType) heartbeatExtension.getValue()).getValue();
+        return heartbeatPeriod == null || heartbeatPeriod < 1 ? 0 : heartbeatPeriod;
+    }
+
+    /**
+     * Helper method to get the backport-payload-content from the subscription channel payload,
+     * how much of the triggering resources to include in notifications.
+     *
+     * @param subscription - the subscription
+     * @return the payload content if found and known, otherwise FULL_RESOURCE
+     */
+    public static PayloadContent getPayloadContent(Subscription subscription) {
+        if (!subscription.getChannel().hasPayloadElement()) {
+            return PayloadContent.FULL_RESOURCE;
+        }
+        Extension payloadContentExtension =
+            subscription.getChannel().getPayloadElement().getExtensionByUrl(PAYLOAD_CONTENT_EXT_URL);
+        if (payloadContentExtension == null || payloadContentExtension.getValue() == null) {
+            return PayloadContent.FULL_RESOURCE;
+        }
+        PayloadContent payloadContent =
+            PayloadContent.fromCode(payloadContentExtension.getValue().primitiveValue());
+        return payloadContent == null ? PayloadContent.FULL_RESOURCE : payloadContent;
+    }
+
+    /**
+     * Helper method to get the channel headers from the subscription.
+     *
+     * @param subscription - the subscription resource to get headers from
+     * @return list of header strings in the form "Name: value"
+     */
+    public static List<String> getHeaders(Subscription subscription) {
+        List<String> headers = new ArrayList<>();
+        for (StringType header : subscription.getChannel().getHeader()) {
+            headers.add(header.asStringValue());
+        }
+        return headers;
+    }
+
     /**
      * Helper method to determine if the requestType matches any of the topic methodCriteria.
      * 
@@ -64,7 +143,8 @@ public class SubscriptionHelper {
       IBaseResource theResource) {
         if (methodCriteria.contains(MethodCriteria.DELETE) && requestType.equals(RequestTypeEnum.DELETE)) {
             return true;
-        } else if (methodCriteria.contains(MethodCriteria.UPDATE) && requestType.equals(RequestTypeEnum.PUT)) {
+        } else if (methodCriteria.contains(MethodCriteria.UPDATE)
+            && (requestType.equals(RequestTypeEnum.PUT) || requestType.equals(RequestTypeEnum.PATCH))) {
             // According to the valueset an UPDATE is an update or create
             // https://build.fhir.org/valueset-interaction-trigger.html
             return true;
@@ -78,9 +158,39 @@ public class SubscriptionHelper {
         return false;
     }
 
+    /**
+     * Helper method to get the topic methodCriteria a request counts as. A POST is a
+     * create, a PUT is an update and also a create when it made the first version,
+     * and a PATCH is an update.
+     *
+     * @param requestType - the current request type
+     * @param theResource - the resource from the request, used to check if a PUT is a CREATE
+     * @return the set of matching methodCriteria, empty if the request is not a write
+     */
+    public static Set<MethodCriteria> getInteractions(RequestTypeEnum requestType, IBaseResource theResource) {
+        switch (requestType) {
+            case DELETE:
+                return EnumSet.of(MethodCriteria.DELETE);
+            case POST:
+                return EnumSet.of(MethodCriteria.CREATE);
+            case PUT:
+                // According to the valueset an UPDATE is an update or create
+                // https://build.fhir.org/valueset-interaction-trigger.html
+                if ("1".equals(theResource.getMeta().getVersionId())) {
+                    return EnumSet.of(MethodCriteria.CREATE, MethodCriteria.UPDATE);
+                }
+                return EnumSet.of(MethodCriteria.UPDATE);
+            case PATCH:
+                return EnumSet.of(MethodCriteria.UPDATE);
+            default:
+                return EnumSet.noneOf(MethodCriteria.class);
+        }
+    }
+
     /**
      * Helper method to determine if a resource matches any of the criteria. Uses 
      * search client to get by criteria and validate the resource is in the Bundle.
+     * All criteria are searched in a single batch.
      * 
      * @param criteria - list of criteria strings
      * @param theResource - the resource to check against
@@ -89,21 +199,55 @@ public class SubscriptionHelper {
      */
     public static boolean matchesCriteria(List<String> criteria, Resource theResource, 
       IServerClient serverClient) {
+        List<String> searchCriteria = new ArrayList<>(criteria.size());
         for (String criterion : criteria) {
-            String searchCriteria = criterion + "&_id=" + theResource.getIdElement().getIdPart();
-            Bundle searchBundle = serverClient.searchOnCriteria(searchCriteria);
-            for (BundleEntryComponent entry : searchBundle.getEntry()) {
-                Resource resource = entry.getResource();
-                if (resource.getIdElement().getIdPart().equals(theResource.getIdElement().getIdPart())
-                    && resource.fhirType().equals(theResource.fhirType())) {
-                    return true;
-                }
+            searchCriteria.add(getSearchCriteria(criterion, theResource));
+        }
+
+        for (Bundle searchBundle : serverClient.searchOnCriteria(searchCriteria)) {
+            if (containsResource(searchBundle, theResource)) {
+                return true;
             }
         }
 
         return false;
     }
 
+    /**
+     * Helper method to restrict criteria to a single resource so searching it on the
+     * server tells if the resource matches.
+     *
+     * @param criterion - the criteria string e.g. "Encounter?status=finished"
+     * @param theResource - the resource to check against
+     * @return the search criteria e.g. "Encounter?status=finished&amp;_id=123"
+     */
+    public static String getSearchCriteria(String criterion, Resource theResource) {
+        String separator = criterion.contains("?") ? "&" : "?";
+        return criterion + separator + "_id=" + theResource.getIdElement().getIdPart();
+    }
+
+    /**
+     * Helper method to determine if a search result contains the resource.
+     *
+     * @param searchBundle - the search bundle, null if the search failed
+     * @param theResource - the resource to look for
+     * @return true if the bundle has an entry with the type and id of the resource, false otherwise
+     */
+    public static boolean containsResource(Bundle searchBundle, Resource theResource) {
+        if (searchBundle == null) {
+            return false;
+        }
+        for (BundleEntryComponent entry : searchBundle.getEntry()) {
+            Resource resource = entry.getResource();
+            if (resource != null
+                && resource.getIdElement().getIdPart().equals(theResource.getIdElement().getIdPart())
+                && resource.fhirType().equals(theResource.fhirType())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Helper method to set the subscription status to error and save to the server.
      * 
@@ -112,6 +256,20 @@ public class SubscriptionHelper {
      */
     public static void setSubscriptionError(Subscription subscription, IServerClient serverClient) {
         subscription.setStatus(SubscriptionStatus.ERROR);
-        serverClient.updateResource(subscription);
+        updateSubscription(subscription, serverClient);
     } 
+
+    /**
+     * Helper method to save a subscription to the server and set its version to the
+     * one the server assigned, so the version published to other nodes is current.
+     *
+     * @param subscription - the Subscription resource to update
+     * @param serverClient - server client
+     */
+    public static void updateSubscription(Subscription subscription, IServerClient serverClient) {
+        MethodOutcome outcome = serverClient.updateResource(subscription);
+        if (outcome != null && outcome.getId() != null && outcome.getId().hasVersionIdPart()) {
+            subscription.getMeta().setVersionId(outcome.getId().getVersionIdPart());
+        }
+    }
 }
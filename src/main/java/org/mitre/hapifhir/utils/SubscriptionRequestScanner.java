@@ -0,0 +1,282 @@
+package org.mitre.hapifhir.utils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the status and channel type of a Subscription request body without
+ * parsing the whole resource. JSON is scanned by hand, skipping every value
+ * other than the ones needed, and XML is read with a streaming parser which
+ * stops as soon as both values are found.
+ */
+public class SubscriptionRequestScanner {
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
+    /**
+     * The status and channel type codes of a Subscription, either may be null if
+     * the element is missing.
+     */
+    public static class ScanResult {
+        private final String status;
+        private final String channelType;
+
+        ScanResult(String status, String channelType) {
+            this.status = status;
+            this.channelType = channelType;
+        }
+
+        public String getStatus() {
+            return this.status;
+        }
+
+        public String getChannelType() {
+            return this.channelType;
+        }
+    }
+
+    private SubscriptionRequestScanner() {
+    }
+
+    /**
+     * Helper method to determine if a request body is XML, from the content type
+     * or, if there is none, from the first character of the body.
+     *
+     * @param contentType - the Content-Type header of the request, may be null
+     * @param body - the request body
+     * @return true if the body is XML, false if it is JSON
+     */
+    public static boolean isXml(String contentType, byte[] body) {
+        if (contentType != null) {
+            return contentType.contains("xml");
+        }
+        for (byte b : body) {
+            if (!Character.isWhitespace(b)) {
+                return b == '<';
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read the status and channel type of a Subscription.
+     *
+     * @param body - the request body
+     * @param xml - true if the body is XML, false if it is JSON
+     * @return the scanned values, or null if the body is not a readable Subscription
+     */
+    public static ScanResult scan(byte[] body, boolean xml) {
+        try {
+            return xml ? scanXml(body) : new JsonScanner(new String(body, StandardCharsets.UTF_8)).scan();
+        } catch (XMLStreamException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static ScanResult scanXml(byte[] body) throws XMLStreamException {
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(new ByteArrayInputStream(body));
+        try {
+            String status = null;
+            String channelType = null;
+            boolean inChannel = false;
+            int depth = 0;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    String name = reader.getLocalName();
+                    if (depth == 1 && !name.equals("Subscription")) {
+                        return null;
+                    } else if (depth == 2 && name.equals("status")) {
+                        status = reader.getAttributeValue(null, "value");
+                    } else if (depth == 2 && name.equals("channel")) {
+                        inChannel = true;
+                    } else if (depth == 3 && inChannel && name.equals("type")) {
+                        channelType = reader.getAttributeValue(null, "value");
+                    }
+                    if (status != null && channelType != null) {
+                        break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (depth == 2) {
+                        inChannel = false;
+                    }
+                    depth--;
+                }
+            }
+            return new ScanResult(status, channelType);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // Request bodies are untrusted, never resolve entities
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /**
+     * Minimal JSON scanner which reads the top level "resourceType" and "status"
+     * and the "type" of the top level "channel" object, and skips everything else.
+     */
+    private static class JsonScanner {
+        private final String json;
+        private int pos;
+
+        JsonScanner(String json) {
+            this.json = json;
+        }
+
+        ScanResult scan() {
+            String resourceType = null;
+            String status = null;
+            String channelType = null;
+
+            expect('{');
+            if (!consume('}')) {
+                do {
+                    String name = readString();
+                    expect(':');
+                    if (name.equals("resourceType")) {
+                        resourceType = readString();
+                    } else if (name.equals("status")) {
+                        status = readString();
+                    } else if (name.equals("channel")) {
+                        channelType = scanChannel();
+                    } else {
+                        skipValue();
+                    }
+                } while (consume(','));
+                expect('}');
+            }
+
+            return "Subscription".equals(resourceType) ? new ScanResult(status, channelType) : null;
+        }
+
+        private String scanChannel() {
+            String type = null;
+            expect('{');
+            if (consume('}')) {
+                return null;
+            }
+            do {
+                String name = readString();
+                expect(':');
+                if (name.equals("type")) {
+                    type = readString();
+                } else {
+                    skipValue();
+                }
+            } while (consume(','));
+            expect('}');
+            return type;
+        }
+
+        private void skipValue() {
+            char c = peek();
+            if (c == '"') {
+                readString();
+            } else if (c == '{' || c == '[') {
+                char close = c == '{' ? '}' : ']';
+                this.pos++;
+                if (consume(close)) {
+                    return;
+                }
+                do {
+                    if (close == '}') {
+                        readString();
+                        expect(':');
+                    }
+                    skipValue();
+                } while (consume(','));
+                expect(close);
+            } else {
+                // Numbers, true, false and null
+                int start = this.pos;
+                while (this.pos < this.json.length() && ",}] \t\r\n".indexOf(this.json.charAt(this.pos)) < 0) {
+                    this.pos++;
+                }
+                if (this.pos == start) {
+                    throw new IllegalArgumentException("Expected a value at " + start);
+                }
+            }
+        }
+
+        private String readString() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (this.pos < this.json.length()) {
+                char c = this.json.charAt(this.pos++);
+                if (c == '"') {
+                    return value.toString();
+                } else if (c != '\\') {
+                    value.append(c);
+                } else if (this.pos < this.json.length()) {
+                    char escaped = this.json.charAt(this.pos++);
+                    switch (escaped) {
+                        case 'b':
+                            value.append('\b');
+                            break;
+                        case 'f':
+                            value.append('\f');
+                            break;
+                        case 'n':
+                            value.append('\n');
+                            break;
+                        case 'r':
+                            value.append('\r');
+                            break;
+                        case 't':
+                            value.append('\t');
+                            break;
+                        case 'u':
+                            if (this.pos + 4 > this.json.length()) {
+                                throw new IllegalArgumentException("Unterminated escape at " + this.pos);
+                            }
+                            value.append((char) Integer.parseInt(this.json.substring(this.pos, this.pos + 4), 16));
+                            this.pos += 4;
+                            break;
+                        default:
+                            value.append(escaped);
+                    }
+                }
+            }
+            throw new IllegalArgumentException("Unterminated string");
+        }
+
+        private char peek() {
+            skipWhitespace();
+            if (this.pos >= this.json.length()) {
+                throw new IllegalArgumentException("Unexpected end of JSON");
+            }
+            return this.json.charAt(this.pos);
+        }
+
+        private boolean consume(char c) {
+            if (peek() == c) {
+                this.pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!consume(c)) {
+                throw new IllegalArgumentException("Expected '" + c + "' at " + this.pos);
+            }
+        }
+
+        private void skipWhitespace() {
+            while (this.pos < this.json.length() && Character.isWhitespace(this.json.charAt(this.pos))) {
+                this.pos++;
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package org.mitre.hapifhir.utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.hl7.fhir.r4.model.ResourceType;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.mitre.hapifhir.model.ResourceTrigger;
+import org.mitre.hapifhir.model.ResourceTrigger.CriteriaResult;
+import org.mitre.hapifhir.model.ResourceTrigger.MethodCriteria;
+import org.mitre.hapifhir.model.SubscriptionTopic;
+
+/**
+ * Reads SubscriptionTopic definitions from JSON. The JSON is an R5
+ * SubscriptionTopic resource, an array of them or a Bundle of them. Since the
+ * R4 structures cannot parse R5 resources only the elements this library uses
+ * are read: id, url, name (or title) and each resourceTrigger's resource,
+ * supportedInteraction and queryCriteria.
+ */
+public class TopicLoader {
+    private static final String STRUCTURE_DEFINITION_PREFIX = "http://hl7.org/fhir/StructureDefinition/";
+
+    private TopicLoader() {
+    }
+
+    /**
+     * Read the topics from a JSON file.
+     *
+     * @param path - the file
+     * @return the topics in the file
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if the file is not valid topic JSON
+     */
+    public static List<SubscriptionTopic> load(Path path) throws IOException {
+        return parse(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read the topics from JSON.
+     *
+     * @param json - a SubscriptionTopic, an array of SubscriptionTopics or a Bundle of SubscriptionTopics
+     * @return the topics
+     * @throws IllegalArgumentException if the JSON is not valid topic JSON
+     */
+    public static List<SubscriptionTopic> parse(String json) {
+        List<SubscriptionTopic> subscriptionTopics = new ArrayList<>();
+        try {
+            Object value = new JSONTokener(json).nextValue();
+            boolean isBundle =
+                value instanceof JSONObject && "Bundle".equals(((JSONObject) value).optString("resourceType"));
+            if (value instanceof JSONArray) {
+                JSONArray array = (JSONArray) value;
+                for (int i = 0; i < array.length(); i++) {
+                    subscriptionTopics.add(parseTopic(array.getJSONObject(i)));
+                }
+            } else if (isBundle) {
+                JSONArray entries = ((JSONObject) value).optJSONArray("entry");
+                for (int i = 0; entries != null && i < entries.length(); i++) {
+                    JSONObject resource = entries.getJSONObject(i).optJSONObject("resource");
+                    if (resource != null && "SubscriptionTopic".equals(resource.optString("resourceType"))) {
+                        subscriptionTopics.add(parseTopic(resource));
+                    }
+                }
+            } else if (value instanceof JSONObject) {
+                subscriptionTopics.add(parseTopic((JSONObject) value));
+            } else {
+                throw new IllegalArgumentException("Expected a SubscriptionTopic, an array or a Bundle");
+            }
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Invalid SubscriptionTopic JSON: " + e.getMessage(), e);
+        }
+        return subscriptionTopics;
+    }
+
+    private static SubscriptionTopic parseTopic(JSONObject topic) {
+        String resourceType = topic.optString("resourceType", "SubscriptionTopic");
+        if (!resourceType.equals("SubscriptionTopic")) {
+            throw new IllegalArgumentException("Expected a SubscriptionTopic but found " + resourceType);
+        }
+        String url = topic.optString("url", null);
+        if (url == null) {
+            throw new IllegalArgumentException("SubscriptionTopic " + topic.optString("id") + " has no url");
+        }
+
+        List<ResourceTrigger> resourceTriggers = new ArrayList<>();
+        JSONArray triggers = topic.optJSONArray("resourceTrigger");
+        for (int i = 0; triggers != null && i < triggers.length(); i++) {
+            resourceTriggers.add(parseTrigger(url, triggers.getJSONObject(i)));
+        }
+        String name = topic.optString("name", topic.optString("title", null));
+        return new SubscriptionTopic(topic.optString("id", null), name, url, resourceTriggers);
+    }
+
+    private static ResourceTrigger parseTrigger(String topicUrl, JSONObject trigger) {
+        String resource = trigger.optString("resource", trigger.optString("resourceType", null));
+        if (resource == null) {
+            throw new IllegalArgumentException("resourceTrigger of " + topicUrl + " has no resource");
+        }
+        if (resource.startsWith(STRUCTURE_DEFINITION_PREFIX)) {
+            resource = resource.substring(STRUCTURE_DEFINITION_PREFIX.length());
+        }
+        ResourceType resourceType;
+        try {
+            resourceType = ResourceType.valueOf(resource);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("resourceTrigger of " + topicUrl + " has unknown resource "
+                + resource, e);
+        }
+
+        List<MethodCriteria> methodCriteria = new ArrayList<>();
+        JSONArray interactions = trigger.optJSONArray("supportedInteraction");
+        if (interactions == null) {
+            interactions = trigger.optJSONArray("methodCriteria");
+        }
+        for (int i = 0; interactions != null && i < interactions.length(); i++) {
+            methodCriteria.add(MethodCriteria.valueOf(interactions.getString(i).toUpperCase(Locale.ROOT)));
+        }
+
+        JSONObject queryCriteria = trigger.optJSONObject("queryCriteria");
+        if (queryCriteria == null) {
+            return new ResourceTrigger(resourceType, methodCriteria);
+        }
+        return new ResourceTrigger(resourceType, methodCriteria,
+            queryCriteria.optString("previous", null),
+            parseCriteriaResult(queryCriteria.optString("resultForCreate", null)),
+            queryCriteria.optString("current", null),
+            parseCriteriaResult(queryCriteria.optString("resultForDelete", null)),
+            queryCriteria.optBoolean("requireBoth", false));
+    }
+
+    /**
+     * Helper method to parse a criteria result code, e.g. "test-passes".
+     *
+     * @param code - the code, may be null
+     * @return the criteria result, TEST_FAILS if there is no code
+     */
+    private static CriteriaResult parseCriteriaResult(String code) {
+        if (code == null) {
+            return CriteriaResult.TEST_FAILS;
+        }
+        return CriteriaResult.valueOf(code.replace('-', '_').toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,165 @@
+package org.mitre.hapifhir.utils;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryResponseComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Resource;
+import org.mitre.hapifhir.model.ResourceTrigger.MethodCriteria;
+
+public class TransactionHelper {
+
+    /**
+     * A resource written by a transaction or batch entry and the topic
+     * methodCriteria the write counts as.
+     */
+    public static class TransactionEntry {
+        private final Resource resource;
+        private final Set<MethodCriteria> interactions;
+
+        public TransactionEntry(Resource resource, Set<MethodCriteria> interactions) {
+            this.resource = resource;
+            this.interactions = interactions;
+        }
+
+        public Resource getResource() {
+            return this.resource;
+        }
+
+        public Set<MethodCriteria> getInteractions() {
+            return this.interactions;
+        }
+    }
+
+    /**
+     * Helper method to determine if a bundle is the response to a transaction or batch.
+     *
+     * @param bundle - the bundle returned by the request
+     * @return true if the bundle is a transaction-response or batch-response, false otherwise
+     */
+    public static boolean isTransactionResponse(Bundle bundle) {
+        return bundle.getType() == BundleType.TRANSACTIONRESPONSE || bundle.getType() == BundleType.BATCHRESPONSE;
+    }
+
+    /**
+     * Helper method to determine if a transaction response entry is missing its resource,
+     * which is the case unless the client asked for the full representation.
+     *
+     * @param response - the transaction-response or batch-response bundle
+     * @return true if any successful write entry has no resource, false otherwise
+     */
+    public static boolean needsRequestBundle(Bundle response) {
+        for (BundleEntryComponent entry : response.getEntry()) {
+            if (entry.getResource() == null && isSuccess(entry.getResponse())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Expand a transaction-response or batch-response into the resources it wrote. Entries
+     * of the response correspond to the request entries in order, so when a response entry
+     * does not include the resource it is taken from the request entry with the server
+     * assigned id and version from the response location. Failed entries, reads and
+     * deletes are skipped, the deleted resources are found with getDeletedIds.
+     *
+     * @param response - the transaction-response or batch-response bundle
+     * @param request - the transaction or batch bundle which was posted, may be null
+     * @return list of the written resources and how they were written
+     */
+    public static List<TransactionEntry> expand(Bundle response, Bundle request) {
+        List<TransactionEntry> entries = new ArrayList<>();
+        for (int i = 0; i < response.getEntry().size(); i++) {
+            BundleEntryComponent responseEntry = response.getEntry().get(i);
+            BundleEntryResponseComponent entryResponse = responseEntry.getResponse();
+            if (!isSuccess(entryResponse)) {
+                continue;
+            }
+
+            BundleEntryComponent requestEntry = request != null && i < request.getEntry().size()
+                ? request.getEntry().get(i) : null;
+            HTTPVerb method = requestEntry != null && requestEntry.hasRequest()
+                ? requestEntry.getRequest().getMethod() : null;
+            if (method == HTTPVerb.DELETE || method == HTTPVerb.GET) {
+                continue;
+            } else if (method == null && !entryResponse.hasLocation()) {
+                // Without the request entry only writes can be recognized, by their location
+                continue;
+            }
+
+            Resource resource = responseEntry.getResource();
+            // The request entry of a patch is the patch, not the patched resource
+            if (resource == null && method != HTTPVerb.PATCH && requestEntry != null
+                && requestEntry.getResource() != null && entryResponse.hasLocation()) {
+                IdType location = new IdType(entryResponse.getLocation());
+                resource = requestEntry.getResource().copy();
+                resource.setIdElement(location.toUnqualifiedVersionless());
+                if (location.hasVersionIdPart()) {
+                    resource.getMeta().setVersionId(location.getVersionIdPart());
+                }
+            }
+            if (resource == null) {
+                continue;
+            }
+
+            Set<MethodCriteria> interactions;
+            if (entryResponse.getStatus().startsWith("201")) {
+                // According to the valueset an UPDATE is an update or create
+                interactions = method == HTTPVerb.PUT
+                    ? EnumSet.of(MethodCriteria.CREATE, MethodCriteria.UPDATE)
+                    : EnumSet.of(MethodCriteria.CREATE);
+            } else {
+                interactions = EnumSet.of(MethodCriteria.UPDATE);
+            }
+            entries.add(new TransactionEntry(resource, interactions));
+        }
+        return entries;
+    }
+
+    /**
+     * Get the ids of the resources deleted by a transaction or batch. Deletes are
+     * recognized by the request entry, since the response entry of a delete has
+     * neither a resource nor a location. Conditional deletes, whose url is a search,
+     * are skipped.
+     *
+     * @param response - the transaction-response or batch-response bundle
+     * @param request - the transaction or batch bundle which was posted, may be null
+     * @return list of the deleted resource ids, unqualified and versionless
+     */
+    public static List<IdType> getDeletedIds(Bundle response, Bundle request) {
+        List<IdType> ids = new ArrayList<>();
+        if (request == null) {
+            return ids;
+        }
+        int count = Math.min(response.getEntry().size(), request.getEntry().size());
+        for (int i = 0; i < count; i++) {
+            BundleEntryComponent requestEntry = request.getEntry().get(i);
+            if (!isSuccess(response.getEntry().get(i).getResponse()) || !requestEntry.hasRequest()
+                || requestEntry.getRequest().getMethod() != HTTPVerb.DELETE) {
+                continue;
+            }
+            String url = requestEntry.getRequest().getUrl();
+            if (url == null || url.contains("?")) {
+                continue;
+            }
+            IdType id = new IdType(url);
+            if (id.hasResourceType() && id.hasIdPart()) {
+                ids.add(id.toUnqualifiedVersionless());
+            }
+        }
+        return ids;
+    }
+
+    private static boolean isSuccess(BundleEntryResponseComponent entryResponse) {
+        return entryResponse != null && entryResponse.getStatus() != null
+            && entryResponse.getStatus().startsWith("2");
+    }
+}
@@ -0,0 +1,189 @@
+package org.mitre.hapifhir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Subscription;
+import org.hl7.fhir.r4.model.Subscription.SubscriptionChannelType;
+import org.hl7.fhir.r4.model.Subscription.SubscriptionStatus;
+import org.hl7.fhir.r4.model.UriType;
+import org.junit.After;
+import org.junit.Test;
+import org.mitre.hapifhir.client.IServerClient;
+import org.mitre.hapifhir.delivery.DeliveryPolicy;
+import org.mitre.hapifhir.delivery.IDeliveryClient;
+import org.mitre.hapifhir.delivery.NotificationDispatcher;
+
+public class SubscriptionInterceptorTest {
+    private static final long TIMEOUT_SECONDS = 5;
+    private static final String ENDPOINT = "http://example.org/hook";
+    private static final String TOPIC_CANONICAL_EXT_URL =
+        "http://hl7.org/fhir/uv/subscriptions-backport/StructureDefinition/backport-topic-canonical";
+
+    private final BlockingQueue<Subscription> updates = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> sentPayloads = new LinkedBlockingQueue<>();
+    private volatile int responseStatus = 200;
+    private volatile Thread sendingThread;
+    private SubscriptionInterceptor interceptor;
+
+    /**
+     * Stop the interceptor of the test.
+     */
+    @After
+    public void tearDown() {
+        if (this.interceptor != null) {
+            this.interceptor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAcceptedHandshakeActivatesSubscription() throws InterruptedException {
+        createInterceptor();
+        this.interceptor.outgoingResponse(request(), requestedSubscription(ENDPOINT));
+
+        String payload = this.sentPayloads.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(payload);
+        assertTrue(payload.contains("handshake"));
+        // The handshake is sent from a worker, never from the request thread
+        assertNotEquals(Thread.currentThread(), this.sendingThread);
+
+        Subscription saved = this.updates.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(SubscriptionStatus.ACTIVE, saved.getStatus());
+        // Registered with the version the server assigned once the result is saved
+        Subscription registered = awaitRegistered("sub1");
+        assertNotNull(registered);
+        assertEquals("2", registered.getMeta().getVersionId());
+    }
+
+    @Test
+    public void testFailedHandshakeSetsError() throws InterruptedException {
+        this.responseStatus = 500;
+        createInterceptor();
+        this.interceptor.outgoingResponse(request(), requestedSubscription(ENDPOINT));
+
+        Subscription saved = this.updates.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(SubscriptionStatus.ERROR, saved.getStatus());
+        // Only one attempt since the policy does not retry
+        assertEquals(1, this.sentPayloads.size());
+        assertNull(this.interceptor.getSubscriptionRegistry().get("sub1"));
+    }
+
+    @Test
+    public void testRejectedHandshakeSetsError() throws InterruptedException {
+        this.responseStatus = 404;
+        createInterceptor();
+        this.interceptor.outgoingResponse(request(), requestedSubscription(ENDPOINT));
+
+        Subscription saved = this.updates.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(SubscriptionStatus.ERROR, saved.getStatus());
+        assertNull(this.interceptor.getSubscriptionRegistry().get("sub1"));
+    }
+
+    @Test
+    public void testHandshakeWithoutEndpointSetsError() throws InterruptedException {
+        createInterceptor();
+        this.interceptor.outgoingResponse(request(), requestedSubscription(null));
+
+        Subscription saved = this.updates.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(SubscriptionStatus.ERROR, saved.getStatus());
+        assertTrue(this.sentPayloads.isEmpty());
+    }
+
+    @Test
+    public void testActiveSubscriptionIsNotHandshaked() throws InterruptedException {
+        createInterceptor();
+        Subscription subscription = requestedSubscription(ENDPOINT);
+        subscription.setStatus(SubscriptionStatus.ACTIVE);
+        this.interceptor.outgoingResponse(request(), subscription);
+
+        assertNotNull(this.interceptor.getSubscriptionRegistry().get("sub1"));
+        assertNull(this.sentPayloads.poll(200, TimeUnit.MILLISECONDS));
+        assertTrue(this.updates.isEmpty());
+    }
+
+    @Test
+    public void testHandshakeDisabled() throws InterruptedException {
+        createInterceptor();
+        this.interceptor.setHandshakeEnabled(false);
+        this.interceptor.outgoingResponse(request(), requestedSubscription(ENDPOINT));
+
+        assertNull(this.sentPayloads.poll(200, TimeUnit.MILLISECONDS));
+        assertTrue(this.updates.isEmpty());
+    }
+
+    private void createInterceptor() {
+        IServerClient serverClient = new IServerClient() {
+            @Override
+            public Bundle searchOnCriteria(String criteria) {
+                return new Bundle();
+            }
+
+            @Override
+            public MethodOutcome updateResource(IBaseResource resource) {
+                updates.add(((Subscription) resource).copy());
+                return new MethodOutcome(new IdType("Subscription", "sub1", "2"));
+            }
+        };
+        IDeliveryClient deliveryClient = new IDeliveryClient() {
+            @Override
+            public CompletableFuture<Integer> send(String endpoint, List<String> headers, String payload,
+              int timeoutMs) {
+                sendingThread = Thread.currentThread();
+                sentPayloads.add(payload);
+                return CompletableFuture.completedFuture(responseStatus);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        this.interceptor = new SubscriptionInterceptor("http://example.org/fhir", FhirContext.forR4(), serverClient,
+            Collections.emptyList(), new NotificationDispatcher(), deliveryClient,
+            new DeliveryPolicy(0, 0, 0, 1, 5, 0));
+    }
+
+    private Subscription awaitRegistered(String subscriptionId) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        Subscription subscription = this.interceptor.getSubscriptionRegistry().get(subscriptionId);
+        while (subscription == null && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+            subscription = this.interceptor.getSubscriptionRegistry().get(subscriptionId);
+        }
+        return subscription;
+    }
+
+    private static ServletRequestDetails request() {
+        ServletRequestDetails requestDetails = new ServletRequestDetails(null);
+        requestDetails.setRequestType(RequestTypeEnum.POST);
+        requestDetails.setResourceName("Subscription");
+        return requestDetails;
+    }
+
+    private static Subscription requestedSubscription(String endpoint) {
+        Subscription subscription = new Subscription();
+        subscription.setId("Subscription/sub1/_history/1");
+        subscription.setStatus(SubscriptionStatus.REQUESTED);
+        subscription.setCriteria("Observation?status=final");
+        subscription.addExtension(TOPIC_CANONICAL_EXT_URL, new UriType("http://example.org/topic/final"));
+        subscription.getChannel().setType(SubscriptionChannelType.RESTHOOK).setEndpoint(endpoint);
+        return subscription;
+    }
+}
@@ -0,0 +1,119 @@
+package org.mitre.hapifhir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mitre.hapifhir.TopicRegistry.TopicSnapshot;
+
+public class TopicFileWatcherTest {
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final long DEBOUNCE_MS = 50;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+    private TopicRegistry registry;
+    private TopicFileWatcher watcher;
+    private final BlockingQueue<TopicSnapshot> changes = new LinkedBlockingQueue<>();
+
+    /**
+     * Create an empty registry which records its changes.
+     */
+    @Before
+    public void setUp() {
+        this.path = this.folder.getRoot().toPath().resolve("topics.json");
+        this.registry = new TopicRegistry(Collections.emptyList());
+        this.registry.addListener(this.changes::add);
+    }
+
+    /**
+     * Stop watching the file of the test.
+     *
+     * @throws IOException when the watcher cannot be closed
+     */
+    @After
+    public void tearDown() throws IOException {
+        if (this.watcher != null) {
+            this.watcher.close();
+        }
+    }
+
+    @Test
+    public void testLoadsFileOnCreation() throws Exception {
+        write(topicJson("encounter-start", "Encounter"));
+        this.watcher = new TopicFileWatcher(this.path, this.registry, DEBOUNCE_MS);
+
+        assertEquals(1, this.registry.getSnapshot().getSubscriptionTopics().size());
+        assertEquals("http://example.org/topic/encounter-start",
+            this.registry.getSnapshot().getSubscriptionTopics().get(0).getTopicUrl());
+    }
+
+    @Test
+    public void testReloadsChangedFile() throws Exception {
+        write(topicJson("encounter-start", "Encounter"));
+        this.watcher = new TopicFileWatcher(this.path, this.registry, DEBOUNCE_MS);
+        this.changes.clear();
+
+        write("[" + topicJson("encounter-start", "Encounter") + ", " + topicJson("new-lab", "Observation") + "]");
+
+        TopicSnapshot snapshot = this.changes.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(snapshot);
+        assertEquals(2, snapshot.getSubscriptionTopics().size());
+        assertSame(snapshot, this.registry.getSnapshot());
+    }
+
+    @Test
+    public void testInvalidFileKeepsTopics() throws Exception {
+        write(topicJson("encounter-start", "Encounter"));
+        this.watcher = new TopicFileWatcher(this.path, this.registry, DEBOUNCE_MS);
+        TopicSnapshot loaded = this.registry.getSnapshot();
+        this.changes.clear();
+
+        write("{\"resourceType\": \"SubscriptionTopic\", ");
+        assertNull(this.changes.poll(DEBOUNCE_MS * 10, TimeUnit.MILLISECONDS));
+        assertSame(loaded, this.registry.getSnapshot());
+
+        // The watcher keeps going after a failed load
+        write(topicJson("new-lab", "Observation"));
+        TopicSnapshot snapshot = this.changes.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(snapshot);
+        assertEquals("http://example.org/topic/new-lab", snapshot.getSubscriptionTopics().get(0).getTopicUrl());
+    }
+
+    @Test
+    public void testInvalidFileOnCreationKeepsTopics() throws Exception {
+        write("not json");
+        this.watcher = new TopicFileWatcher(this.path, this.registry, DEBOUNCE_MS);
+
+        assertEquals(0, this.registry.getSnapshot().getSubscriptionTopics().size());
+        assertNull(this.changes.poll());
+    }
+
+    private void write(String json) throws IOException {
+        Files.write(this.path, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String topicJson(String name, String resource) {
+        return "{\"resourceType\": \"SubscriptionTopic\", \"id\": \"" + name + "\", \"name\": \"" + name + "\", "
+            + "\"url\": \"http://example.org/topic/" + name + "\", "
+            + "\"resourceTrigger\": [{\"resource\": \"" + resource + "\", "
+            + "\"supportedInteraction\": [\"create\"]}]}";
+    }
+}
@@ -0,0 +1,102 @@
+package org.mitre.hapifhir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.ResourceType;
+import org.junit.Test;
+import org.mitre.hapifhir.TopicRegistry.TopicSnapshot;
+import org.mitre.hapifhir.model.ResourceTrigger;
+import org.mitre.hapifhir.model.ResourceTrigger.MethodCriteria;
+import org.mitre.hapifhir.model.SubscriptionTopic;
+
+public class TopicRegistryTest {
+
+    @Test
+    public void testSetTopicsSwapsSnapshot() {
+        TopicRegistry registry = new TopicRegistry(Collections.singletonList(topic("a", "status=final")));
+        List<TopicSnapshot> notified = new ArrayList<>();
+        registry.addListener(notified::add);
+        TopicSnapshot before = registry.getSnapshot();
+
+        assertTrue(registry.setTopics(Arrays.asList(topic("a", "status=final"), topic("b", null))));
+
+        TopicSnapshot after = registry.getSnapshot();
+        assertEquals(1, notified.size());
+        assertSame(after, notified.get(0));
+        assertEquals(2, after.getSubscriptionTopics().size());
+        assertTrue(after.getTriggerDispatchTable().hasTriggers(ResourceType.Observation));
+        // A reader holding the old snapshot keeps a consistent view
+        assertEquals(1, before.getSubscriptionTopics().size());
+    }
+
+    @Test
+    public void testEqualTopicsChangeNothing() {
+        TopicRegistry registry = new TopicRegistry(Collections.singletonList(topic("a", "status=final")));
+        List<TopicSnapshot> notified = new ArrayList<>();
+        registry.addListener(notified::add);
+        TopicSnapshot before = registry.getSnapshot();
+
+        assertFalse(registry.setTopics(Collections.singletonList(topic("a", "status=final"))));
+        assertSame(before, registry.getSnapshot());
+        assertTrue(notified.isEmpty());
+
+        // A changed trigger is a change
+        assertTrue(registry.setTopics(Collections.singletonList(topic("a", "status=amended"))));
+        assertEquals(1, notified.size());
+    }
+
+    @Test
+    public void testReloadFromSource() {
+        TopicRegistry registry = new TopicRegistry(Collections.emptyList());
+        assertFalse(registry.reload());
+
+        List<SubscriptionTopic> topics = new ArrayList<>();
+        registry.setSource(() -> topics);
+        topics.add(topic("a", null));
+        assertTrue(registry.reload());
+        assertEquals(1, registry.getSnapshot().getSubscriptionTopics().size());
+        assertFalse(registry.reload());
+    }
+
+    @Test
+    public void testFailedReloadKeepsTopics() {
+        TopicRegistry registry = new TopicRegistry(Collections.singletonList(topic("a", null)));
+        TopicSnapshot before = registry.getSnapshot();
+        registry.setSource(() -> {
+            throw new IllegalArgumentException("Invalid SubscriptionTopic JSON");
+        });
+
+        assertFalse(registry.reload());
+        assertSame(before, registry.getSnapshot());
+    }
+
+    @Test
+    public void testFailingListenerDoesNotStopOthers() {
+        TopicRegistry registry = new TopicRegistry(Collections.emptyList());
+        List<TopicSnapshot> notified = new ArrayList<>();
+        registry.addListener(snapshot -> {
+            throw new IllegalStateException("listener failed");
+        });
+        registry.addListener(notified::add);
+
+        assertTrue(registry.setTopics(Collections.singletonList(topic("a", null))));
+        assertEquals(1, notified.size());
+    }
+
+    static SubscriptionTopic topic(String name, String currentCriteria) {
+        ResourceTrigger trigger = currentCriteria == null
+            ? new ResourceTrigger(ResourceType.Observation, Collections.singletonList(MethodCriteria.CREATE))
+            : new ResourceTrigger(ResourceType.Observation, Collections.singletonList(MethodCriteria.UPDATE),
+                currentCriteria);
+        return new SubscriptionTopic(name, name, "http://example.org/topic/" + name,
+            Collections.singletonList(trigger));
+    }
+}
@@ -0,0 +1,203 @@
+package org.mitre.hapifhir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Observation.ObservationStatus;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitre.hapifhir.client.IServerClient;
+import org.mitre.hapifhir.criteria.CriteriaEngine;
+import org.mitre.hapifhir.model.ResourceTrigger;
+import org.mitre.hapifhir.model.ResourceTrigger.CriteriaResult;
+import org.mitre.hapifhir.model.ResourceTrigger.MethodCriteria;
+import org.mitre.hapifhir.model.SubscriptionTopic;
+
+public class TriggerDispatchTableTest {
+    private static final Set<MethodCriteria> CREATE = EnumSet.of(MethodCriteria.CREATE);
+    private static final Set<MethodCriteria> UPDATE = EnumSet.of(MethodCriteria.UPDATE);
+    private static final Set<MethodCriteria> DELETE = EnumSet.of(MethodCriteria.DELETE);
+
+    private CriteriaEngine criteriaEngine;
+    private AtomicInteger previousReads;
+
+    /**
+     * Create a criteria engine which must evaluate every criteria in process.
+     */
+    @Before
+    public void setUp() {
+        this.previousReads = new AtomicInteger();
+        this.criteriaEngine = new CriteriaEngine(FhirContext.forR4(), new IServerClient() {
+            @Override
+            public Bundle searchOnCriteria(String criteria) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public MethodOutcome updateResource(IBaseResource resource) {
+                throw new UnsupportedOperationException();
+            }
+        });
+    }
+
+    @Test
+    public void testRequireBothOnUpdate() {
+        TriggerDispatchTable table = table(true, CriteriaResult.TEST_FAILS, CriteriaResult.TEST_FAILS);
+
+        assertTrue(matches(table, UPDATE, observation(ObservationStatus.FINAL),
+            observation(ObservationStatus.PRELIMINARY)));
+        assertFalse(matches(table, UPDATE, observation(ObservationStatus.FINAL),
+            observation(ObservationStatus.FINAL)));
+        assertEquals(2, this.previousReads.get());
+
+        // A failing current criteria decides without the previous version
+        assertFalse(matches(table, UPDATE, observation(ObservationStatus.PRELIMINARY),
+            observation(ObservationStatus.PRELIMINARY)));
+        assertEquals(2, this.previousReads.get());
+    }
+
+    @Test
+    public void testEitherOnUpdate() {
+        TriggerDispatchTable table = table(false, CriteriaResult.TEST_FAILS, CriteriaResult.TEST_FAILS);
+
+        // A passing current criteria decides without the previous version
+        assertTrue(matches(table, UPDATE, observation(ObservationStatus.FINAL),
+            observation(ObservationStatus.AMENDED)));
+        assertEquals(0, this.previousReads.get());
+
+        assertTrue(matches(table, UPDATE, observation(ObservationStatus.AMENDED),
+            observation(ObservationStatus.PRELIMINARY)));
+        assertFalse(matches(table, UPDATE, observation(ObservationStatus.AMENDED),
+            observation(ObservationStatus.AMENDED)));
+        assertEquals(2, this.previousReads.get());
+    }
+
+    @Test
+    public void testRequireBothOnCreate() {
+        Observation created = observation(ObservationStatus.FINAL);
+
+        assertFalse(matches(table(true, CriteriaResult.TEST_FAILS, CriteriaResult.TEST_FAILS), CREATE, created,
+            null));
+        assertTrue(matches(table(true, CriteriaResult.TEST_PASSES, CriteriaResult.TEST_FAILS), CREATE, created,
+            null));
+        assertFalse(matches(table(true, CriteriaResult.TEST_PASSES, CriteriaResult.TEST_FAILS), CREATE,
+            observation(ObservationStatus.AMENDED), null));
+        // There is no previous version to read on create
+        assertEquals(0, this.previousReads.get());
+    }
+
+    @Test
+    public void testEitherOnCreate() {
+        Observation created = observation(ObservationStatus.AMENDED);
+
+        assertFalse(matches(table(false, CriteriaResult.TEST_FAILS, CriteriaResult.TEST_FAILS), CREATE, created,
+            null));
+        assertTrue(matches(table(false, CriteriaResult.TEST_PASSES, CriteriaResult.TEST_FAILS), CREATE, created,
+            null));
+        assertTrue(matches(table(false, CriteriaResult.TEST_FAILS, CriteriaResult.TEST_FAILS), CREATE,
+            observation(ObservationStatus.FINAL), null));
+        assertEquals(0, this.previousReads.get());
+    }
+
+    @Test
+    public void testRequireBothOnDelete() {
+        // On delete the deleted version is the previous version
+        Observation deleted = observation(ObservationStatus.PRELIMINARY);
+
+        assertTrue(matches(table(true, CriteriaResult.TEST_FAILS, CriteriaResult.TEST_PASSES), DELETE, deleted,
+            null));
+        assertFalse(matches(table(true, CriteriaResult.TEST_FAILS, CriteriaResult.TEST_PASSES), DELETE,
+            observation(ObservationStatus.FINAL), null));
+        assertFalse(matches(table(true, CriteriaResult.TEST_FAILS, CriteriaResult.TEST_FAILS), DELETE, deleted,
+            null));
+        assertEquals(0, this.previousReads.get());
+    }
+
+    @Test
+    public void testEitherOnDelete() {
+        Observation deleted = observation(ObservationStatus.PRELIMINARY);
+
+        assertTrue(matches(table(false, CriteriaResult.TEST_FAILS, CriteriaResult.TEST_FAILS), DELETE, deleted,
+            null));
+        assertFalse(matches(table(false, CriteriaResult.TEST_FAILS, CriteriaResult.TEST_FAILS), DELETE,
+            observation(ObservationStatus.AMENDED), null));
+        assertTrue(matches(table(false, CriteriaResult.TEST_FAILS, CriteriaResult.TEST_PASSES), DELETE,
+            observation(ObservationStatus.AMENDED), null));
+        assertEquals(0, this.previousReads.get());
+    }
+
+    @Test
+    public void testCurrentCriteriaOnly() {
+        ResourceTrigger trigger = new ResourceTrigger(ResourceType.Observation,
+            Arrays.asList(MethodCriteria.CREATE, MethodCriteria.UPDATE), "status=final");
+        TriggerDispatchTable table = new TriggerDispatchTable(Collections.singletonList(
+            new SubscriptionTopic("final", "Final", "http://example.org/topic/final",
+                Collections.singletonList(trigger))));
+
+        assertTrue(matches(table, UPDATE, observation(ObservationStatus.FINAL), null));
+        assertFalse(matches(table, UPDATE, observation(ObservationStatus.PRELIMINARY), null));
+        assertFalse(table.needsPreviousVersion(ResourceType.Observation));
+        assertEquals(0, this.previousReads.get());
+    }
+
+    @Test
+    public void testCurrentCriteriaOnlyFiresOnDelete() {
+        ResourceTrigger trigger = new ResourceTrigger(ResourceType.Observation,
+            Collections.singletonList(MethodCriteria.DELETE), "status=final");
+        TriggerDispatchTable table = new TriggerDispatchTable(Collections.singletonList(
+            new SubscriptionTopic("deleted", "Deleted", "http://example.org/topic/deleted",
+                Collections.singletonList(trigger))));
+
+        assertTrue(table.needsPreviousVersion(ResourceType.Observation));
+        assertTrue(matches(table, DELETE, observation(ObservationStatus.PRELIMINARY), null));
+    }
+
+    /**
+     * Helper method to create a table with a topic which triggers when an Observation
+     * becomes final, i.e. previous status preliminary and current status final.
+     *
+     * @param requireBoth - true if both criteria must pass, false if either may
+     * @param resultForCreate - the previous result on create
+     * @param resultForDelete - the current result on delete
+     * @return the dispatch table
+     */
+    private static TriggerDispatchTable table(boolean requireBoth, CriteriaResult resultForCreate,
+      CriteriaResult resultForDelete) {
+        ResourceTrigger trigger = new ResourceTrigger(ResourceType.Observation,
+            Arrays.asList(MethodCriteria.CREATE, MethodCriteria.UPDATE, MethodCriteria.DELETE),
+            "status=preliminary", resultForCreate, "status=final", resultForDelete, requireBoth);
+        return new TriggerDispatchTable(Collections.singletonList(
+            new SubscriptionTopic("became-final", "Became final", "http://example.org/topic/became-final",
+                Collections.singletonList(trigger))));
+    }
+
+    private boolean matches(TriggerDispatchTable table, Set<MethodCriteria> interactions, Resource resource,
+      Resource previous) {
+        return !table.match(interactions, resource, () -> {
+            this.previousReads.incrementAndGet();
+            return previous;
+        }, this.criteriaEngine).isEmpty();
+    }
+
+    private static Observation observation(ObservationStatus status) {
+        Observation observation = new Observation();
+        observation.setId("obs1");
+        observation.setStatus(status);
+        return observation;
+    }
+}
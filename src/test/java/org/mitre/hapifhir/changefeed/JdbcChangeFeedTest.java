@@ -0,0 +1,330 @@
+package org.mitre.hapifhir.changefeed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitre.hapifhir.changefeed.SubscriptionChange.ChangeType;
+
+public class JdbcChangeFeedTest {
+    private static final long TIMEOUT_SECONDS = 5;
+    private static final long POLL_INTERVAL_MS = 10;
+
+    private FakeTable table;
+    private JdbcChangeFeed feed;
+    private final BlockingQueue<SubscriptionChange> received = new LinkedBlockingQueue<>();
+
+    /**
+     * Create the stub database the feed reads from.
+     */
+    @Before
+    public void setUp() {
+        this.table = new FakeTable();
+    }
+
+    /**
+     * Stop polling the feed of the test.
+     */
+    @After
+    public void tearDown() {
+        if (this.feed != null) {
+            this.feed.close();
+        }
+    }
+
+    @Test
+    public void testPublishedChangesAreDelivered() throws Exception {
+        createFeed(TimeUnit.HOURS.toMillis(1));
+
+        this.feed.publish(new SubscriptionChange("node1", ChangeType.SUBSCRIPTION_UPDATED, "sub1", "{}"));
+        this.feed.publish(new SubscriptionChange("node1", ChangeType.SUBSCRIPTION_DELETED, "sub2", null));
+
+        SubscriptionChange first = this.received.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(first);
+        assertEquals("node1", first.getNodeId());
+        assertEquals(ChangeType.SUBSCRIPTION_UPDATED, first.getType());
+        assertEquals("sub1", first.getResourceId());
+        assertEquals("{}", first.getPayload());
+        SubscriptionChange second = this.received.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals("sub2", second.getResourceId());
+
+        // Every change is delivered once even though recent rows are read again
+        awaitPolls(3);
+        assertTrue(this.received.isEmpty());
+    }
+
+    @Test
+    public void testChangesBeforeCreationAreSkipped() throws Exception {
+        this.table.insert(ChangeType.SUBSCRIPTION_UPDATED.name(), "old", System.currentTimeMillis(), true);
+        createFeed(TimeUnit.HOURS.toMillis(1));
+
+        awaitPolls(3);
+        assertTrue(this.received.isEmpty());
+    }
+
+    @Test
+    public void testLateCommitIsDeliveredOnce() throws Exception {
+        createFeed(TimeUnit.HOURS.toMillis(1));
+        long now = System.currentTimeMillis();
+        long late = this.table.insert(ChangeType.SUBSCRIPTION_UPDATED.name(), "late", now, false);
+        this.table.insert(ChangeType.SUBSCRIPTION_UPDATED.name(), "early", now, true);
+
+        assertEquals("early", this.received.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS).getResourceId());
+        awaitPolls(2);
+
+        // The row with the lower sequence commits after a later one was read
+        this.table.commit(late);
+        assertEquals("late", this.received.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS).getResourceId());
+        awaitPolls(3);
+        assertTrue(this.received.isEmpty());
+    }
+
+    @Test
+    public void testUnknownChangeTypeIsSkipped() throws Exception {
+        createFeed(TimeUnit.HOURS.toMillis(1));
+        this.table.insert("SOMETHING_NEW", "sub1", System.currentTimeMillis(), true);
+        this.table.insert(ChangeType.TOPICS_CHANGED.name(), null, System.currentTimeMillis(), true);
+
+        assertEquals(ChangeType.TOPICS_CHANGED, this.received.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS).getType());
+        awaitPolls(2);
+        assertNull(this.received.poll());
+    }
+
+    @Test
+    public void testOldChangesArePruned() throws Exception {
+        long expired = this.table.insert(ChangeType.SUBSCRIPTION_UPDATED.name(), "old",
+            System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(10), true);
+        createFeed(TimeUnit.MINUTES.toMillis(5));
+        long kept = this.table.insert(ChangeType.SUBSCRIPTION_UPDATED.name(), "new",
+            System.currentTimeMillis(), true);
+
+        assertEquals("new", this.received.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS).getResourceId());
+        awaitPolls(1);
+        assertFalse(this.table.contains(expired));
+        assertTrue(this.table.contains(kept));
+    }
+
+    private void createFeed(long retentionMs) throws SQLException {
+        this.feed = new JdbcChangeFeed(this.table.dataSource(), JdbcChangeFeed.DEFAULT_TABLE_NAME,
+            POLL_INTERVAL_MS, retentionMs);
+        this.feed.addListener(this.received::add);
+    }
+
+    /**
+     * Helper method to wait until the feed has polled a number more times.
+     *
+     * @param count - the number of polls to wait for
+     * @throws InterruptedException when interrupted while waiting
+     */
+    private void awaitPolls(int count) throws InterruptedException {
+        long target = this.table.getPollCount() + count;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (this.table.getPollCount() < target) {
+            assertTrue("feed stopped polling", System.nanoTime() < deadline);
+            Thread.sleep(POLL_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * An in-memory stand-in for the change feed table which understands the
+     * statements JdbcChangeFeed sends. Rows can be inserted uncommitted, so they
+     * hold a sequence number but are not visible until they are committed.
+     */
+    private static class FakeTable {
+        private final List<Row> rows = new ArrayList<>();
+        private long nextSequence = 1;
+        private long pollCount;
+
+        synchronized long insert(String type, String resourceId, long createdAt, boolean committed) {
+            Row row = new Row(this.nextSequence++, "node2", type, resourceId, null, createdAt);
+            row.committed = committed;
+            this.rows.add(row);
+            return row.sequence;
+        }
+
+        synchronized void commit(long sequence) {
+            for (Row row : this.rows) {
+                if (row.sequence == sequence) {
+                    row.committed = true;
+                }
+            }
+        }
+
+        synchronized boolean contains(long sequence) {
+            return this.rows.stream().anyMatch(row -> row.sequence == sequence);
+        }
+
+        synchronized long getPollCount() {
+            return this.pollCount;
+        }
+
+        DataSource dataSource() {
+            return proxy(DataSource.class, (proxy, method, args) ->
+                method.getName().equals("getConnection") ? connection() : null);
+        }
+
+        private Connection connection() {
+            return proxy(Connection.class, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "createStatement":
+                        return statement();
+                    case "prepareStatement":
+                        return preparedStatement((String) args[0]);
+                    default:
+                        return null;
+                }
+            });
+        }
+
+        private Statement statement() {
+            return proxy(Statement.class, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "execute":
+                        // CREATE TABLE IF NOT EXISTS
+                        return false;
+                    case "executeQuery":
+                        synchronized (this) {
+                            long max = 0;
+                            for (Row row : this.rows) {
+                                max = Math.max(max, row.sequence);
+                            }
+                            List<Object[]> result = new ArrayList<>();
+                            result.add(new Object[] {max});
+                            return resultSet(result);
+                        }
+                    default:
+                        return null;
+                }
+            });
+        }
+
+        private PreparedStatement preparedStatement(String sql) {
+            Map<Integer, Object> parameters = new HashMap<>();
+            int[] maxRows = {0};
+            return proxy(PreparedStatement.class, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "setString":
+                    case "setLong":
+                        parameters.put((Integer) args[0], args[1]);
+                        return null;
+                    case "setMaxRows":
+                        maxRows[0] = (Integer) args[0];
+                        return null;
+                    case "executeUpdate":
+                        return update(sql, parameters);
+                    case "executeQuery":
+                        return select(sql, parameters, maxRows[0]);
+                    default:
+                        return null;
+                }
+            });
+        }
+
+        private synchronized int update(String sql, Map<Integer, Object> parameters) {
+            if (sql.startsWith("INSERT")) {
+                this.rows.add(new Row(this.nextSequence++, (String) parameters.get(1), (String) parameters.get(2),
+                    (String) parameters.get(3), (String) parameters.get(4), (Long) parameters.get(5)));
+                return 1;
+            }
+            // DELETE FROM ... WHERE created_at < ?
+            long cutoff = (Long) parameters.get(1);
+            int deleted = 0;
+            for (Iterator<Row> iterator = this.rows.iterator(); iterator.hasNext();) {
+                if (iterator.next().createdAt < cutoff) {
+                    iterator.remove();
+                    deleted++;
+                }
+            }
+            return deleted;
+        }
+
+        private synchronized ResultSet select(String sql, Map<Integer, Object> parameters, int maxRows) {
+            long sequence = (Long) parameters.get(1);
+            Predicate<Row> filter;
+            if (sql.contains("seq > ?")) {
+                this.pollCount++;
+                filter = row -> row.sequence > sequence;
+            } else {
+                long createdAfter = (Long) parameters.get(2);
+                filter = row -> row.sequence <= sequence && row.createdAt >= createdAfter;
+            }
+            List<Object[]> result = new ArrayList<>();
+            for (Row row : this.rows) {
+                if (row.committed && filter.test(row) && (maxRows == 0 || result.size() < maxRows)) {
+                    result.add(new Object[] {row.sequence, row.nodeId, row.type, row.resourceId, row.payload,
+                        row.createdAt});
+                }
+            }
+            return resultSet(result);
+        }
+
+        private static ResultSet resultSet(List<Object[]> result) {
+            Iterator<Object[]> iterator = result.iterator();
+            Object[][] current = new Object[1][];
+            return proxy(ResultSet.class, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "next":
+                        current[0] = iterator.hasNext() ? iterator.next() : null;
+                        return current[0] != null;
+                    case "getLong":
+                        return current[0][(Integer) args[0] - 1];
+                    case "getString":
+                        return (String) current[0][(Integer) args[0] - 1];
+                    default:
+                        return null;
+                }
+            });
+        }
+
+        private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+            return type.cast(Proxy.newProxyInstance(JdbcChangeFeedTest.class.getClassLoader(),
+                new Class<?>[] {type}, handler));
+        }
+    }
+
+    /**
+     * A row of the change feed table.
+     */
+    private static class Row {
+        private final long sequence;
+        private final String nodeId;
+        private final String type;
+        private final String resourceId;
+        private final String payload;
+        private final long createdAt;
+        private boolean committed = true;
+
+        Row(long sequence, String nodeId, String type, String resourceId, String payload, long createdAt) {
+            this.sequence = sequence;
+            this.nodeId = nodeId;
+            this.type = type;
+            this.resourceId = resourceId;
+            this.payload = payload;
+            this.createdAt = createdAt;
+        }
+    }
+}
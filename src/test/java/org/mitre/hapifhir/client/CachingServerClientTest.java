@@ -0,0 +1,154 @@
+package org.mitre.hapifhir.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachingServerClientTest {
+    private List<String> searches;
+    private Runnable duringSearch;
+    private CachingServerClient client;
+
+    /**
+     * Create a caching client over a server client which records its searches.
+     */
+    @Before
+    public void setUp() {
+        this.searches = new ArrayList<>();
+        this.duringSearch = () -> { };
+        this.client = new CachingServerClient(new IServerClient() {
+            @Override
+            public Bundle searchOnCriteria(String criteria) {
+                searches.add(criteria);
+                duringSearch.run();
+                return new Bundle();
+            }
+
+            @Override
+            public MethodOutcome updateResource(IBaseResource resource) {
+                return new MethodOutcome();
+            }
+        });
+    }
+
+    @Test
+    public void testEquivalentSearchesShareEntry() {
+        Bundle first = this.client.searchOnCriteria("Encounter?status=finished&_id=1");
+
+        assertSame(first, this.client.searchOnCriteria("/Encounter?_id=1&status=finished"));
+        assertEquals(1, this.searches.size());
+        assertEquals(1, this.client.size());
+    }
+
+    @Test
+    public void testWriteInvalidatesOnlyItsType() {
+        Bundle encounters = this.client.searchOnCriteria("Encounter?status=finished");
+        Bundle patients = this.client.searchOnCriteria("Patient?name=smith");
+
+        this.client.invalidate("Encounter");
+
+        assertNotSame(encounters, this.client.searchOnCriteria("Encounter?status=finished"));
+        assertSame(patients, this.client.searchOnCriteria("Patient?name=smith"));
+        assertEquals(3, this.searches.size());
+    }
+
+    @Test
+    public void testWriteToAnyTypeInvalidatesDependentSearches() {
+        Bundle chained = this.client.searchOnCriteria("Encounter?subject.name=smith");
+        Bundle included = this.client.searchOnCriteria("Encounter?_include=Encounter:subject");
+        Bundle reverse = this.client.searchOnCriteria("Patient?_has:Encounter:subject:status=finished");
+        Bundle plain = this.client.searchOnCriteria("Encounter?status=finished");
+
+        this.client.invalidate("Patient");
+
+        assertNotSame(chained, this.client.searchOnCriteria("Encounter?subject.name=smith"));
+        assertNotSame(included, this.client.searchOnCriteria("Encounter?_include=Encounter:subject"));
+        assertNotSame(reverse, this.client.searchOnCriteria("Patient?_has:Encounter:subject:status=finished"));
+        assertSame(plain, this.client.searchOnCriteria("Encounter?status=finished"));
+    }
+
+    @Test
+    public void testWriteDuringSearchInvalidatesResult() {
+        this.duringSearch = () -> this.client.invalidate("Encounter");
+        Bundle first = this.client.searchOnCriteria("Encounter?status=finished");
+        this.duringSearch = () -> { };
+
+        // The result was searched before the write finished, so it is not served
+        Bundle second = this.client.searchOnCriteria("Encounter?status=finished");
+        assertNotSame(first, second);
+        assertSame(second, this.client.searchOnCriteria("Encounter?status=finished"));
+        assertEquals(2, this.searches.size());
+    }
+
+    @Test
+    public void testUpdateInvalidatesItsType() {
+        Bundle first = this.client.searchOnCriteria("Encounter?status=finished");
+
+        this.client.updateResource(new Encounter());
+
+        assertNotSame(first, this.client.searchOnCriteria("Encounter?status=finished"));
+    }
+
+    @Test
+    public void testInvalidateAll() {
+        this.client.searchOnCriteria("Encounter?status=finished");
+        this.client.searchOnCriteria("Patient?name=smith");
+
+        this.client.invalidateAll();
+
+        assertEquals(0, this.client.size());
+        this.client.searchOnCriteria("Encounter?status=finished");
+        assertEquals(3, this.searches.size());
+    }
+
+    @Test
+    public void testBatchSearchesOnlyMisses() {
+        Bundle cached = this.client.searchOnCriteria("Encounter?status=finished");
+        this.searches.clear();
+
+        List<Bundle> results = this.client.searchOnCriteria(
+            Arrays.asList("Encounter?status=finished", "Patient?name=smith"));
+
+        assertSame(cached, results.get(0));
+        assertEquals(Arrays.asList("Patient?name=smith"), this.searches);
+        assertSame(results.get(1), this.client.searchOnCriteria("Patient?name=smith"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedAreEvicted() {
+        CachingServerClient small = new CachingServerClient(new IServerClient() {
+            @Override
+            public Bundle searchOnCriteria(String criteria) {
+                searches.add(criteria);
+                return new Bundle();
+            }
+
+            @Override
+            public MethodOutcome updateResource(IBaseResource resource) {
+                return new MethodOutcome();
+            }
+        }, 2, 1, TimeUnit.MINUTES);
+        Bundle first = small.searchOnCriteria("Encounter?_id=1");
+        small.searchOnCriteria("Encounter?_id=2");
+        small.searchOnCriteria("Encounter?_id=1");
+        small.searchOnCriteria("Encounter?_id=3");
+
+        assertEquals(2, small.size());
+        assertSame(first, small.searchOnCriteria("Encounter?_id=1"));
+        small.searchOnCriteria("Encounter?_id=2");
+        assertEquals(4, this.searches.size());
+    }
+}
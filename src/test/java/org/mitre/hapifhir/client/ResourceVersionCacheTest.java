@@ -0,0 +1,182 @@
+package org.mitre.hapifhir.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResourceVersionCacheTest {
+    private static final FhirContext CTX = FhirContext.forR4();
+
+    private List<String> historyReads;
+    private Bundle history;
+    private boolean historyFails;
+    private IServerClient serverClient;
+
+    /**
+     * Create a server client which serves the test history.
+     */
+    @Before
+    public void setUp() {
+        this.historyReads = new ArrayList<>();
+        this.history = new Bundle();
+        this.historyFails = false;
+        this.serverClient = new IServerClient() {
+            @Override
+            public Bundle searchOnCriteria(String criteria) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Bundle getHistory(String resourceType, String id, int count) {
+                historyReads.add(resourceType + "/" + id);
+                if (historyFails) {
+                    throw new IllegalStateException("server unavailable");
+                }
+                return history;
+            }
+
+            @Override
+            public MethodOutcome updateResource(IBaseResource resource) {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Test
+    public void testPreviousVersionFromCache() {
+        ResourceVersionCache cache = new ResourceVersionCache(CTX, this.serverClient);
+        cache.put(observation("obs1", "1"));
+
+        assertEquals("v1", value(cache.getPreviousVersion(observation("obs1", "2"))));
+        assertTrue(this.historyReads.isEmpty());
+        // The first version has no previous version
+        assertNull(cache.getPreviousVersion(observation("obs1", "1")));
+        assertTrue(this.historyReads.isEmpty());
+    }
+
+    @Test
+    public void testPreviousVersionFromHistoryWhenCacheIsBehind() {
+        ResourceVersionCache cache = new ResourceVersionCache(CTX, this.serverClient);
+        cache.put(observation("obs1", "1"));
+        this.history.addEntry().setResource(observation("obs1", "3"));
+        this.history.addEntry().setResource(observation("obs1", "2"));
+        this.history.addEntry().setResource(observation("obs1", "1"));
+
+        assertEquals("v2", value(cache.getPreviousVersion(observation("obs1", "3"))));
+        assertEquals(1, this.historyReads.size());
+        assertEquals("Observation/obs1", this.historyReads.get(0));
+    }
+
+    @Test
+    public void testPreviousVersionWithoutNumericVersions() {
+        ResourceVersionCache cache = new ResourceVersionCache(CTX, this.serverClient);
+        cache.put(observation("obs1", "abc"));
+
+        assertEquals("vabc", value(cache.getPreviousVersion(observation("obs1", "def"))));
+        assertTrue(this.historyReads.isEmpty());
+
+        // Without a cached version the entry after the current one in the history is the previous one
+        this.history.addEntry().setResource(observation("obs2", "xyz"));
+        this.history.addEntry().setResource(observation("obs2", "uvw"));
+        assertEquals("vuvw", value(cache.getPreviousVersion(observation("obs2", "xyz"))));
+    }
+
+    @Test
+    public void testOlderVersionIsIgnored() {
+        ResourceVersionCache cache = new ResourceVersionCache(CTX, this.serverClient);
+        cache.put(observation("obs1", "3"));
+        cache.put(observation("obs1", "2"));
+
+        assertEquals(1, cache.size());
+        assertEquals("v3", value(cache.getPreviousVersion(observation("obs1", "4"))));
+        assertTrue(this.historyReads.isEmpty());
+    }
+
+    @Test
+    public void testRemoveDeleted() {
+        ResourceVersionCache cache = new ResourceVersionCache(CTX, this.serverClient);
+        cache.put(observation("obs1", "2"));
+
+        assertEquals("v2", value(cache.removeDeleted("Observation", "obs1")));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getSizeBytes());
+        assertTrue(this.historyReads.isEmpty());
+
+        // Once forgotten the latest version with a resource is read from the history, skipping the delete
+        this.history.addEntry().getRequest().setUrl("Observation/obs1");
+        this.history.addEntry().setResource(observation("obs1", "2"));
+        assertEquals("v2", value(cache.removeDeleted("Observation", "obs1")));
+        assertEquals(1, this.historyReads.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        ResourceVersionCache measure = new ResourceVersionCache(CTX, this.serverClient);
+        measure.put(observation("obs1", "1"));
+        long entryBytes = measure.getSizeBytes();
+
+        ResourceVersionCache cache = new ResourceVersionCache(CTX, this.serverClient, 2 * entryBytes);
+        cache.put(observation("obs1", "1"));
+        cache.put(observation("obs2", "1"));
+        assertEquals(2, cache.size());
+        // Reading obs1 makes obs2 the least recently used
+        assertEquals("v1", value(cache.getPreviousVersion(observation("obs1", "2"))));
+        cache.put(observation("obs3", "1"));
+
+        assertEquals(2, cache.size());
+        assertEquals(2 * entryBytes, cache.getSizeBytes());
+        assertTrue(this.historyReads.isEmpty());
+        assertEquals("v1", value(cache.getPreviousVersion(observation("obs1", "2"))));
+        assertEquals("v1", value(cache.getPreviousVersion(observation("obs3", "2"))));
+        assertTrue(this.historyReads.isEmpty());
+        assertNull(cache.getPreviousVersion(observation("obs2", "2")));
+        assertEquals(1, this.historyReads.size());
+    }
+
+    @Test
+    public void testReplacingVersionKeepsSize() {
+        ResourceVersionCache cache = new ResourceVersionCache(CTX, this.serverClient);
+        cache.put(observation("obs1", "1"));
+        long entryBytes = cache.getSizeBytes();
+        cache.put(observation("obs1", "2"));
+
+        assertEquals(1, cache.size());
+        assertEquals(entryBytes, cache.getSizeBytes());
+    }
+
+    @Test
+    public void testHistoryFailureReturnsNull() {
+        ResourceVersionCache cache = new ResourceVersionCache(CTX, this.serverClient);
+        this.historyFails = true;
+
+        assertNull(cache.getPreviousVersion(observation("obs1", "2")));
+        assertNull(cache.removeDeleted("Observation", "obs1"));
+        assertEquals(2, this.historyReads.size());
+    }
+
+    private static Observation observation(String id, String versionId) {
+        Observation observation = new Observation();
+        observation.setId(id);
+        observation.getMeta().setVersionId(versionId);
+        observation.setValue(new StringType("v" + versionId));
+        return observation;
+    }
+
+    private static String value(Resource resource) {
+        return resource == null ? null : ((Observation) resource).getValueStringType().getValue();
+    }
+}
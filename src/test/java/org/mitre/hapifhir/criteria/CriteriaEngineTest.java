@@ -0,0 +1,229 @@
+package org.mitre.hapifhir.criteria;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Observation.ObservationStatus;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitre.hapifhir.client.IServerClient;
+
+public class CriteriaEngineTest {
+    private static final FhirContext CTX = FhirContext.forR4();
+
+    private List<String> searches;
+    private Bundle searchResult;
+    private CriteriaEngine engine;
+
+    /**
+     * Create the engine with a server client which records its searches.
+     */
+    @Before
+    public void setUp() {
+        this.searches = new ArrayList<>();
+        this.searchResult = new Bundle();
+        this.engine = new CriteriaEngine(CTX, new IServerClient() {
+            @Override
+            public Bundle searchOnCriteria(String criteria) {
+                searches.add(criteria);
+                return searchResult;
+            }
+
+            @Override
+            public MethodOutcome updateResource(IBaseResource resource) {
+                throw new UnsupportedOperationException();
+            }
+        });
+    }
+
+    @Test
+    public void testToken() {
+        Observation observation = observation();
+
+        assertMatch("Observation?code=http://loinc.org|1234-5", observation);
+        assertMatch("Observation?code=1234-5", observation);
+        assertMatch("Observation?code=http://loinc.org|", observation);
+        assertMatch("Observation?code=9999-9,1234-5", observation);
+        assertMatch("Observation?status=final", observation);
+        assertNoMatch("Observation?code=http://snomed.info/sct|1234-5", observation);
+        assertNoMatch("Observation?code=|1234-5", observation);
+        assertNoMatch("Observation?code:not=1234-5", observation);
+        assertNoMatch("Observation?status=preliminary", observation);
+    }
+
+    @Test
+    public void testString() {
+        Patient patient = patient();
+
+        assertMatch("Patient?family=mul", patient);
+        assertMatch("Patient?family=M\u00dcLLER", patient); // upper case u umlaut
+        assertMatch("Patient?family:exact=M\u00fcller", patient); // u umlaut
+        assertMatch("Patient?name:contains=ll", patient);
+        assertNoMatch("Patient?family:exact=muller", patient);
+        assertNoMatch("Patient?family=ller", patient);
+    }
+
+    @Test
+    public void testReference() {
+        Observation observation = observation();
+
+        assertMatch("Observation?subject=Patient/123", observation);
+        assertMatch("Observation?subject=123", observation);
+        assertMatch("Observation?subject:Patient=123", observation);
+        assertMatch("Observation?subject=http://example.org/fhir/Patient/123", observation);
+        assertNoMatch("Observation?subject=Patient/456", observation);
+        assertNoMatch("Observation?subject:Group=123", observation);
+    }
+
+    @Test
+    public void testDate() {
+        Patient patient = patient();
+
+        assertMatch("Patient?birthdate=2001-05", patient);
+        assertMatch("Patient?birthdate=ge2000-01-01", patient);
+        assertMatch("Patient?birthdate=lt2002", patient);
+        assertNoMatch("Patient?birthdate=2001-06", patient);
+        assertNoMatch("Patient?birthdate=lt2000", patient);
+        assertNoMatch("Patient?birthdate=gt2001-05-01", patient);
+    }
+
+    @Test
+    public void testQuantity() {
+        Observation observation = observation();
+
+        assertMatch("Observation?value-quantity=5.4", observation);
+        assertMatch("Observation?value-quantity=gt5|http://unitsofmeasure.org|mg", observation);
+        assertMatch("Observation?value-quantity=5.4||mg", observation);
+        assertNoMatch("Observation?value-quantity=5.35", observation);
+        assertNoMatch("Observation?value-quantity=le5", observation);
+        assertNoMatch("Observation?value-quantity=5.4|http://unitsofmeasure.org|g", observation);
+    }
+
+    @Test
+    public void testMissing() {
+        Patient patient = patient();
+        Patient noBirthDate = patient().setBirthDateElement(null);
+
+        assertMatch("Patient?birthdate:missing=false", patient);
+        assertNoMatch("Patient?birthdate:missing=true", patient);
+        assertMatch("Patient?birthdate:missing=true", noBirthDate);
+        assertNoMatch("Patient?birthdate:missing=false", noBirthDate);
+    }
+
+    @Test
+    public void testId() {
+        Patient patient = patient();
+
+        assertMatch("Patient?_id=123", patient);
+        assertMatch("Patient?_id=456,123", patient);
+        assertNoMatch("Patient?_id=456", patient);
+    }
+
+    @Test
+    public void testResourceTypeAndParametersAreAnded() {
+        assertNoMatch("Patient?_id=123", observation());
+        assertNoMatch("Patient?_id=123&family=smith", patient());
+        assertMatch("Patient?_id=123&family=muller", patient());
+    }
+
+    @Test
+    public void testEncodedCommaIsPartOfValue() {
+        Patient patient = patient();
+        patient.getNameFirstRep().setFamily("a,b");
+
+        assertMatch("Patient?family:exact=a%2Cb", patient);
+        assertMatch("Patient?family:exact=a\\,b", patient);
+        assertNoMatch("Patient?family:exact=a%2Cc", patient);
+        assertMatch("Patient?family:exact=x,a\\,b", patient);
+    }
+
+    @Test
+    public void testChainedParameterIsSearchedOnServer() {
+        Observation observation = observation();
+        CompiledCriteria compiled = this.engine.compile("Observation?status=final&subject.name=peter");
+
+        assertFalse(compiled.isLocal());
+        assertEquals("Observation?subject.name=peter", compiled.getServerCriteria());
+        assertEquals(MatchResult.MATCH, compiled.evaluate(observation));
+
+        assertFalse(this.engine.matches(Collections.singletonList(compiled.getCriteria()), observation));
+        assertEquals(Collections.singletonList("Observation?subject.name=peter&_id=obs1"), this.searches);
+
+        this.searchResult.addEntry().setResource(observation);
+        assertTrue(this.engine.matches(Collections.singletonList(compiled.getCriteria()), observation));
+    }
+
+    @Test
+    public void testLocalNoMatchIsNotSearched() {
+        assertFalse(this.engine.matches(
+            Collections.singletonList("Observation?status=preliminary&subject.name=peter"), observation()));
+        assertTrue(this.searches.isEmpty());
+    }
+
+    @Test
+    public void testUntypedCriteriaIsSearchedAsIs() {
+        CompiledCriteria compiled = this.engine.compile("?status=final");
+
+        assertNull(compiled.getResourceType());
+        assertFalse(compiled.isLocal());
+        assertEquals("?status=final", compiled.getServerCriteria());
+    }
+
+    @Test
+    public void testEmptyCriteriaMatchesEverything() {
+        assertTrue(this.engine.matches(Collections.singletonList(""), patient()));
+        assertTrue(this.engine.matchesLocally(Collections.singletonList(null), patient()));
+        assertTrue(this.searches.isEmpty());
+    }
+
+    private void assertMatch(String criteria, Resource resource) {
+        assertEquals(criteria, MatchResult.MATCH, evaluate(criteria, resource));
+    }
+
+    private void assertNoMatch(String criteria, Resource resource) {
+        assertEquals(criteria, MatchResult.NO_MATCH, evaluate(criteria, resource));
+    }
+
+    private MatchResult evaluate(String criteria, Resource resource) {
+        CompiledCriteria compiled = this.engine.compile(criteria);
+        assertTrue(criteria + " should be evaluated locally", compiled.isLocal());
+        return compiled.evaluate(resource);
+    }
+
+    private static Observation observation() {
+        Observation observation = new Observation();
+        observation.setId("obs1");
+        observation.setStatus(ObservationStatus.FINAL);
+        observation.getCode().addCoding().setSystem("http://loinc.org").setCode("1234-5");
+        observation.setSubject(new Reference("Patient/123"));
+        observation.setValue(new Quantity().setValue(new BigDecimal("5.4")).setSystem("http://unitsofmeasure.org")
+            .setCode("mg").setUnit("mg"));
+        return observation;
+    }
+
+    private static Patient patient() {
+        Patient patient = new Patient();
+        patient.setId("123");
+        patient.addName().setFamily("M\u00fcller").addGiven("Peter"); // u umlaut
+        patient.setBirthDateElement(new DateType("2001-05-01"));
+        return patient;
+    }
+}
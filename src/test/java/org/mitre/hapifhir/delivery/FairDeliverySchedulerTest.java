@@ -0,0 +1,312 @@
+package org.mitre.hapifhir.delivery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mitre.hapifhir.delivery.FairDeliveryScheduler.DeliveryTask;
+import org.mitre.hapifhir.delivery.NotificationDispatcher.BackpressurePolicy;
+
+public class FairDeliverySchedulerTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private NotificationDispatcher dispatcher;
+    private FairDeliveryScheduler scheduler;
+    private final List<String> started = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Stop the scheduler and dispatcher of the test.
+     */
+    @After
+    public void tearDown() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdown();
+        }
+        if (this.dispatcher != null) {
+            this.dispatcher.shutdown(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testSlowEndpointDoesNotBlockOthers() throws InterruptedException {
+        createScheduler(BackpressurePolicy.REJECT, 2, 100, 100);
+        this.scheduler.setEndpointLimits("slow", new EndpointLimits(1, 1, 0));
+
+        List<TestDelivery> slow = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            slow.add(new TestDelivery("slow" + i, false));
+            assertTrue(this.scheduler.submit("slow", slow.get(i)));
+        }
+        List<TestDelivery> fast = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            fast.add(new TestDelivery("fast" + i, true));
+            assertTrue(this.scheduler.submit("fast", fast.get(i)));
+        }
+
+        // Every fast delivery is made while the slow endpoint holds its only slot
+        for (TestDelivery delivery : fast) {
+            assertTrue(delivery.awaitStarted());
+        }
+        assertTrue(slow.get(0).awaitStarted());
+        assertFalse(slow.get(1).isStarted());
+
+        // The slow endpoint drains one delivery at a time as its responses arrive
+        for (int i = 0; i < slow.size(); i++) {
+            assertTrue(slow.get(i).awaitStarted());
+            if (i + 1 < slow.size()) {
+                assertFalse(slow.get(i + 1).isStarted());
+            }
+            slow.get(i).complete();
+        }
+        assertEquals(0, this.scheduler.getDroppedCount());
+    }
+
+    @Test
+    public void testBackloggedEndpointsAreServedByWeight() throws InterruptedException {
+        createScheduler(BackpressurePolicy.REJECT, 1, 100, 100);
+        this.scheduler.setEndpointLimits("heavy", new EndpointLimits(2, 1, 0));
+        TestDelivery gate = startGate();
+
+        List<TestDelivery> deliveries = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            deliveries.add(new TestDelivery("light", true));
+            this.scheduler.submit("light", deliveries.get(deliveries.size() - 1));
+            deliveries.add(new TestDelivery("heavy", true));
+            this.scheduler.submit("heavy", deliveries.get(deliveries.size() - 1));
+        }
+        assertEquals(12, this.scheduler.getQueuedCount());
+        this.started.clear();
+        gate.complete();
+
+        for (TestDelivery delivery : deliveries) {
+            assertTrue(delivery.awaitStarted());
+        }
+        List<String> firstSix = new ArrayList<>(this.started.subList(0, 6));
+        // Finish times of the heavy endpoint grow half as fast, so it gets two of every three turns
+        assertEquals(4, Collections.frequency(firstSix, "heavy"));
+        assertEquals(2, Collections.frequency(firstSix, "light"));
+    }
+
+    @Test
+    public void testRejectWhenEndpointQueueIsFull() throws InterruptedException {
+        createScheduler(BackpressurePolicy.REJECT, 1, 2, 100);
+        TestDelivery gate = startGate();
+
+        TestDelivery first = new TestDelivery("dead", true);
+        TestDelivery second = new TestDelivery("dead", true);
+        TestDelivery third = new TestDelivery("dead", true);
+        assertTrue(this.scheduler.submit("dead", first));
+        assertTrue(this.scheduler.submit("dead", second));
+        assertFalse(this.scheduler.submit("dead", third));
+        // Other endpoints still have space
+        TestDelivery other = new TestDelivery("other", true);
+        assertTrue(this.scheduler.submit("other", other));
+
+        assertEquals(3, this.scheduler.getQueuedCount());
+        assertEquals(1, this.scheduler.getDroppedCount());
+        assertFalse(third.isDiscarded());
+
+        gate.complete();
+        assertTrue(first.awaitStarted());
+        assertTrue(second.awaitStarted());
+        assertTrue(other.awaitStarted());
+        assertFalse(third.isStarted());
+    }
+
+    @Test
+    public void testDropOldestWhenEndpointQueueIsFull() throws InterruptedException {
+        createScheduler(BackpressurePolicy.DROP_OLDEST, 1, 2, 100);
+        TestDelivery gate = startGate();
+
+        TestDelivery first = new TestDelivery("dead", true);
+        TestDelivery second = new TestDelivery("dead", true);
+        TestDelivery third = new TestDelivery("dead", true);
+        assertTrue(this.scheduler.submit("dead", first));
+        assertTrue(this.scheduler.submit("dead", second));
+        assertTrue(this.scheduler.submit("dead", third));
+
+        assertTrue(first.isDiscarded());
+        assertEquals(2, this.scheduler.getQueuedCount());
+        assertEquals(1, this.scheduler.getDroppedCount());
+
+        gate.complete();
+        assertTrue(second.awaitStarted());
+        assertTrue(third.awaitStarted());
+        assertFalse(first.isStarted());
+    }
+
+    @Test
+    public void testDropOldestOfLongestQueueWhenTotalIsFull() throws InterruptedException {
+        createScheduler(BackpressurePolicy.DROP_OLDEST, 1, 10, 3);
+        startGate();
+
+        TestDelivery a1 = new TestDelivery("a", true);
+        TestDelivery a2 = new TestDelivery("a", true);
+        TestDelivery b1 = new TestDelivery("b", true);
+        TestDelivery c1 = new TestDelivery("c", true);
+        this.scheduler.submit("a", a1);
+        this.scheduler.submit("a", a2);
+        this.scheduler.submit("b", b1);
+        assertTrue(this.scheduler.submit("c", c1));
+
+        assertTrue(a1.isDiscarded());
+        assertFalse(a2.isDiscarded());
+        assertFalse(b1.isDiscarded());
+        assertEquals(3, this.scheduler.getQueuedCount());
+    }
+
+    @Test
+    public void testBlockWaitsForSpace() throws InterruptedException {
+        createScheduler(BackpressurePolicy.BLOCK, 1, 1, 100);
+        TestDelivery gate = startGate();
+
+        TestDelivery first = new TestDelivery("dead", true);
+        TestDelivery second = new TestDelivery("dead", true);
+        assertTrue(this.scheduler.submit("dead", first));
+        AtomicBoolean submitted = new AtomicBoolean();
+        Thread submitter = new Thread(() -> submitted.set(this.scheduler.submit("dead", second)));
+        submitter.start();
+
+        submitter.join(200);
+        assertTrue(submitter.isAlive());
+
+        // Scheduling the first delivery makes space for the second
+        gate.complete();
+        submitter.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        assertFalse(submitter.isAlive());
+        assertTrue(submitted.get());
+        assertTrue(first.awaitStarted());
+        assertTrue(second.awaitStarted());
+        assertEquals(0, this.scheduler.getDroppedCount());
+    }
+
+    @Test
+    public void testScheduledDeliveriesBypassFullDispatcher() throws InterruptedException {
+        for (BackpressurePolicy policy : BackpressurePolicy.values()) {
+            this.dispatcher = new NotificationDispatcher(1, 1, policy);
+            this.scheduler = new FairDeliveryScheduler(this.dispatcher, 2, new EndpointLimits(), 10, 100);
+            // Occupy the only dispatcher worker and fill its queue
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch running = new CountDownLatch(1);
+            this.dispatcher.dispatch(() -> {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            assertTrue(running.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertTrue(this.dispatcher.tryDispatch(() -> { }));
+
+            List<TestDelivery> deliveries = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                deliveries.add(new TestDelivery("a", true));
+                assertTrue(this.scheduler.submit("a", deliveries.get(i)));
+            }
+            for (TestDelivery delivery : deliveries) {
+                assertTrue(policy.name(), delivery.awaitStarted());
+                assertFalse(delivery.isDiscarded());
+            }
+            assertEquals(0, this.scheduler.getDroppedCount());
+
+            release.countDown();
+            tearDown();
+        }
+    }
+
+    @Test
+    public void testShutdownDrainsQueuedDeliveries() throws InterruptedException {
+        createScheduler(BackpressurePolicy.REJECT, 1, 10, 100);
+        startGate();
+
+        TestDelivery queued = new TestDelivery("a", true);
+        this.scheduler.submit("a", queued);
+        this.scheduler.shutdown();
+        assertTrue(queued.awaitStarted());
+        assertEquals(0, this.scheduler.getQueuedCount());
+
+        // After shutdown deliveries are made on the calling thread
+        TestDelivery late = new TestDelivery("a", true);
+        assertTrue(this.scheduler.submit("a", late));
+        assertTrue(late.isStarted());
+    }
+
+    private void createScheduler(BackpressurePolicy policy, int maxInFlight, int maxQueuedPerEndpoint,
+      int maxQueued) {
+        this.dispatcher = new NotificationDispatcher(4, 100, policy);
+        this.scheduler = new FairDeliveryScheduler(this.dispatcher, maxInFlight, new EndpointLimits(),
+            maxQueuedPerEndpoint, maxQueued);
+    }
+
+    /**
+     * Helper method to fill the only in flight slot with a delivery which does not
+     * complete until the test completes it, so later deliveries stay queued.
+     *
+     * @return the started gate delivery
+     * @throws InterruptedException when interrupted while waiting for it to start
+     */
+    private TestDelivery startGate() throws InterruptedException {
+        TestDelivery gate = new TestDelivery("gate", false);
+        assertTrue(this.scheduler.submit("gate", gate));
+        assertTrue(gate.awaitStarted());
+        return gate;
+    }
+
+    /**
+     * A delivery which records when it starts and completes either at once or when
+     * the test completes it.
+     */
+    private class TestDelivery implements DeliveryTask {
+        private final String name;
+        private final CompletableFuture<Void> stage = new CompletableFuture<>();
+        private final CountDownLatch startedLatch = new CountDownLatch(1);
+        private volatile boolean discarded;
+
+        TestDelivery(String name, boolean completeAtOnce) {
+            this.name = name;
+            if (completeAtOnce) {
+                this.stage.complete(null);
+            }
+        }
+
+        @Override
+        public CompletionStage<?> get() {
+            started.add(this.name);
+            this.startedLatch.countDown();
+            return this.stage;
+        }
+
+        @Override
+        public void discarded() {
+            this.discarded = true;
+        }
+
+        void complete() {
+            this.stage.complete(null);
+        }
+
+        boolean awaitStarted() throws InterruptedException {
+            return this.startedLatch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        boolean isStarted() {
+            return this.startedLatch.getCount() == 0;
+        }
+
+        boolean isDiscarded() {
+            return this.discarded;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.mitre.hapifhir.delivery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HeartbeatSchedulerTest {
+    // Long enough that the ticker thread never ticks during a test, the tests advance the wheel
+    private static final long TICK_MS = 60 * 60 * 1000;
+    private static final int WHEEL_SIZE = 4;
+
+    private List<String> heartbeats;
+    private HeartbeatScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        this.heartbeats = Collections.synchronizedList(new ArrayList<>());
+        this.scheduler = new HeartbeatScheduler(this.heartbeats::add, TICK_MS, WHEEL_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        this.scheduler.shutdown();
+    }
+
+    @Test
+    public void testHeartbeatIsSentEveryPeriod() {
+        this.scheduler.schedule("sub1", 2 * TICK_MS);
+
+        assertEquals(Collections.emptyList(), advance(1));
+        assertEquals(Arrays.asList("sub1"), advance(1));
+        assertEquals(Collections.emptyList(), advance(1));
+        assertEquals(Arrays.asList("sub1"), advance(1));
+    }
+
+    @Test
+    public void testPeriodLongerThanWheelWaitsForRollover() {
+        // Due on tick 6, which shares a bucket with tick 2
+        this.scheduler.schedule("sub1", 6 * TICK_MS);
+
+        assertEquals(Collections.emptyList(), advance(5));
+        assertEquals(Arrays.asList("sub1"), advance(1));
+        // Due again on tick 12, which shares a bucket with tick 8
+        assertEquals(Collections.emptyList(), advance(5));
+        assertEquals(Arrays.asList("sub1"), advance(1));
+    }
+
+    @Test
+    public void testSubscriptionsSharingBucketAreSentOnTheirOwnTurn() {
+        this.scheduler.schedule("short", 1 * TICK_MS);
+        this.scheduler.schedule("long", 5 * TICK_MS);
+
+        assertEquals(Arrays.asList("short", "short", "short", "short"), advance(4));
+        assertEquals(Arrays.asList("long", "short"), advance(1));
+    }
+
+    @Test
+    public void testPeriodIsRoundedUpToWholeTicks() {
+        this.scheduler.schedule("sub1", 1);
+        assertEquals(Arrays.asList("sub1"), advance(1));
+
+        this.scheduler.schedule("sub2", TICK_MS + 1);
+        assertEquals(Arrays.asList("sub1"), advance(1));
+        assertEquals(Arrays.asList("sub1", "sub2"), advance(1));
+    }
+
+    @Test
+    public void testResetRestartsPeriod() {
+        this.scheduler.schedule("sub1", 3 * TICK_MS);
+        advance(2);
+        this.scheduler.reset("sub1");
+
+        assertEquals(Collections.emptyList(), advance(2));
+        assertEquals(Arrays.asList("sub1"), advance(1));
+        // Resetting an unscheduled subscription does not schedule it
+        this.scheduler.reset("sub2");
+        assertEquals(1, this.scheduler.size());
+    }
+
+    @Test
+    public void testCancelStopsHeartbeats() {
+        this.scheduler.schedule("sub1", TICK_MS);
+        this.scheduler.schedule("sub2", TICK_MS);
+        this.scheduler.cancel("sub1");
+        // A period of 0 cancels too
+        this.scheduler.schedule("sub2", 0);
+
+        assertEquals(0, this.scheduler.size());
+        assertTrue(advance(WHEEL_SIZE * 2).isEmpty());
+    }
+
+    @Test
+    public void testScheduleReplacesExistingSchedule() {
+        this.scheduler.schedule("sub1", TICK_MS);
+        this.scheduler.schedule("sub1", 3 * TICK_MS);
+
+        assertEquals(1, this.scheduler.size());
+        assertEquals(Collections.emptyList(), advance(2));
+        assertEquals(Arrays.asList("sub1"), advance(1));
+    }
+
+    @Test
+    public void testFailingHandlerDoesNotStopOtherHeartbeats() {
+        List<String> sent = new ArrayList<>();
+        HeartbeatScheduler failing = new HeartbeatScheduler(subscriptionId -> {
+            sent.add(subscriptionId);
+            if (subscriptionId.equals("sub1")) {
+                throw new IllegalStateException("endpoint down");
+            }
+        }, TICK_MS, WHEEL_SIZE);
+        try {
+            failing.schedule("sub1", TICK_MS);
+            failing.schedule("sub2", TICK_MS);
+            failing.tick();
+            failing.tick();
+
+            Collections.sort(sent);
+            assertEquals(Arrays.asList("sub1", "sub1", "sub2", "sub2"), sent);
+        } finally {
+            failing.shutdown();
+        }
+    }
+
+    /**
+     * Helper method to advance the wheel and collect the heartbeats sent.
+     *
+     * @param ticks - the number of ticks to advance
+     * @return the subscriptions sent a heartbeat, sorted since a bucket has no order
+     */
+    private List<String> advance(int ticks) {
+        this.heartbeats.clear();
+        for (int i = 0; i < ticks; i++) {
+            this.scheduler.tick();
+        }
+        List<String> sent = new ArrayList<>(this.heartbeats);
+        Collections.sort(sent);
+        return sent;
+    }
+}
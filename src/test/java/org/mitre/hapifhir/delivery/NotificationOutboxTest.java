@@ -0,0 +1,219 @@
+package org.mitre.hapifhir.delivery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mitre.hapifhir.delivery.NotificationOutbox.Entry;
+
+public class NotificationOutboxTest {
+    private static final String ENDPOINT = "http://example.org/hook";
+    private static final String PAYLOAD = "{\"resourceType\":\"Bundle\",\"type\":\"history\"}";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPendingEntriesAreReplayedAfterReopen() throws IOException {
+        Path directory = this.folder.newFolder().toPath();
+        NotificationOutbox outbox = new NotificationOutbox(directory);
+        Entry first = outbox.append("sub1", ENDPOINT, Arrays.asList("Authorization: Bearer abc"), PAYLOAD);
+        Entry second = outbox.append("sub2", ENDPOINT, Collections.emptyList(), PAYLOAD);
+        Entry third = outbox.append("sub3", ENDPOINT, Collections.emptyList(), PAYLOAD);
+        outbox.ack(second);
+        assertEquals(2, outbox.getPendingCount());
+        outbox.close();
+
+        outbox = new NotificationOutbox(directory);
+        List<Entry> replayed = outbox.replay();
+        assertEquals(Arrays.asList(first.getId(), third.getId()), ids(replayed));
+        Entry entry = replayed.get(0);
+        assertEquals("sub1", entry.getSubscriptionId());
+        assertEquals(ENDPOINT, entry.getEndpoint());
+        assertEquals(Arrays.asList("Authorization: Bearer abc"), entry.getHeaders());
+        assertEquals(PAYLOAD, entry.getPayload());
+        assertEquals(2, outbox.getPendingCount());
+        // Entries are only replayed once
+        assertTrue(outbox.replay().isEmpty());
+
+        Entry fourth = outbox.append("sub4", ENDPOINT, Collections.emptyList(), PAYLOAD);
+        assertTrue(fourth.getId() > third.getId());
+        for (Entry pending : replayed) {
+            outbox.ack(pending);
+        }
+        outbox.ack(fourth);
+        assertEquals(0, outbox.getPendingCount());
+        outbox.close();
+
+        outbox = new NotificationOutbox(directory);
+        assertTrue(outbox.replay().isEmpty());
+        outbox.close();
+    }
+
+    @Test
+    public void testTruncatedRecordIsIgnored() throws IOException {
+        Path directory = this.folder.newFolder().toPath();
+        NotificationOutbox outbox = new NotificationOutbox(directory);
+        Entry first = outbox.append("sub1", ENDPOINT, Collections.emptyList(), PAYLOAD);
+        outbox.append("sub2", ENDPOINT, Collections.emptyList(), PAYLOAD);
+        outbox.close();
+
+        // A crash part way through writing the second record
+        Path segment = segments(directory).get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 10);
+        }
+
+        outbox = new NotificationOutbox(directory);
+        assertEquals(Arrays.asList(first.getId()), ids(outbox.replay()));
+        // New records are appended after the last valid record, not after the torn one
+        Entry next = outbox.append("sub3", ENDPOINT, Collections.emptyList(), PAYLOAD);
+        outbox.close();
+
+        outbox = new NotificationOutbox(directory);
+        assertEquals(Arrays.asList(first.getId(), next.getId()), ids(outbox.replay()));
+        outbox.close();
+    }
+
+    @Test
+    public void testCorruptRecordIsIgnored() throws IOException {
+        Path directory = this.folder.newFolder().toPath();
+        NotificationOutbox outbox = new NotificationOutbox(directory);
+        Entry first = outbox.append("sub1", ENDPOINT, Collections.emptyList(), PAYLOAD);
+        outbox.append("sub2", ENDPOINT, Collections.emptyList(), PAYLOAD);
+        outbox.close();
+
+        // Flip the last byte of the second record's payload so its checksum fails
+        Path segment = segments(directory).get(0);
+        byte[] contents = Files.readAllBytes(segment);
+        contents[contents.length - 1] ^= 0x7f;
+        Files.write(segment, contents);
+
+        outbox = new NotificationOutbox(directory);
+        List<Entry> replayed = outbox.replay();
+        assertEquals(Arrays.asList(first.getId()), ids(replayed));
+        assertEquals(PAYLOAD, replayed.get(0).getPayload());
+        outbox.close();
+    }
+
+    @Test
+    public void testOnlySegmentStartsOverWhenNothingIsPending() throws IOException {
+        Path directory = this.folder.newFolder().toPath();
+        NotificationOutbox outbox = new NotificationOutbox(directory);
+        Entry entry = outbox.append("sub1", ENDPOINT, Collections.emptyList(), PAYLOAD);
+        outbox.ack(entry);
+        // Acknowledging twice is harmless
+        outbox.ack(entry);
+
+        assertEquals(1, outbox.getSegmentCount());
+        assertEquals(0, Files.size(segments(directory).get(0)));
+        outbox.close();
+    }
+
+    @Test
+    public void testAcknowledgedSegmentsAreDeleted() throws IOException {
+        Path directory = this.folder.newFolder().toPath();
+        NotificationOutbox outbox = new NotificationOutbox(directory, 4 * recordBytes(), false);
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            entries.add(outbox.append("sub" + i, ENDPOINT, Collections.emptyList(), PAYLOAD));
+        }
+        assertEquals(3, outbox.getSegmentCount());
+        assertEquals(3, segments(directory).size());
+
+        for (Entry entry : entries) {
+            outbox.ack(entry);
+        }
+        assertEquals(0, outbox.getPendingCount());
+        assertEquals(1, outbox.getSegmentCount());
+        assertEquals(1, segments(directory).size());
+        outbox.close();
+
+        outbox = new NotificationOutbox(directory, 4 * recordBytes(), false);
+        assertTrue(outbox.replay().isEmpty());
+        outbox.close();
+    }
+
+    @Test
+    public void testFewPendingEntriesAreRelocatedOutOfOldestSegment() throws IOException {
+        Path directory = this.folder.newFolder().toPath();
+        NotificationOutbox outbox = new NotificationOutbox(directory, 4 * recordBytes(), false);
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            entries.add(outbox.append("sub" + i, ENDPOINT, Collections.emptyList(), PAYLOAD));
+        }
+        assertEquals(2, outbox.getSegmentCount());
+
+        // One slow notification is left in the oldest segment
+        outbox.ack(entries.get(0));
+        outbox.ack(entries.get(1));
+        assertEquals(2, outbox.getSegmentCount());
+        outbox.ack(entries.get(2));
+        assertEquals(1, outbox.getSegmentCount());
+        assertEquals(1, segments(directory).size());
+        assertEquals(5, outbox.getPendingCount());
+        outbox.close();
+
+        // The copy keeps its id so it is replayed once and its acknowledgement applies to it
+        outbox = new NotificationOutbox(directory, 4 * recordBytes(), false);
+        List<Entry> replayed = outbox.replay();
+        Set<Long> expected = new HashSet<>(ids(entries.subList(3, 8)));
+        assertEquals(expected, new HashSet<>(ids(replayed)));
+        assertEquals(5, replayed.size());
+        outbox.ack(entries.get(3));
+        assertEquals(4, outbox.getPendingCount());
+        outbox.close();
+
+        outbox = new NotificationOutbox(directory, 4 * recordBytes(), false);
+        assertEquals(new HashSet<>(ids(entries.subList(4, 8))), new HashSet<>(ids(outbox.replay())));
+        outbox.close();
+    }
+
+    /**
+     * Helper method to measure the size of one journal record with the test payload.
+     *
+     * @return the record size in bytes
+     * @throws IOException when the scratch outbox cannot be written
+     */
+    private long recordBytes() throws IOException {
+        Path directory = this.folder.newFolder().toPath();
+        NotificationOutbox outbox = new NotificationOutbox(directory);
+        outbox.append("sub0", ENDPOINT, Collections.emptyList(), PAYLOAD);
+        outbox.close();
+        return Files.size(segments(directory).get(0));
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "outbox-*.log")) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static List<Long> ids(List<Entry> entries) {
+        List<Long> ids = new ArrayList<>();
+        for (Entry entry : entries) {
+            ids.add(entry.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,148 @@
+package org.mitre.hapifhir.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+
+import java.nio.charset.StandardCharsets;
+
+import org.hl7.fhir.r4.model.Subscription;
+import org.hl7.fhir.r4.model.Subscription.SubscriptionChannelType;
+import org.hl7.fhir.r4.model.Subscription.SubscriptionStatus;
+import org.junit.Test;
+import org.mitre.hapifhir.utils.SubscriptionRequestScanner.ScanResult;
+
+public class SubscriptionRequestScannerTest {
+    private static final FhirContext CTX = FhirContext.forR4();
+
+    @Test
+    public void testScanJson() {
+        ScanResult result = scanJson("{\"resourceType\":\"Subscription\",\"status\":\"requested\","
+            + "\"channel\":{\"type\":\"rest-hook\",\"endpoint\":\"http://example.org/hook\"}}");
+
+        assertEquals("requested", result.getStatus());
+        assertEquals("rest-hook", result.getChannelType());
+    }
+
+    @Test
+    public void testScanJsonSkipsOtherValues() {
+        ScanResult result = scanJson("{\n"
+            + "  \"channel\": {\"header\": [\"Authorization: Bearer {\\\"type\\\"}\"], \"payload\": \"x\",\n"
+            + "    \"type\" : \"websocket\"},\n"
+            + "  \"meta\": {\"status\": \"ignored\", \"tag\": [{\"code\": \"a\"}, {}], \"count\": -1.5e3},\n"
+            + "  \"extension\": [{\"valueBoolean\": true}, {\"valueString\": null}],\n"
+            + "  \"resourceType\": \"Subscription\",\n"
+            + "  \"status\": \"act\\u0069ve\"\n"
+            + "}");
+
+        assertEquals("active", result.getStatus());
+        assertEquals("websocket", result.getChannelType());
+    }
+
+    @Test
+    public void testScanJsonMissingElements() {
+        ScanResult result = scanJson("{\"resourceType\":\"Subscription\",\"channel\":{}}");
+
+        assertNull(result.getStatus());
+        assertNull(result.getChannelType());
+    }
+
+    @Test
+    public void testScanJsonRejectsOtherResources() {
+        assertNull(scanJson("{\"resourceType\":\"Patient\",\"status\":\"active\"}"));
+        assertNull(scanJson("{}"));
+    }
+
+    @Test
+    public void testScanJsonRejectsInvalidJson() {
+        assertNull(scanJson(""));
+        assertNull(scanJson("[]"));
+        assertNull(scanJson("{\"resourceType\":\"Subscription\",\"status\":"));
+        assertNull(scanJson("{\"resourceType\":\"Subscription\",\"status\":\"active\""));
+        assertNull(scanJson("{\"resourceType\":\"Subscription\" \"status\":\"active\"}"));
+    }
+
+    @Test
+    public void testScanXml() {
+        ScanResult result = scanXml("<Subscription xmlns=\"http://hl7.org/fhir\">"
+            + "<status value=\"requested\"/>"
+            + "<channel><type value=\"rest-hook\"/><endpoint value=\"http://example.org/hook\"/></channel>"
+            + "</Subscription>");
+
+        assertEquals("requested", result.getStatus());
+        assertEquals("rest-hook", result.getChannelType());
+    }
+
+    @Test
+    public void testScanXmlIgnoresNestedElements() {
+        ScanResult result = scanXml("<?xml version=\"1.0\"?>\n"
+            + "<Subscription xmlns=\"http://hl7.org/fhir\">\n"
+            + "  <extension url=\"http://example.org/ext\"><status value=\"ignored\"/>"
+            + "<type value=\"x\"/></extension>\n"
+            + "  <type value=\"ignored\"/>\n"
+            + "  <channel><extension url=\"http://example.org/ext\"><type value=\"ignored\"/></extension>"
+            + "<type value=\"email\"/></channel>\n"
+            + "  <status value=\"off\"/>\n"
+            + "</Subscription>");
+
+        assertEquals("off", result.getStatus());
+        assertEquals("email", result.getChannelType());
+    }
+
+    @Test
+    public void testScanXmlRejectsOtherResources() {
+        assertNull(scanXml("<Patient xmlns=\"http://hl7.org/fhir\"><status value=\"active\"/></Patient>"));
+        assertNull(scanXml("<Subscription xmlns=\"http://hl7.org/fhir\"><status value=\"active\">"));
+    }
+
+    @Test
+    public void testScanXmlDoesNotResolveEntities() {
+        ScanResult result = scanXml("<?xml version=\"1.0\"?>\n"
+            + "<!DOCTYPE Subscription [<!ENTITY status SYSTEM \"file:///etc/passwd\">]>\n"
+            + "<Subscription xmlns=\"http://hl7.org/fhir\"><status value=\"&status;\"/></Subscription>");
+
+        String status = result == null ? null : result.getStatus();
+        assertTrue(status == null || !status.contains("root:"));
+    }
+
+    @Test
+    public void testScanAgreesWithParser() {
+        Subscription subscription = new Subscription();
+        subscription.setId("sub1");
+        subscription.setStatus(SubscriptionStatus.ACTIVE);
+        subscription.setCriteria("Encounter?status=finished");
+        subscription.getChannel().setType(SubscriptionChannelType.RESTHOOK).setEndpoint("http://example.org/hook")
+            .addHeader("Authorization: Bearer abc");
+
+        ScanResult json = scanJson(CTX.newJsonParser().setPrettyPrint(true).encodeResourceToString(subscription));
+        assertEquals("active", json.getStatus());
+        assertEquals("rest-hook", json.getChannelType());
+
+        ScanResult xml = scanXml(CTX.newXmlParser().setPrettyPrint(true).encodeResourceToString(subscription));
+        assertEquals("active", xml.getStatus());
+        assertEquals("rest-hook", xml.getChannelType());
+    }
+
+    @Test
+    public void testIsXml() {
+        byte[] json = " {\"resourceType\":\"Subscription\"}".getBytes(StandardCharsets.UTF_8);
+        byte[] xml = "\n<Subscription/>".getBytes(StandardCharsets.UTF_8);
+
+        assertTrue(SubscriptionRequestScanner.isXml("application/fhir+xml; charset=UTF-8", json));
+        assertFalse(SubscriptionRequestScanner.isXml("application/fhir+json", xml));
+        assertTrue(SubscriptionRequestScanner.isXml(null, xml));
+        assertFalse(SubscriptionRequestScanner.isXml(null, json));
+        assertFalse(SubscriptionRequestScanner.isXml(null, new byte[0]));
+    }
+
+    private static ScanResult scanJson(String json) {
+        return SubscriptionRequestScanner.scan(json.getBytes(StandardCharsets.UTF_8), false);
+    }
+
+    private static ScanResult scanXml(String xml) {
+        return SubscriptionRequestScanner.scan(xml.getBytes(StandardCharsets.UTF_8), true);
+    }
+}
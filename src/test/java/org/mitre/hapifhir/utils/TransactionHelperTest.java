@@ -0,0 +1,122 @@
+package org.mitre.hapifhir.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.EnumSet;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.Test;
+import org.mitre.hapifhir.model.ResourceTrigger.MethodCriteria;
+import org.mitre.hapifhir.utils.TransactionHelper.TransactionEntry;
+
+public class TransactionHelperTest {
+
+    @Test
+    public void testExpandWithResources() {
+        Bundle request = new Bundle().setType(BundleType.TRANSACTION);
+        addRequest(request, HTTPVerb.POST, "Patient", patient(null, "Created"));
+        addRequest(request, HTTPVerb.PUT, "Patient/p2", patient("p2", "Updated"));
+        addRequest(request, HTTPVerb.PUT, "Patient/p3", patient("p3", "Upserted"));
+        Bundle response = new Bundle().setType(BundleType.TRANSACTIONRESPONSE);
+        addResponse(response, "201 Created", "Patient/p1/_history/1", patient("p1", "Created"));
+        addResponse(response, "200 OK", "Patient/p2/_history/2", patient("p2", "Updated"));
+        addResponse(response, "201 Created", "Patient/p3/_history/1", patient("p3", "Upserted"));
+
+        assertFalse(TransactionHelper.needsRequestBundle(response));
+        List<TransactionEntry> entries = TransactionHelper.expand(response, null);
+
+        assertEquals(3, entries.size());
+        assertEquals("p1", entries.get(0).getResource().getIdElement().getIdPart());
+        assertEquals(EnumSet.of(MethodCriteria.CREATE), entries.get(0).getInteractions());
+        assertEquals(EnumSet.of(MethodCriteria.UPDATE), entries.get(1).getInteractions());
+        // Without the request entry a 201 is only known to be a create
+        assertEquals(EnumSet.of(MethodCriteria.CREATE), entries.get(2).getInteractions());
+        assertEquals(EnumSet.of(MethodCriteria.CREATE, MethodCriteria.UPDATE),
+            TransactionHelper.expand(response, request).get(2).getInteractions());
+    }
+
+    @Test
+    public void testExpandTakesResourcesFromRequest() {
+        Bundle request = new Bundle().setType(BundleType.TRANSACTION);
+        addRequest(request, HTTPVerb.POST, "Patient", patient(null, "Created"));
+        addRequest(request, HTTPVerb.PATCH, "Patient/p2", null);
+        Bundle response = new Bundle().setType(BundleType.TRANSACTIONRESPONSE);
+        addResponse(response, "201 Created", "Patient/p1/_history/3", null);
+        addResponse(response, "200 OK", "Patient/p2/_history/2", null);
+
+        assertTrue(TransactionHelper.needsRequestBundle(response));
+        List<TransactionEntry> entries = TransactionHelper.expand(response, request);
+
+        // The patched resource is not in the request, so the patch is skipped
+        assertEquals(1, entries.size());
+        Resource resource = entries.get(0).getResource();
+        assertEquals("Patient/p1", resource.getIdElement().getValue());
+        assertEquals("3", resource.getMeta().getVersionId());
+        assertEquals("Created", ((Patient) resource).getNameFirstRep().getFamily());
+        // The request entry itself is not changed
+        assertFalse(request.getEntry().get(0).getResource().hasId());
+    }
+
+    @Test
+    public void testExpandSkipsFailuresReadsAndDeletes() {
+        Bundle request = new Bundle().setType(BundleType.BATCH);
+        addRequest(request, HTTPVerb.POST, "Patient", patient(null, "Failed"));
+        addRequest(request, HTTPVerb.GET, "Patient/p2", null);
+        addRequest(request, HTTPVerb.DELETE, "Patient/p3", null);
+        Bundle response = new Bundle().setType(BundleType.BATCHRESPONSE);
+        addResponse(response, "400 Bad Request", null, null);
+        addResponse(response, "200 OK", null, patient("p2", "Read"));
+        addResponse(response, "204 No Content", null, null);
+
+        assertTrue(TransactionHelper.expand(response, request).isEmpty());
+    }
+
+    @Test
+    public void testGetDeletedIds() {
+        Bundle request = new Bundle().setType(BundleType.TRANSACTION);
+        addRequest(request, HTTPVerb.DELETE, "Patient/p1", null);
+        addRequest(request, HTTPVerb.DELETE, "http://example.org/fhir/Observation/o1/_history/2", null);
+        addRequest(request, HTTPVerb.DELETE, "Patient?identifier=123", null);
+        addRequest(request, HTTPVerb.DELETE, "Patient/p2", null);
+        addRequest(request, HTTPVerb.POST, "Patient", patient(null, "Created"));
+        Bundle response = new Bundle().setType(BundleType.TRANSACTIONRESPONSE);
+        addResponse(response, "204 No Content", null, null);
+        addResponse(response, "200 OK", null, null);
+        addResponse(response, "204 No Content", null, null);
+        addResponse(response, "404 Not Found", null, null);
+        addResponse(response, "201 Created", "Patient/p3/_history/1", null);
+
+        List<IdType> deletedIds = TransactionHelper.getDeletedIds(response, request);
+
+        // Conditional and failed deletes are skipped
+        assertEquals(2, deletedIds.size());
+        assertEquals("Patient/p1", deletedIds.get(0).getValue());
+        assertEquals("Observation/o1", deletedIds.get(1).getValue());
+        assertTrue(TransactionHelper.getDeletedIds(response, null).isEmpty());
+    }
+
+    private static void addRequest(Bundle bundle, HTTPVerb method, String url, Resource resource) {
+        bundle.addEntry().setResource(resource).getRequest().setMethod(method).setUrl(url);
+    }
+
+    private static void addResponse(Bundle bundle, String status, String location, Resource resource) {
+        bundle.addEntry().setResource(resource).getResponse().setStatus(status).setLocation(location);
+    }
+
+    private static Patient patient(String id, String family) {
+        Patient patient = new Patient();
+        if (id != null) {
+            patient.setId(id);
+        }
+        patient.addName().setFamily(family);
+        return patient;
+    }
+}